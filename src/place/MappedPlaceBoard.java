@@ -0,0 +1,343 @@
+package place;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A {@link PlaceBoard} whose color, owner and time planes live in a memory-mapped file instead of on the heap. This
+ * lets the server run boards far too large for the heap (DIM in the thousands), leaves caching to the operating
+ * system, and keeps the board across restarts: starting the server again with the same file picks up where it left
+ * off.
+ * <p>
+ * The file starts with a small header (magic number and DIM) followed by the three planes. Owner names are appended
+ * to a second file next to it (the board file name with ".owners" added) so that owner ids still mean the same thing
+ * after a restart.
+ * <p>
+ * Clients never see this class: when the board is sent to a client its tiles are streamed straight out of the mapped
+ * planes, a block at a time, and read back as an ordinary on-heap {@link PlaceBoard} holding the same tiles, so
+ * sending the board never copies it on the server's heap.
+ *
+ * @author Dmitry Selin
+ */
+public final class MappedPlaceBoard extends PlaceBoard implements Closeable
+{
+    /** identifies a board file ("PLAC") */
+    private static final int MAGIC = 0x504C4143;
+
+    /** the number of bytes before the color plane */
+    private static final int HEADER = 16;
+
+    /** the file channel that the planes are mapped from */
+    private transient FileChannel channel;
+
+    /** the mapped color plane, one byte per tile */
+    private transient MappedByteBuffer colors;
+
+    /** the mapped owner id plane, one int per tile */
+    private transient MappedByteBuffer ownerIds;
+
+    /** the mapped time plane, one long per tile */
+    private transient MappedByteBuffer times;
+
+    /** the stream that new owner names are appended to */
+    private transient DataOutputStream ownersOut;
+
+    /** the number of owner ids that have been written to the owners file */
+    private transient int ownersSaved;
+
+    /**
+     * Opens the board stored in file, creating a board of all white tiles if the file does not exist yet.
+     *
+     * @param DIM the square dimension of the board
+     * @param owners the owner dictionary, which must not contain any owners other than the empty owner yet
+     * @param file the board file
+     * @throws PlaceException if the file could not be opened or was made for a different DIM
+     */
+    public MappedPlaceBoard (int DIM, OwnerDictionary owners, Path file) throws PlaceException
+    {
+        super(DIM, owners, false);
+
+        long tiles = (long)DIM * DIM;
+
+        if (tiles * Long.BYTES > Integer.MAX_VALUE)
+            throw new PlaceException("A board of dimension " + DIM + " is too large to be memory-mapped");
+
+        try
+        {
+            boolean created = !Files.exists(file);
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+
+            if (created)
+            {
+                header.putInt(MAGIC).putInt(DIM).flip();
+                channel.write(header, 0);
+            }
+            else
+            {
+                channel.read(header, 0);
+                header.flip();
+
+                if (header.remaining() < 8 || header.getInt() != MAGIC)
+                    throw new PlaceException(file + " is not a board file");
+                if (header.getInt() != DIM)
+                    throw new PlaceException(file + " holds a board of a different dimension than " + DIM);
+            }
+
+            long ownersStart = align(HEADER + tiles);
+            long timesStart = align(ownersStart + tiles * Integer.BYTES);
+
+            colors = channel.map(FileChannel.MapMode.READ_WRITE, HEADER, tiles);
+            ownerIds = channel.map(FileChannel.MapMode.READ_WRITE, ownersStart, tiles * Integer.BYTES);
+            times = channel.map(FileChannel.MapMode.READ_WRITE, timesStart, tiles * Long.BYTES);
+
+            if (created)
+            {
+                for (int index = 0; index < tiles; index++)
+                    colors.put(index, (byte)PlaceColor.WHITE.getNumber());
+            }
+
+            Path ownersFile = file.resolveSibling(file.getFileName() + ".owners");
+            loadOwners(ownersFile);
+            ownersOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(ownersFile.toFile(), true)));
+        }
+        catch (IOException e)
+        {
+            closeQuietly();
+            throw new PlaceException("Failed to map the board file " + file, e);
+        }
+        catch (PlaceException | RuntimeException e)
+        {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the file channel and the owners file of a board that could not be opened.
+     */
+    private void closeQuietly ()
+    {
+        try
+        {
+            if (ownersOut != null)
+                ownersOut.close();
+
+            if (channel != null)
+                channel.close();
+        }
+        catch (IOException ignored) {} // The board is being given up on anyway
+    }
+
+    /**
+     * Reads back the owner names saved by a previous run so that the ids in the owner plane refer to the same names.
+     *
+     * @param ownersFile the file the owner names were appended to
+     * @throws IOException if the file could not be read
+     */
+    private void loadOwners (Path ownersFile) throws IOException
+    {
+        ownersSaved = 1; // The empty owner (id 0) is never saved
+
+        if (!Files.exists(ownersFile))
+            return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(ownersFile))))
+        {
+            while (true)
+            {
+                getOwners().add(new OwnerDictionary.Entry(ownersSaved, in.readUTF()));
+                ownersSaved++;
+            }
+        }
+        catch (EOFException ignored) {} // Reached the end of the saved names
+    }
+
+    /**
+     * Rounds an offset within the file up to the next multiple of 8.
+     *
+     * @param offset the offset
+     * @return the aligned offset
+     */
+    private static long align (long offset) { return (offset + 7) & ~7L; }
+
+    @Override
+    protected int colorAt (int index) { return colors.get(index); }
+
+    @Override
+    protected int ownerAt (int index) { return ownerIds.getInt(index * Integer.BYTES); }
+
+    @Override
+    protected long timeAt (int index) { return times.getLong(index * Long.BYTES); }
+
+    /**
+     * Writes one tile into the mapped planes. If the tile's owner has not been saved to the owners file yet, every
+     * unsaved owner up to and including it is appended first.
+     */
+    @Override
+    protected void store (int index, int color, int ownerId, long time)
+    {
+        if (ownerId >= ownersSaved)
+            saveOwners(ownerId);
+
+        colors.put(index, (byte)color);
+        ownerIds.putInt(index * Integer.BYTES, ownerId);
+        times.putLong(index * Long.BYTES, time);
+    }
+
+    /**
+     * Appends the owner names with ids from ownersSaved up to and including lastId to the owners file.
+     *
+     * @param lastId the last owner id to save
+     */
+    private synchronized void saveOwners (int lastId)
+    {
+        try
+        {
+            for (; ownersSaved <= lastId; ownersSaved++)
+                ownersOut.writeUTF(getOwners().nameOf(ownersSaved));
+
+            ownersOut.flush();
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Asks the operating system to write any changed pages of the board back to the file.
+     */
+    public void force ()
+    {
+        colors.force();
+        ownerIds.force();
+        times.force();
+    }
+
+    /**
+     * Writes the board back to the file and closes it. The board must not be used afterwards.
+     *
+     * @throws IOException if closing the file throws an IOException
+     */
+    @Override
+    public void close () throws IOException
+    {
+        force();
+        ownersOut.close();
+        channel.close();
+    }
+
+    /**
+     * The mapped planes cannot be serialized, so the board is sent as a {@link SerializedBoard} that streams them.
+     *
+     * @return the stand-in that is serialized instead of this board
+     */
+    private Object writeReplace () { return new SerializedBoard(this); }
+
+    /**
+     * Stands in for a MappedPlaceBoard that is serialized. The tiles are written a block at a time straight out of the
+     * mapped planes (the color numbers, owner ids and times of every block in turn), followed by the owner names, and
+     * are read back as an ordinary on-heap {@link PlaceBoard}.
+     */
+    private static class SerializedBoard implements Serializable
+    {
+        /** the number of tiles written in each block */
+        private static final int BLOCK = 4096;
+
+        /** the number of bytes every tile takes: its color number, owner id and time */
+        private static final int TILE_BYTES = 1 + Integer.BYTES + Long.BYTES;
+
+        /** the board that is written */
+        private transient MappedPlaceBoard source;
+
+        /** the board that was read */
+        private transient PlaceBoard board;
+
+        /**
+         * Creates the stand-in of a board that is about to be written.
+         *
+         * @param source the board
+         */
+        SerializedBoard (MappedPlaceBoard source) { this.source = source; }
+
+        /**
+         * Writes the tiles of the board block by block, then its owner names.
+         *
+         * @param out the stream the board is written to
+         * @throws IOException if the stream throws an IOException
+         */
+        private void writeObject (ObjectOutputStream out) throws IOException
+        {
+            int tiles = source.DIM * source.DIM;
+            byte[] block = new byte[BLOCK * TILE_BYTES];
+
+            out.writeInt(source.DIM);
+            out.writeLong(source.getVersion()); // Read first: the tiles reflect at least every change up to it
+
+            for (int index = 0; index < tiles; index += BLOCK)
+            {
+                int count = Math.min(BLOCK, tiles - index);
+
+                // Relative gets on views of their own, so that concurrent writers of the planes are not disturbed
+                source.colors.duplicate().position(index).get(block, 0, count);
+                source.ownerIds.duplicate().position(index * Integer.BYTES).get(block, count, count * Integer.BYTES);
+                source.times.duplicate().position(index * Long.BYTES).get(block, count * (1 + Integer.BYTES),
+                        count * Long.BYTES);
+                out.write(block, 0, count * TILE_BYTES);
+            }
+
+            out.writeObject(source.getOwners()); // Written after the tiles, so every owner id in them has a name
+        }
+
+        /**
+         * Reads the tiles block by block into a new on-heap board, then its owner names.
+         *
+         * @param in the stream the board is read from
+         * @throws IOException if the stream throws an IOException
+         * @throws ClassNotFoundException if the class of the owner dictionary cannot be found
+         */
+        private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException
+        {
+            int DIM = in.readInt();
+            long version = in.readLong();
+            int tiles = DIM * DIM;
+            byte[] bytes = new byte[BLOCK * TILE_BYTES];
+            ByteBuffer block = ByteBuffer.wrap(bytes);
+
+            board = new PlaceBoard(DIM);
+
+            for (int index = 0; index < tiles; index += BLOCK)
+            {
+                int count = Math.min(BLOCK, tiles - index);
+                in.readFully(bytes, 0, count * TILE_BYTES);
+
+                for (int i = 0; i < count; i++)
+                {
+                    board.store(index + i, block.get(i), block.getInt(count + i * Integer.BYTES),
+                            block.getLong(count * (1 + Integer.BYTES) + i * Long.BYTES));
+                }
+            }
+
+            OwnerDictionary owners = (OwnerDictionary)in.readObject();
+
+            for (int id = 1; id < owners.size(); id++) // The empty owner (id 0) is in every dictionary
+                board.getOwners().add(owners.entry(id));
+
+            board.setVersion(version);
+        }
+
+        /**
+         * Replaces the stand-in with the board that was read.
+         *
+         * @return the board
+         */
+        private Object readResolve () { return board; }
+    }
+}
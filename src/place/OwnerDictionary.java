@@ -0,0 +1,167 @@
+package place;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A dictionary of tile owners.  Every username is given a small integer id the
+ * first time it is seen, and the board stores these ids instead of the names.
+ * Ids are handed out densely starting at 0 (the empty owner of untouched
+ * tiles) and are never reused, so a copy of the dictionary can be kept up to
+ * date by only sending it the entries it has not yet seen.
+ *
+ * @author Dmitry Selin
+ */
+public class OwnerDictionary implements Serializable
+{
+    /** the owner names, indexed by owner id */
+    private ArrayList<String> names = new ArrayList<>();
+
+    /** the owner ids, keyed by owner name (rebuilt after deserialization) */
+    private transient HashMap<String, Integer> ids = new HashMap<>();
+
+    /** Creates a new dictionary that only knows about the empty owner (id 0) */
+    public OwnerDictionary() { idOf(""); }
+
+    /**
+     * Returns the id of an owner, assigning the next free id if the owner has
+     * not been seen before.
+     *
+     * @param owner the owner name
+     * @return the owner id
+     */
+    public synchronized int idOf (String owner)
+    {
+        if (owner == null)
+            owner = "";
+
+        Integer id = ids.get(owner);
+
+        if (id == null)
+        {
+            id = names.size();
+            names.add(owner);
+            ids.put(owner, id);
+        }
+
+        return id;
+    }
+
+    /**
+     * Returns the id of an owner without assigning one if the owner has not
+     * been seen before.
+     *
+     * @param owner the owner name
+     * @return the owner id, or -1 if the owner is unknown
+     */
+    public synchronized int find (String owner)
+    {
+        Integer id = ids.get(owner == null ? "" : owner);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the name of an owner, or the empty string if the id is unknown.
+     *
+     * @param id the owner id
+     * @return the owner name
+     */
+    public synchronized String nameOf (int id) { return id >= 0 && id < names.size() ? names.get(id) : ""; }
+
+    /**
+     * Returns the entry for an id that is already in the dictionary.
+     *
+     * @param id the owner id
+     * @return the entry
+     */
+    public synchronized Entry entry (int id) { return new Entry(id, names.get(id)); }
+
+    /**
+     * Adds an entry received from the server to a client's copy of the dictionary.
+     * Entries that are already known are ignored.
+     *
+     * @param entry the entry to add
+     */
+    public synchronized void add (Entry entry)
+    {
+        while (names.size() <= entry.getId())
+            names.add("");
+
+        names.set(entry.getId(), entry.getName());
+        ids.put(entry.getName(), entry.getId());
+    }
+
+    /**
+     * Returns the number of ids that have been handed out.
+     *
+     * @return the size of the dictionary
+     */
+    public synchronized int size () { return names.size(); }
+
+    /**
+     * Writes the dictionary while holding its lock so that a consistent copy is sent.
+     *
+     * @param out the stream the dictionary is written to
+     * @throws IOException if the stream throws an IOException
+     */
+    private synchronized void writeObject (ObjectOutputStream out) throws IOException { out.defaultWriteObject(); }
+
+    /**
+     * Reads the dictionary and rebuilds the name to id lookup.
+     *
+     * @param in the stream the dictionary is read from
+     * @throws IOException if the stream throws an IOException
+     * @throws ClassNotFoundException if the class of a serialized object cannot be found
+     */
+    private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        ids = new HashMap<>();
+
+        for (int id = 0; id < names.size(); id++)
+            ids.put(names.get(id), id);
+    }
+
+    /**
+     * A single id to name mapping. Sent by the server (as USER_ADDED) whenever a
+     * client is about to see an owner id that it does not know yet.
+     */
+    public static class Entry implements Serializable
+    {
+        /** the owner id */
+        private final int id;
+
+        /** the owner name */
+        private final String name;
+
+        /**
+         * Creates a new entry.
+         *
+         * @param id the owner id
+         * @param name the owner name
+         */
+        public Entry (int id, String name)
+        {
+            this.id = id;
+            this.name = name;
+        }
+
+        /**
+         * Returns the owner id.
+         *
+         * @return the id
+         */
+        public int getId () { return id; }
+
+        /**
+         * Returns the owner name.
+         *
+         * @return the name
+         */
+        public String getName () { return name; }
+    }
+}
@@ -1,19 +1,72 @@
 package place;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * The board is the place that holds the colored tiles.  The server creates
  * the initial Board and then transmits it only once to each client that
  * successfully logs in to the server.
+ * <p>
+ * Internally the board does not hold one {@link PlaceTile} per cell. Instead it
+ * keeps three flat, row-major primitive planes (color number, owner id and
+ * timestamp) so that memory scales with DIM*DIM primitives rather than DIM*DIM
+ * objects. A {@link PlaceTile} is only created when one is asked for.
+ * <p>
+ * The board is also divided into square chunks of {@link #CHUNK} x
+ * {@link #CHUNK} tiles.  Every chunk has a version that goes up each time one
+ * of its tiles changes and a dirty flag that stays set until it is taken with
+ * {@link #takeDirtyChunks()}, so that work such as snapshotting or repainting
+ * only needs to visit the chunks that changed.
+ * <p>
+ * The board version counts every tile change, so on the server it is also the
+ * sequence number of the latest change (see {@link PlaceTile#getSequence()}),
+ * and a copy of the board sent to a client reflects every change up to its
+ * version.
+ * <p>
+ * Tiles may be changed from many threads at once.  Every chunk has its own
+ * lock (see {@link #getChunkLock(int)}), so changes to different chunks do not
+ * wait for each other, and the board version is counted up atomically.
  *
  * @author Sean Strout @ RIT CS
  */
 public class PlaceBoard implements Serializable {
+    /** All the colors, indexed by color number */
+    private static final PlaceColor[] COLORS = PlaceColor.values();
+
+    /** The square dimension of a chunk */
+    public static final int CHUNK = 64;
+
+    /** The widest board whose tiles an int can count */
+    public static final int MAX_DIM = 46340;
+
     /** The square dimension of the board */
     public final int DIM;
-    /** The grid of tiles */
-    private PlaceTile[][] board;
+    /** The number of chunks along each side of the board */
+    public final int CHUNKS;
+    /** The color number of every tile (row-major) */
+    private byte[] colors;
+    /** The owner id of every tile (row-major), see {@link OwnerDictionary} */
+    private int[] ownerIds;
+    /** The time every tile was last changed (row-major) */
+    private long[] times;
+    /** The names behind the owner ids */
+    private OwnerDictionary owners;
+    /** Counts up the board version atomically */
+    private static final AtomicLongFieldUpdater<PlaceBoard> VERSION =
+            AtomicLongFieldUpdater.newUpdater(PlaceBoard.class, "version");
+
+    /** The number of tile changes made to the board (volatile so that it can be read without a chunk lock) */
+    private volatile long version;
+    /** The number of tile changes made to each chunk (row-major) */
+    private long[] chunkVersions;
+    /** Whether each chunk (row-major) has changed since it was last taken */
+    private boolean[] dirtyChunks;
+    /** The lock of each chunk (row-major), held while one of its tiles changes */
+    private transient Object[] chunkLocks;
 
     /**
      * Create a new board of all white tiles.
@@ -21,27 +74,73 @@ public class PlaceBoard implements Serializable {
      * @param DIM the square dimension of the board
      */
     public PlaceBoard(int DIM) {
+        this(DIM, new OwnerDictionary());
+    }
+
+    /**
+     * Create a new board of all white tiles whose owners are kept in an
+     * existing dictionary.
+     *
+     * @param DIM the square dimension of the board
+     * @param owners the owner dictionary
+     */
+    public PlaceBoard(int DIM, OwnerDictionary owners) {
+        this(DIM, owners, true);
+    }
+
+    /**
+     * Create a new board.  Subclasses that keep the tiles somewhere other than
+     * the on-heap planes pass false for allocate and override the plane
+     * accessors ({@link #colorAt}, {@link #ownerAt}, {@link #timeAt} and
+     * {@link #store}).
+     *
+     * @param DIM the square dimension of the board
+     * @param owners the owner dictionary
+     * @param allocate whether to allocate the on-heap planes (as all white tiles)
+     */
+    protected PlaceBoard(int DIM, OwnerDictionary owners, boolean allocate) {
         this.DIM = DIM;
-        this.board = new PlaceTile[DIM][DIM];
-        for (int row=0; row<DIM; ++row) {
-            for (int col=0; col<DIM; ++col) {
-                this.board[row][col] =
-                        new PlaceTile(row, col, "", PlaceColor.WHITE);
-            }
+        this.CHUNKS = (DIM + CHUNK - 1) / CHUNK;
+        this.chunkVersions = new long[CHUNKS * CHUNKS];
+        this.dirtyChunks = new boolean[CHUNKS * CHUNKS];
+        this.chunkLocks = newChunkLocks();
+        this.owners = owners;
+        if (allocate) {
+            this.colors = new byte[DIM * DIM];
+            this.ownerIds = new int[DIM * DIM];
+            this.times = new long[DIM * DIM];
+            Arrays.fill(this.colors, (byte) PlaceColor.WHITE.getNumber());
         }
     }
 
     /**
-     * Get the entire board.
+     * Get the dictionary that maps the board's owner ids to names.
+     *
+     * @return the owner dictionary
+     */
+    public OwnerDictionary getOwners() {
+        return this.owners;
+    }
+
+    /**
+     * Get the entire board.  Every tile is materialized on each call, so this
+     * should be avoided on large boards.
      *
      * @return the board
      */
     public PlaceTile[][] getBoard() {
-        return this.board;
+        PlaceTile[][] board = new PlaceTile[DIM][DIM];
+        for (int row=0; row<DIM; ++row) {
+            for (int col=0; col<DIM; ++col) {
+                board[row][col] = getTile(row, col);
+            }
+        }
+        return board;
     }
 
     /**
-     * Get a tile on the board
+     * Get a tile on the board.  The returned tile is a copy; changing it does
+     * not change the board.
      *
      * @param row row
      * @param col column
@@ -49,17 +148,283 @@ public class PlaceBoard implements Serializable {
      * @return the tile
      */
     public PlaceTile getTile(int row, int col){
-        return this.board[row][col];
+        int index = row * DIM + col;
+        int ownerId = ownerAt(index);
+        PlaceTile tile = new PlaceTile(row, col, owners.nameOf(ownerId),
+                COLORS[colorAt(index)], timeAt(index));
+        tile.setOwnerId(ownerId);
+        return tile;
     }
 
     /**
-     * Change a tile in the board.
+     * Get the color of a tile without materializing the tile.
+     *
+     * @param row row
+     * @param col column
+     * @rit.pre row and column constitute a valid board coordinate
+     * @return the tile's color
+     */
+    public PlaceColor getColor(int row, int col) {
+        return COLORS[colorAt(row * DIM + col)];
+    }
+
+    /**
+     * Change a tile in the board.  If the tile has not been given an owner id
+     * yet, its owner name is looked up in the owner dictionary.
      *
      * @param tile the new tile
      * @rit.pre row and column constitute a valid board coordinate
+     * @return the board version right after the change
+     */
+    public long setTile(PlaceTile tile) {
+        if (tile.getOwnerId() < 0)
+            tile.setOwnerId(owners.idOf(tile.getOwner()));
+        return setTile(tile.getRow(), tile.getCol(), tile.getColor(), tile.getOwnerId(), tile.getTime());
+    }
+
+    /**
+     * Change a tile in the board without going through a {@link PlaceTile}.
+     * The tile's chunk is locked while it changes, so two threads may change
+     * tiles of different chunks at the same time.
+     *
+     * @param row row
+     * @param col column
+     * @param color the new color
+     * @param ownerId the id of the new owner in the owner dictionary
+     * @param time the time the tile was changed
+     * @rit.pre row and column constitute a valid board coordinate
+     * @return the board version right after the change, which numbers the
+     *         change among every change made to the board
+     */
+    public long setTile(int row, int col, PlaceColor color, int ownerId, long time) {
+        int chunk = getChunk(row, col);
+        synchronized (this.chunkLocks[chunk]) {
+            store(row * DIM + col, color.getNumber(), ownerId, time);
+            this.chunkVersions[chunk]++;
+            this.dirtyChunks[chunk] = true;
+            return VERSION.incrementAndGet(this);
+        }
+    }
+
+    /**
+     * Put a tile back the way it was when a snapshot of the board was taken.
+     * Unlike {@link #setTile(int, int, PlaceColor, int, long)} this is not a
+     * change: neither the board version nor the chunk version goes up, so it
+     * should only be used while nobody else uses the board.
+     *
+     * @param row row
+     * @param col column
+     * @param color the color number
+     * @param ownerId the id of the owner in the owner dictionary
+     * @param time the time the tile was last changed
+     * @rit.pre row and column constitute a valid board coordinate
+     */
+    public void restoreTile(int row, int col, int color, int ownerId, long time) {
+        store(row * DIM + col, color, ownerId, time);
+    }
+
+    /**
+     * Get the owner id of a tile without materializing the tile.
+     *
+     * @param row row
+     * @param col column
+     * @rit.pre row and column constitute a valid board coordinate
+     * @return the id of the tile's owner in the owner dictionary
+     */
+    public int getOwnerId(int row, int col) {
+        return ownerAt(row * DIM + col);
+    }
+
+    /**
+     * Get the time a tile was changed without materializing the tile.
+     *
+     * @param row row
+     * @param col column
+     * @rit.pre row and column constitute a valid board coordinate
+     * @return the time the tile was last changed
+     */
+    public long getTime(int row, int col) {
+        return timeAt(row * DIM + col);
+    }
+
+    /**
+     * Get the color number stored in the color plane.
+     *
+     * @param index the row-major tile index
+     * @return the color number
+     */
+    protected int colorAt(int index) {
+        return this.colors[index];
+    }
+
+    /**
+     * Get the owner id stored in the owner plane.
+     *
+     * @param index the row-major tile index
+     * @return the owner id
+     */
+    protected int ownerAt(int index) {
+        return this.ownerIds[index];
+    }
+
+    /**
+     * Get the timestamp stored in the time plane.
+     *
+     * @param index the row-major tile index
+     * @return the time the tile was last changed
+     */
+    protected long timeAt(int index) {
+        return this.times[index];
+    }
+
+    /**
+     * Write one tile into the planes.
+     *
+     * @param index the row-major tile index
+     * @param color the color number
+     * @param ownerId the owner id
+     * @param time the time the tile was changed
+     */
+    protected void store(int index, int color, int ownerId, long time) {
+        this.colors[index] = (byte) color;
+        this.ownerIds[index] = ownerId;
+        this.times[index] = time;
+    }
+
+    /**
+     * Get the number of tile changes that have been made to the board.
+     *
+     * @return the board version
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Set the board version.  Used when a board is rebuilt from a copy, so that
+     * it has the version of the board it is a copy of.
+     *
+     * @param version the board version
+     */
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    /**
+     * Get the chunk that a tile belongs to.  Chunks are numbered row-major,
+     * from 0 to CHUNKS * CHUNKS - 1.
+     *
+     * @param row row
+     * @param col column
+     * @rit.pre row and column constitute a valid board coordinate
+     * @return the chunk number
+     */
+    public int getChunk(int row, int col) {
+        return (row / CHUNK) * CHUNKS + col / CHUNK;
+    }
+
+    /**
+     * Get the first row of a chunk.
+     *
+     * @param chunk the chunk number
+     * @return the first row covered by the chunk
+     */
+    public int getChunkRow(int chunk) {
+        return (chunk / CHUNKS) * CHUNK;
+    }
+
+    /**
+     * Get the first column of a chunk.
+     *
+     * @param chunk the chunk number
+     * @return the first column covered by the chunk
+     */
+    public int getChunkCol(int chunk) {
+        return (chunk % CHUNKS) * CHUNK;
+    }
+
+    /**
+     * Get the lock that is held while a tile of a chunk changes.  A caller
+     * that holds it while it changes a tile and then acts on the change (for
+     * example, tells others about it) acts on the changes of that chunk in the
+     * order they were made.
+     *
+     * @param chunk the chunk number
+     * @return the lock of the chunk
+     */
+    public Object getChunkLock(int chunk) {
+        return this.chunkLocks[chunk];
+    }
+
+    /**
+     * Get the number of tile changes that have been made to a chunk.
+     *
+     * @param chunk the chunk number
+     * @return the chunk version
+     */
+    public long getChunkVersion(int chunk) {
+        return this.chunkVersions[chunk];
+    }
+
+    /**
+     * Tells whether a chunk has changed since the dirty chunks were last taken.
+     *
+     * @param chunk the chunk number
+     * @return is the chunk dirty?
+     */
+    public boolean isChunkDirty(int chunk) {
+        return this.dirtyChunks[chunk];
+    }
+
+    /**
+     * Get every chunk that has changed since the last call and mark them all
+     * clean again.
+     *
+     * @return the numbers of the dirty chunks, in ascending order
+     */
+    public synchronized int[] takeDirtyChunks() {
+        int count = 0;
+        for (boolean dirty : this.dirtyChunks) {
+            if (dirty)
+                count++;
+        }
+
+        int[] taken = new int[count];
+        for (int chunk=0, i=0; i<count; ++chunk) {
+            synchronized (this.chunkLocks[chunk]) { // A change of the chunk is not lost
+                if (this.dirtyChunks[chunk]) {
+                    this.dirtyChunks[chunk] = false;
+                    taken[i++] = chunk;
+                }
+            }
+        }
+        return taken;
+    }
+
+    /**
+     * Create a lock for every chunk.
+     *
+     * @return the locks
+     */
+    private Object[] newChunkLocks() {
+        Object[] locks = new Object[CHUNKS * CHUNKS];
+        for (int chunk=0; chunk<locks.length; ++chunk) {
+            locks[chunk] = new Object();
+        }
+        return locks;
+    }
+
+    /**
+     * Read a board that was sent with Java serialization, and give it new
+     * chunk locks (locks are not sent).
+     *
+     * @param in the stream the board is read from
+     * @throws IOException if the board could not be read
+     * @throws ClassNotFoundException if a class of the board is unknown
      */
-    public void setTile(PlaceTile tile) {
-        this.board[tile.getRow()][tile.getCol()] = tile;
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.chunkLocks = newChunkLocks();
     }
 
     /**
@@ -86,7 +451,7 @@ public class PlaceBoard implements Serializable {
         for (int row=0; row<DIM; ++row) {
             builder.append("\n");
             for (int col=0; col<DIM; ++col) {
-                builder.append(this.board[row][col].getColor());
+                builder.append(getColor(row, col));
             }
         }
         return builder.toString();
@@ -19,8 +19,14 @@ public class PlaceTile implements Serializable
     /** the color */
     private PlaceColor color;
 
-    /** the owner */
-    private String user;
+    /**
+     * the owner.  it is not sent over the network; the receiving side looks it
+     * up from ownerId in its {@link OwnerDictionary}.
+     */
+    private transient String user;
+
+    /** the id of the owner in the board's {@link OwnerDictionary}, or -1 if not known yet */
+    private int ownerId;
 
     /**
      * the time the tile was changed, in milliseconds.  it is the difference,
@@ -29,6 +35,12 @@ public class PlaceTile implements Serializable
      */
     private long time;
 
+    /**
+     * the sequence number the server gave the change, counting every change
+     * it accepted, or 0 if the tile has not been accepted by a server.
+     */
+    private long sequence;
+
     /**
      * Create a tile (with no timestamp).
      *
@@ -56,6 +68,7 @@ public class PlaceTile implements Serializable
         this.color = color;
         this.user = user;
         this.time = time;
+        this.ownerId = -1;
     }
 
     /**
@@ -100,14 +113,52 @@ public class PlaceTile implements Serializable
      */
     public void setTime(long time) { this.time = time; }
 
+    /**
+     * Get the tile's owner.
+     *
+     * @return the username of the owner
+     */
     public String getOwner() {
         return this.user;
     }
 
+    /**
+     * Change the tile's owner.
+     *
+     * @param user the username of the new owner
+     */
     public void setOwner(String user) {
         this.user = user;
     }
 
+    /**
+     * Get the id of the tile's owner.
+     *
+     * @return the owner id, or -1 if it has not been assigned
+     */
+    public int getOwnerId() { return this.ownerId; }
+
+    /**
+     * Set the id of the tile's owner.
+     *
+     * @param ownerId the owner id
+     */
+    public void setOwnerId(int ownerId) { this.ownerId = ownerId; }
+
+    /**
+     * Get the sequence number the server gave the change.
+     *
+     * @return the sequence number, or 0 if it has not been assigned
+     */
+    public long getSequence() { return this.sequence; }
+
+    /**
+     * Set the sequence number the server gave the change.
+     *
+     * @param sequence the sequence number
+     */
+    public void setSequence(long sequence) { this.sequence = sequence; }
+
     /**
      * Utility method for debugging only.
      *
@@ -119,8 +170,10 @@ public class PlaceTile implements Serializable
                 "row=" + this.row +
                 ", col=" + this.col +
                 ", user=" + this.user +
+                ", ownerId=" + this.ownerId +
                 ", color=" + this.color +
                 ", time=" + this.time +
+                ", sequence=" + this.sequence +
                 '}';
     }
 }
@@ -0,0 +1,157 @@
+package place.benchmark;
+
+import place.PlaceBoard;
+import place.PlaceColor;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how well tile changes scale with the number of threads making them. Every thread changes random tiles of
+ * its own band of chunks, as connections placing tiles in different parts of the board do, and the total number of
+ * changes per second is reported for two ways of making them:
+ * <ul>
+ *     <li>MONITOR - every change is made while holding one lock for the whole board, as the server's lock was held
+ *     around every change before the board had chunk locks</li>
+ *     <li>STRIPED - every change is made with {@link PlaceBoard#setTile(int, int, PlaceColor, int, long)} alone,
+ *     which only locks the chunk of the tile (the server's --striped mode)</li>
+ * </ul>
+ * The benchmark is run on the command line as:
+ *
+ * $ java BoardWriteBenchmark [changesPerThread] [threads ...]
+ *
+ * Where the thread counts default to 1, 2, 4, ... up to the number of processors.
+ *
+ * @author Dmitry Selin
+ */
+public class BoardWriteBenchmark
+{
+    /** the dimension of the benchmark's board */
+    private static final int DIM = 1024;
+
+    /** the number of changes each thread makes if none is given */
+    private static final int CHANGES_PER_THREAD = 2000000;
+
+    /** the ways the benchmark makes changes */
+    private enum Mode
+    {
+        /** every change holds one lock for the whole board */
+        MONITOR,
+
+        /** every change only locks its chunk */
+        STRIPED
+    }
+
+    /**
+     * Runs one mode with a number of threads and returns how many changes per second they made together.
+     *
+     * @param mode how the changes are made
+     * @param threads the number of threads
+     * @param changesPerThread the number of changes each thread makes
+     * @return the changes per second
+     * @throws InterruptedException if the benchmark is interrupted
+     */
+    private static long run (Mode mode, int threads, int changesPerThread) throws InterruptedException
+    {
+        PlaceBoard board = new PlaceBoard(DIM);
+        PlaceColor[] colors = PlaceColor.values();
+        int bandRows = Math.max(PlaceBoard.CHUNK, DIM / threads / PlaceBoard.CHUNK * PlaceBoard.CHUNK);
+
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++)
+        {
+            int firstRow = (t * bandRows) % DIM; // More threads than bands share bands
+            Random random = new Random(t);
+
+            Thread writer = new Thread(() ->
+            {
+                try {
+                    start.await();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+
+                for (int i = 0; i < changesPerThread; i++)
+                {
+                    int row = firstRow + random.nextInt(bandRows);
+                    int col = random.nextInt(DIM);
+                    PlaceColor color = colors[i % colors.length];
+
+                    if (mode == Mode.MONITOR)
+                    {
+                        synchronized (board)
+                        {
+                            board.setTile(row, col, color, 0, i);
+                        }
+                    }
+                    else
+                        board.setTile(row, col, color, 0, i);
+                }
+
+                done.countDown();
+            });
+
+            writer.start();
+        }
+
+        long began = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - began;
+
+        if (board.getVersion() != (long)threads * changesPerThread)
+            throw new IllegalStateException("Lost changes: " + board.getVersion());
+
+        return (long)threads * changesPerThread * 1000000000L / elapsed;
+    }
+
+    /**
+     * The main method of BoardWriteBenchmark. Runs every mode with every thread count and prints a row for each.
+     *
+     * @param args the command line arguments
+     */
+    public static void main (String[] args)
+    {
+        try
+        {
+            int changesPerThread = args.length > 0 ? Integer.parseInt(args[0]) : CHANGES_PER_THREAD;
+            int[] threadCounts;
+
+            if (args.length > 1)
+            {
+                threadCounts = new int[args.length - 1];
+
+                for (int i = 1; i < args.length; i++)
+                    threadCounts[i - 1] = Integer.parseInt(args[i]);
+            }
+            else
+            {
+                int processors = Runtime.getRuntime().availableProcessors();
+                int count = 32 - Integer.numberOfLeadingZeros(processors);
+                threadCounts = new int[count];
+
+                for (int i = 0; i < count; i++)
+                    threadCounts[i] = 1 << i;
+            }
+
+            run(Mode.STRIPED, 1, changesPerThread); // Warms up the JIT before anything is measured
+
+            System.out.printf("%-8s %8s %16s%n", "MODE", "THREADS", "CHANGES/s");
+
+            for (Mode mode : Mode.values())
+            {
+                for (int threads : threadCounts)
+                    System.out.printf("%-8s %8d %,16d%n", mode, threads, run(mode, threads, changesPerThread));
+            }
+        }
+        catch (NumberFormatException e) {
+            System.out.println("Usage: java BoardWriteBenchmark [changesPerThread] [threads ...]");
+        }
+        catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
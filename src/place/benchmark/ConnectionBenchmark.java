@@ -0,0 +1,234 @@
+package place.benchmark;
+
+import place.PlaceColor;
+import place.PlaceException;
+import place.PlaceTile;
+import place.network.Handshake;
+import place.network.PlaceCodec;
+import place.network.PlaceRequest;
+import place.server.PlaceServer;
+import place.server.ServerConfig;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares how the server's connection modes cope with a crowd of idle spectators. For every mode, a server is
+ * started in this JVM, the given number of clients log in and then sit idle, and the number of platform threads and
+ * the heap in use are reported. The benchmark is run on the command line as:
+ *
+ * $ java ConnectionBenchmark connections [--slow] [mode ...]
+ *
+ * Where mode is THREADS, VIRTUAL or NIO (all three by default). Large runs need a raised open file limit.
+ * <p>
+ * The platform thread count says nothing about the carrier threads that run virtual threads, which are few (one per
+ * core) and shared. With --slow the spectators stop reading: the server is made to change every tile of the board
+ * many times, so the socket buffers of every spectator fill up and the threads writing to them block. A probe client
+ * then logs in, and the time it takes is reported. Writers that block while pinning their carrier thread (as a
+ * virtual thread blocked inside a synchronized method does) leave no carrier for the probe, which then stalls.
+ *
+ * @author Dmitry Selin
+ */
+public class ConnectionBenchmark
+{
+    /** the port of the first server; each mode gets the next port */
+    private static final int FIRST_PORT = 54321;
+
+    /** the dimension of the benchmark's boards */
+    private static final int DIM = 100;
+
+    /** how many times every tile is changed to fill the socket buffers of the spectators with --slow */
+    private static final int FLOOD_ROUNDS = 20;
+
+    /** how long the probe may take to log in before it is reported as stalled, in milliseconds */
+    private static final int PROBE_TIMEOUT = 10000;
+
+    /**
+     * An idle client: it logs in, reads LOGIN_SUCCESS and BOARD, and then never sends anything again.
+     */
+    private static class Spectator implements Closeable
+    {
+        /** the connection to the server */
+        private Socket socket;
+
+        /**
+         * Connects to the server and logs in.
+         *
+         * @param port the server's port
+         * @param username the username to log in with
+         * @throws IOException if the connection fails, or the login takes longer than PROBE_TIMEOUT
+         * @throws PlaceException if the server does not accept the login
+         */
+        Spectator (int port, String username) throws IOException, PlaceException
+        {
+            socket = new Socket();
+            socket.setReceiveBufferSize(4096); // Fills up quickly once the spectator stops reading
+            socket.connect(new InetSocketAddress("localhost", port));
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(PROBE_TIMEOUT);
+
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.flush();
+            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+
+            try
+            {
+                // The NIO server only serves clients that speak the binary protocol, so every mode is offered it
+                out.writeUnshared(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN,
+                        new Handshake(username, PlaceCodec.VERSION)));
+                out.flush();
+
+                PlaceRequest<?> loginSuccess = (PlaceRequest<?>)in.readUnshared();
+
+                if (loginSuccess.getType() != PlaceRequest.RequestType.LOGIN_SUCCESS)
+                    throw new PlaceException("Login of " + username + " failed: " + loginSuccess.getData());
+
+                int version = ((Handshake)loginSuccess.getData()).getProtocolVersion();
+                PlaceRequest<?> board = version > 0 ? PlaceCodec.read(new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream())), 0) : (PlaceRequest<?>)in.readUnshared();
+
+                if (board.getType() != PlaceRequest.RequestType.BOARD)
+                    throw new PlaceException("Login of " + username + " failed: " + board.getData());
+            }
+            catch (ClassNotFoundException e) {
+                throw new PlaceException(e);
+            }
+        }
+
+        @Override
+        public void close () throws IOException { socket.close(); }
+    }
+
+    /**
+     * Runs one mode: starts a server, connects the spectators, measures, and shuts everything down again.
+     *
+     * @param mode the connection mode
+     * @param port the port the server is started on
+     * @param connections the number of spectators
+     * @param slow whether the spectators are made slow readers before a probe logs in
+     * @param report where the results are printed
+     * @throws Exception if the server or a spectator fails
+     */
+    private static void run (ServerConfig.Mode mode, int port, int connections, boolean slow, PrintStream report)
+            throws Exception
+    {
+        System.gc();
+        int threadsBefore = Thread.activeCount();
+        long heapBefore = usedHeap();
+
+        ServerConfig config = new ServerConfig(port, DIM);
+        config.setMode(mode);
+        PlaceServer server = new PlaceServer(config);
+        server.start();
+        Thread.sleep(500); // Gives the server time to start listening
+
+        List<Spectator> spectators = new ArrayList<>();
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < connections; i++)
+            spectators.add(new Spectator(port, mode + "-" + i));
+
+        long elapsed = System.currentTimeMillis() - start;
+        Thread.sleep(1000); // Lets every connection settle into its idle state
+
+        System.gc();
+        int threads = Thread.activeCount() - threadsBefore;
+        long heap = usedHeap() - heapBefore;
+        String probe = "";
+
+        if (slow)
+        {
+            for (int round = 0; round < FLOOD_ROUNDS; round++)
+            {
+                for (int index = 0; index < DIM * DIM; index++)
+                    server.changeBoardTile(new PlaceTile(index / DIM, index % DIM, "flood",
+                            PlaceColor.values()[round % PlaceColor.values().length], System.currentTimeMillis()), null);
+            }
+
+            Thread.sleep(1000); // Lets every writer fill its spectator's socket and block
+
+            long probeStart = System.currentTimeMillis();
+
+            try
+            {
+                new Spectator(port, "probe").close();
+                probe = String.format("%,d", System.currentTimeMillis() - probeStart);
+            }
+            catch (SocketTimeoutException e) {
+                probe = "stalled";
+            }
+        }
+
+        report.printf("%-8s %,12d %,16d %,12d %,12d %12s%n", mode, connections, threads, heap / (1024 * 1024), elapsed,
+                probe);
+
+        // The spectators leave first, so that writers blocked on them fail instead of holding up the shutdown
+        for (Spectator spectator : spectators)
+            spectator.close();
+        server.closeServer();
+
+        server.join();
+    }
+
+    /**
+     * Returns the number of bytes of heap in use.
+     *
+     * @return the used heap
+     */
+    private static long usedHeap ()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * The main method of ConnectionBenchmark. Runs every requested mode one after another and prints a row for each.
+     *
+     * @param args the command line arguments
+     */
+    public static void main (String[] args)
+    {
+        if (args.length < 1)
+        {
+            System.out.println("Usage: java ConnectionBenchmark connections [--slow] [THREADS|VIRTUAL|NIO ...]");
+            return;
+        }
+
+        PrintStream report = System.out;
+        // The server announces every login, which would drown out the results
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        try
+        {
+            int connections = Integer.parseInt(args[0]);
+            boolean slow = false;
+            List<ServerConfig.Mode> modes = new ArrayList<>();
+
+            for (int i = 1; i < args.length; i++)
+            {
+                if (args[i].equals("--slow"))
+                    slow = true;
+                else
+                    modes.add(ServerConfig.Mode.valueOf(args[i].toUpperCase()));
+            }
+
+            if (modes.isEmpty())
+                modes.addAll(List.of(ServerConfig.Mode.values()));
+
+            report.printf("%-8s %12s %16s %12s %12s %12s%n", "MODE", "CONNECTIONS", "PLATFORM THREADS", "HEAP (MB)",
+                    "LOGIN (ms)", "PROBE (ms)");
+
+            for (int i = 0; i < modes.size(); i++)
+                run(modes.get(i), FIRST_PORT + i, connections, slow, report);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        System.exit(0);
+    }
+}
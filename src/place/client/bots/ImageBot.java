@@ -4,6 +4,8 @@ import place.PlaceColor;
 import place.PlaceTile;
 import place.model.ClientModel;
 
+import java.util.ArrayList;
+
 /**
  * This class extends Bot and draws any 2D array of hexadecimal color values
  * assuming that the size of the given 2D array is smaller or equal to the board
@@ -33,29 +35,41 @@ public class ImageBot extends Bot
      * The activity that the bot performs within its main loop. The ImageBot
      * iterates through each row and column of the server board and checks the
      * image array tile for a match in color - if different color than
-     * the image, then change to match.
+     * the image, then change to match. Every mismatched tile is first sent at
+     * once with CHANGE_TILES; the tiles the server does not accept that way
+     * (because it does not trust the bot) are then changed one at a time.
      */
     @Override
     public void botActivity()
     {
         if (image.length <= getBoard().DIM && image[0].length <= getBoard().DIM) // Checks if the image fits inside the server board, else end connection
         {
+            ArrayList<PlaceTile> mismatched = new ArrayList<>();
+
             for (int row = 0; row < image.length; row++) // Iterates through each row in image
             {
                 for (int col = 0; col < image[0].length; col++) // Iterates through each column in image
                 {
                     PlaceColor imageColor = getColors()[image[row][col]]; // Creates the corresponding PlaceColor to the location in image
 
-                    if (getModel().getStatus() == ClientModel.Status.RUNNING && // Checks if the server is still running and...
-                            getBoard().getTile(row, col).getColor() != imageColor) // ...if the tile colors on image and teh server board do not match
-                    {
-                        getModel().changeTile(new PlaceTile(row, col, getModel().getUsername(),
-                                imageColor, System.currentTimeMillis())); // Changes the tile in server board to the color in image
+                    if (getBoard().getColor(row, col) != imageColor) // Checks if the tile colors on image and the server board do not match
+                        mismatched.add(new PlaceTile(row, col, getModel().getUsername(),
+                                imageColor, System.currentTimeMillis()));
+                }
+            }
+
+            PlaceTile[] tiles = mismatched.toArray(new PlaceTile[0]);
+            boolean[] accepted = tiles.length > 0 ? getModel().changeTiles(tiles) : null; // Changes every tile in one request
 
-                        printTileChange(row, col, imageColor); // Prints the information regarding the tile change
-                        pause(1000); // Sleeps for 1 second
-                    }
+            for (int i = 0; i < tiles.length && getModel().getStatus() == ClientModel.Status.RUNNING; i++)
+            {
+                if (accepted != null && !accepted[i]) // The server did not change the tile - change it on its own
+                {
+                    getModel().changeTile(tiles[i]); // Changes the tile in server board to the color in image
+                    pause(1000); // Sleeps for 1 second
                 }
+
+                printTileChange(tiles[i].getRow(), tiles[i].getCol(), tiles[i].getColor()); // Prints the information regarding the tile change
             }
 
             pause(1000); // In order not to overwhelm the program if the image is correct - sleep for 1 second
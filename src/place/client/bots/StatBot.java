@@ -89,7 +89,7 @@ public class StatBot extends Bot
         {
             for (int col = 0; col < getBoard().DIM; col++)
             {
-                if (getBoard().getTile(row, col).getColor() == COLOR)
+                if (getBoard().getColor(row, col) == COLOR)
                     colorTiles++;
             }
         }
@@ -25,13 +25,12 @@ public class SyncBot extends Bot
 
     private int[][] placeBoardTo2DArray (PlaceBoard board)
     {
-        PlaceTile[][] tileArray = board.getBoard();
-        int[][] integerArray = new int[tileArray.length][tileArray[0].length];
+        int[][] integerArray = new int[board.DIM][board.DIM];
 
-        for (int row = 0; row < tileArray.length; row++)
+        for (int row = 0; row < board.DIM; row++)
         {
-            for (int col = 0; col < tileArray[0].length; col++)
-                integerArray[row][col] = tileArray[row][col].getColor().getNumber();
+            for (int col = 0; col < board.DIM; col++)
+                integerArray[row][col] = board.getColor(row, col).getNumber();
         }
 
         return integerArray;
@@ -3,6 +3,7 @@ package place.client.gui;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.event.EventHandler;
+import javafx.geometry.Bounds;
 import javafx.geometry.Insets;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
@@ -17,6 +18,7 @@ import place.PlaceColor;
 import place.PlaceTile;
 import place.model.ClientModel;
 import place.model.Observer;
+import place.network.Region;
 
 import java.util.EnumSet;
 import java.util.List;
@@ -51,6 +53,10 @@ public class PlaceGUI extends Application implements Observer<ClientModel, Place
 	 * The scaling multiplier when zooming in
 	 */
 	private static final double SCALE_DELTA = 1.05;
+	/**
+	 * The width and height of a tile on the screen before zooming
+	 */
+	private static final int TILE_SIZE = 50;
 	/**
 	 * A set of colors that are so dark that any text overlayed on top of them should be displayed white.
 	 */
@@ -175,6 +181,14 @@ public class PlaceGUI extends Application implements Observer<ClientModel, Place
 		GridPane placeBoard = makePlaceBoard();
 		viewport.setContent(placeBoard);
 		rootNode.setCenter(viewport);
+		// Only ask the server for the changes of the tiles that can be seen, whenever scrolling, zooming or resizing
+		// the window changes which tiles those are
+		placeBoard.localToSceneTransformProperty().addListener(
+			(observable, oldTransform, newTransform) -> subscribeToVisibleTiles(viewport, placeBoard)
+		);
+		viewport.viewportBoundsProperty().addListener(
+			(observable, oldBounds, newBounds) -> subscribeToVisibleTiles(viewport, placeBoard)
+		);
 		// Section (2)
 		HBox colorControls = makeButtonRow(placeBoard);
 		rootNode.setBottom(colorControls);
@@ -205,7 +219,7 @@ public class PlaceGUI extends Application implements Observer<ClientModel, Place
 		for (int row = 1; row <= board.DIM; row++) {
 			for (int col = 1; col <= board.DIM; col++) {
 				// A visual representation of the tile
-				Rectangle guiTile = new Rectangle(50, 50);
+				Rectangle guiTile = new Rectangle(TILE_SIZE, TILE_SIZE);
 				tileGrid[row - 1][col - 1] = guiTile;
 				// Add a click listener to the rectangle so that it can do model.changeTile() when clicked on
 
@@ -233,6 +247,27 @@ public class PlaceGUI extends Application implements Observer<ClientModel, Place
 		return tiles;
 	}
 
+	/**
+	 * Subscribe the model to the tiles that can currently be seen through the viewport, so that the server only sends
+	 * the changes of those tiles.
+	 *
+	 * @param viewport the ScrollPane the board is seen through
+	 * @param placeBoard the GridPane of Rectangles, which may be zoomed in or out
+	 */
+	private void subscribeToVisibleTiles(ScrollPane viewport, GridPane placeBoard) {
+		// The part of the board that the viewport shows, in the coordinates of the unzoomed board
+		Bounds visible = placeBoard.sceneToLocal(viewport.localToScene(viewport.getLayoutBounds()));
+		int dim = tileGrid.length;
+
+		int firstRow = Math.max((int) Math.floor(visible.getMinY() / TILE_SIZE), 0);
+		int firstCol = Math.max((int) Math.floor(visible.getMinX() / TILE_SIZE), 0);
+		int lastRow = Math.min((int) Math.floor(visible.getMaxY() / TILE_SIZE), dim - 1);
+		int lastCol = Math.min((int) Math.floor(visible.getMaxX() / TILE_SIZE), dim - 1);
+
+		if (firstRow <= lastRow && firstCol <= lastCol)
+			model.subscribe(new Region(firstRow, firstCol, lastRow - firstRow + 1, lastCol - firstCol + 1));
+	}
+
 	/**
 	 * A utility method for generating an {@link HBox} of {@link ToggleButton}s to represent the row of
 	 * buttons at the bottom of the screen that the user can click on to select a color. The last button, home, rescales
@@ -306,6 +341,7 @@ public class PlaceGUI extends Application implements Observer<ClientModel, Place
 	 *     <li>The current owner of the tile</li>
 	 *     <li>The time the tile was changed in the format D/M/Y HH:MM:SS</li>
 	 *     <li>The tile color</li>
+	 *     <li>Who placed the tile before that, and when (asked for from the server when the tooltip is shown)</li>
 	 * </ul>
 	 *
 	 * @param tileData the tile with the information to create the tooltip about
@@ -323,17 +359,52 @@ public class PlaceGUI extends Application implements Observer<ClientModel, Place
 			tileData.getTime(),
 			tileData.getTime()
 		);
+		String text = String.format("%s\n%s\n%s", coordinate, tileOwner, timestamp);
 
-		Tooltip t = new Tooltip(
-			String.format("%s\n%s\n%s", coordinate, tileOwner, timestamp)
-		);
+		Tooltip t = new Tooltip(text);
 		t.setShowDelay(Duration.millis(500));
 		t.setGraphic(new Rectangle(30, 30, placeColor2JavaFXColor(tileData.getColor())));
 		t.setContentDisplay(ContentDisplay.LEFT);
+		// Only ask the server for the earlier placements once somebody actually looks at the tile
+		t.setOnShowing(e -> showEarlierPlacements(t, text, tileData.getRow(), tileData.getCol()));
 
 		return t;
 	}
 
+	/**
+	 * Ask the model for the recent placements of a tile on a thread of its own (the answer comes from the server), and
+	 * add the ones before the current placement to the tooltip of the tile.
+	 *
+	 * @param tooltip the tooltip of the tile
+	 * @param text the text of the tooltip about the current placement
+	 * @param row the row of the tile
+	 * @param col the column of the tile
+	 */
+	private void showEarlierPlacements(Tooltip tooltip, String text, int row, int col) {
+		Thread request = new Thread(() -> {
+			PlaceTile[] placements = model.getTileHistory(row, col);
+
+			if (placements == null || placements.length < 2)
+				return;
+
+			StringBuilder history = new StringBuilder(text).append("\n\nBefore that:");
+			for (int i = 1; i < placements.length; i++) {
+				history.append(String.format(
+					"\n%s - %s at %tl:%tM:%tS",
+					placements[i].getOwner(),
+					placements[i].getColor().getName(),
+					placements[i].getTime(),
+					placements[i].getTime(),
+					placements[i].getTime()
+				));
+			}
+
+			Platform.runLater(() -> tooltip.setText(history.toString()));
+		}, "Tile history");
+		request.setDaemon(true);
+		request.start();
+	}
+
 	/**
 	 * Method that is called when this GUI is notified by the ClientModel that a change in the state of the board has
 	 * occurred. This method will change the GUI to reflect the change in board state
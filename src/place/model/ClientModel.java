@@ -1,12 +1,20 @@
 package place.model;
 
+import place.OwnerDictionary;
 import place.PlaceBoard;
 import place.PlaceException;
 import place.PlaceTile;
+import place.network.Handshake;
+import place.network.PlaceCodec;
 import place.network.PlaceRequest;
+import place.network.Region;
+import place.network.Rejection;
+import place.network.TileHistory;
 import place.network.User;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -35,6 +43,12 @@ public class ClientModel extends Thread
      */
     public enum Status { RUNNING, READY, FINISHED, ERROR }
 
+    /** how many times the model tries to reconnect after losing its connection to the server */
+    private static final int RECONNECT_ATTEMPTS = 5;
+
+    /** the wait before the first reconnect attempt in milliseconds, which grows with every attempt */
+    private static final long RECONNECT_DELAY = 500;
+
     /** the actual board that holds the tiles */
     private PlaceBoard board;
 
@@ -47,6 +61,39 @@ public class ClientModel extends Thread
     /** the chosen username of the client */
     private String username;
 
+    /** the host name of the server, kept for reconnecting */
+    private String host;
+
+    /** the port of the server, kept for reconnecting */
+    private int port;
+
+    /** the run of the server that lastSequence belongs to, or 0 if the server did not say */
+    private long epoch;
+
+    /** the sequence number of the latest change this client has seen, or -1 before BOARD */
+    private long lastSequence = -1;
+
+    /** the binary protocol version agreed on with the server, or 0 for Java serialization */
+    private int protocolVersion;
+
+    /** the regions of the board this client shows, or null to be sent every change */
+    private Region[] regions;
+
+    /** makes threads that call changeTiles() wait for their turn, so that each gets its own result */
+    private final Object batchLock = new Object();
+
+    /** the results of CHANGE_TILES that have arrived from the server and are yet to be picked up */
+    private final ArrayDeque<boolean[]> batchResults = new ArrayDeque<>();
+
+    /** makes threads that call getTileHistory() wait for their turn, so that each gets its own answer */
+    private final Object historyLock = new Object();
+
+    /** the answers to GET_TILE_HISTORY that have arrived from the server and are yet to be picked up */
+    private final ArrayDeque<TileHistory> histories = new ArrayDeque<>();
+
+    /** counts the connections to the server, so that a thread waiting for a result can tell its connection was lost */
+    private volatile int connections;
+
     /** observers of the model (PlacePTUI and PlaceGUI - the "views") */
     private List<Observer<ClientModel, PlaceTile>> observers = new LinkedList<>();
 
@@ -106,7 +153,7 @@ public class ClientModel extends Thread
     {
         status = Status.FINISHED;
         try {
-            user.getOutputStream().writeUnshared(null);
+            user.send(null);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -128,8 +175,8 @@ public class ClientModel extends Thread
     {
         try
         {
-            String host = args[0];
-            int port = Integer.parseInt(args[1]);
+            host = args[0];
+            port = Integer.parseInt(args[1]);
 
             username = args[2];
             user = new User(host, port);
@@ -152,11 +199,14 @@ public class ClientModel extends Thread
         try
         {
             //Receives the expected BOARD PlaceRequest from the server and validates that it
-            PlaceRequest boardMessage = validateProtocol(user.getInputStream().readUnshared());
+            PlaceRequest boardMessage = validateProtocol(user.receive());
 
             //Verifies that boardMessage is not null and of type BOARD
             if (boardMessage != null && boardMessage.getType() == PlaceRequest.RequestType.BOARD)
+            {
                 board = (PlaceBoard)boardMessage.getData();
+                lastSequence = board.getVersion(); // The board's version is the server's latest change
+            }
 
             //Wakes up the view thread within getBoard()
             notify();
@@ -171,33 +221,96 @@ public class ClientModel extends Thread
 
     /**
      * This private helper method represents the login (or initial) portion of
-     * initiating a connection with the server
+     * initiating a connection with the server. When reconnecting, the login tells the server
+     * the latest change this client has seen, so that it may be sent only the changes it missed.
      *
      *
      * @param username the username of the client model
      * @return if the server was able to successfully receive LOGIN_SUCCESS and verify that the usernames matched
+     * @throws IOException if the connection with the server was lost
      */
-    private boolean login(String username)
+    private boolean login(String username) throws IOException
     {
         try
         {
-            // Creates the LOGIN PlaceRequest: login = [type = RequestType.LOGIN, data = username]
-            PlaceRequest<String> login = new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, username);
-            user.getOutputStream().writeUnshared(login); // Sends login to the server
+            // Creates the LOGIN PlaceRequest, offering to switch to the binary protocol:
+            // login = [type = RequestType.LOGIN, data = (username, PlaceCodec.VERSION, epoch, sequence, owners)]
+            PlaceRequest<Handshake> login = new PlaceRequest<>(PlaceRequest.RequestType.LOGIN,
+                    new Handshake(username, PlaceCodec.VERSION, epoch, lastSequence,
+                            board == null ? 0 : board.getOwners().size()));
+            user.send(login); // Sends login to the server
 
             // Accepts the incoming message from the server and validates it
-            // Expected message: loginSuccess = [type = RequestType.LOGIN_SUCCESS, data = username]
-            PlaceRequest loginSuccess = validateProtocol(user.getInputStream().readUnshared());
+            // Expected message: loginSuccess = [type = RequestType.LOGIN_SUCCESS, data = (username, version)]
+            PlaceRequest loginSuccess = validateProtocol(user.receive());
 
             //Only returns true if no errors were thrown, loginSuccess is formatted as expected, and usernames match
             if (loginSuccess != null && loginSuccess.getType() == PlaceRequest.RequestType.LOGIN_SUCCESS)
-                return loginSuccess.getData().equals(username);
+            {
+                if (!(loginSuccess.getData() instanceof Handshake)) // The server only speaks Java serialization
+                    return loginSuccess.getData().equals(username);
+
+                Handshake accepted = (Handshake)loginSuccess.getData();
+
+                if (accepted.getProtocolVersion() > 0) // Everything after LOGIN_SUCCESS is a binary frame
+                    user.useBinaryProtocol(board == null ? 0 : board.DIM);
+
+                protocolVersion = accepted.getProtocolVersion();
+                epoch = accepted.getEpoch();
+                return accepted.getUsername().equals(username);
+            }
         }
         catch (ClassNotFoundException e) {
             error("ClassNotFoundException: An error occurred receiving LOGIN_SUCCESSFUL from the server");
         }
         catch (IOException e) {
-            error("IOException: The connection with the server was lost when verifying LOGIN");
+            throw new IOException("IOException: The connection with the server was lost when verifying LOGIN", e);
+        }
+
+        return false;
+    }
+
+    /**
+     * This private helper method is called when the connection with the server is lost while the
+     * model is running. It opens a new connection and logs in again a few times, waiting a little
+     * longer before every attempt (the server may not have noticed yet that the old connection
+     * is gone and still consider the username taken). The server then either sends the changes
+     * this client missed or, if it no longer remembers them, the whole board, which the main loop
+     * handles like any other message.
+     *
+     * @return if the model logged in again
+     */
+    private boolean reconnect()
+    {
+        for (int attempt = 1; attempt <= RECONNECT_ATTEMPTS && status == Status.RUNNING; attempt++)
+        {
+            user.close();
+
+            try
+            {
+                Thread.sleep(RECONNECT_DELAY * attempt);
+
+                User reconnected = new User(host, port);
+
+                synchronized (this) {
+                    user = reconnected;
+                }
+
+                endBatches(); // The results of the old connection are never coming
+
+                if (login(username))
+                {
+                    System.out.println(username + " has reconnected to the server");
+                    sendSubscription(); // The new connection is sent every change until it subscribes again
+                    return true;
+                }
+            }
+            catch (InterruptedException e) {
+                return false;
+            }
+            catch (PlaceException | IOException e) {
+                System.err.println("Reconnect attempt " + attempt + " failed: " + e.getMessage());
+            }
         }
 
         return false;
@@ -218,16 +331,48 @@ public class ClientModel extends Thread
 
     /**
      * This method is called when ClientModel receives a TILE_CHANGED message from the server.
-     * It updates board and notifies the observers of the change within the state of the model.
+     * It looks up the owner's name, updates board and notifies the observers of the change within
+     * the state of the model.
      *
      * @param tile the PlaceTile that was modified inside board
      */
     private void changedTile(PlaceTile tile)
     {
+        tile.setOwner(board.getOwners().nameOf(tile.getOwnerId()));
         board.setTile(tile);
+        lastSequence = Math.max(lastSequence, tile.getSequence());
         notifyObservers(tile);
     }
 
+    /**
+     * This method is called when ClientModel receives a BOARD message after the initial one, which the
+     * server sends in place of the TILE_CHANGED messages this client fell too far behind on. The board
+     * that the view was given is kept: every tile that differs is copied into it and the observers are
+     * notified of it as if it had been a TILE_CHANGED.
+     *
+     * @param latest the server's current board
+     */
+    private void resync(PlaceBoard latest)
+    {
+        OwnerDictionary owners = board.getOwners();
+        OwnerDictionary latestOwners = latest.getOwners();
+
+        for (int id = owners.size(); id < latestOwners.size(); id++)
+            owners.add(latestOwners.entry(id));
+
+        for (int row = 0; row < board.DIM; row++)
+        {
+            for (int col = 0; col < board.DIM; col++)
+            {
+                if (board.getColor(row, col) != latest.getColor(row, col) ||
+                        board.getTime(row, col) != latest.getTime(row, col))
+                    changedTile(latest.getTile(row, col));
+            }
+        }
+
+        lastSequence = latest.getVersion();
+    }
+
     /**
      * Represents the CHANGE_TILE PlaceRequest: sends tile in a correctly
      * formatted PlaceRequest to the server
@@ -239,10 +384,222 @@ public class ClientModel extends Thread
         try
         {
             PlaceRequest<PlaceTile> changedTile = new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE, tile);
-            user.getOutputStream().writeUnshared(changedTile);
+            user.send(changedTile);
+        }
+        catch (IOException e) {
+            // The main loop notices the lost connection and reconnects; the tile is not placed
+            System.err.println("IOException: An error occurred sending CHANGE_TILE to server");
+            user.close();
+        }
+    }
+
+    /**
+     * Represents the CHANGE_TILES PlaceRequest: sends many tiles to the server at once and waits for
+     * it to tell which of them were changed. The server only changes tiles this way for users it
+     * trusts (admin tools, trusted bots), and applies all of them at once. The tiles themselves still
+     * arrive as tile changes like any other. A server that does not understand CHANGE_TILES is sent
+     * a CHANGE_TILE for every tile instead, and more tiles than one request may carry are sent in
+     * several.
+     *
+     * @param tiles the tiles that were changed by the client
+     * @return whether each tile was changed, or null if that is not known (the server does not understand
+     *         CHANGE_TILES, or the connection was lost before the answer arrived)
+     */
+    public boolean[] changeTiles(PlaceTile... tiles)
+    {
+        if (protocolVersion < PlaceCodec.VERSION)
+        {
+            for (PlaceTile tile : tiles)
+                changeTile(tile);
+
+            return null;
+        }
+
+        if (tiles.length > PlaceCodec.MAX_TILES)
+        {
+            boolean[] accepted = new boolean[tiles.length];
+
+            for (int from = 0; from < tiles.length; from += PlaceCodec.MAX_TILES)
+            {
+                boolean[] part = changeTiles(Arrays.copyOfRange(tiles, from,
+                        Math.min(from + PlaceCodec.MAX_TILES, tiles.length)));
+
+                if (part == null)
+                    return null;
+
+                System.arraycopy(part, 0, accepted, from, part.length);
+            }
+
+            return accepted;
+        }
+
+        synchronized (batchLock)
+        {
+            synchronized (batchResults)
+            {
+                int connection = connections;
+
+                try
+                {
+                    synchronized (this) {
+                        user.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILES, tiles));
+                    }
+
+                    while (batchResults.isEmpty() && connection == connections)
+                        batchResults.wait();
+                }
+                catch (IOException e) {
+                    // The main loop notices the lost connection and reconnects; the tiles are not placed
+                    System.err.println("IOException: An error occurred sending CHANGE_TILES to server");
+                    user.close();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                return connection == connections ? batchResults.poll() : null;
+            }
+        }
+    }
+
+    /**
+     * Hands the result of a CHANGE_TILES to the thread waiting for it in changeTiles().
+     *
+     * @param accepted whether each tile was changed
+     */
+    private void batchResult(boolean[] accepted)
+    {
+        synchronized (batchResults)
+        {
+            batchResults.add(accepted);
+            batchResults.notifyAll();
+        }
+    }
+
+    /**
+     * Represents the GET_TILE_HISTORY PlaceRequest: asks the server who placed a tile recently and
+     * when, and waits for the answer. The placements come with their owner names, newest first.
+     * A server that does not understand GET_TILE_HISTORY is not asked; all that is known then is
+     * the tile as this client's board has it.
+     *
+     * @param row the row of the tile
+     * @param col the column of the tile
+     * @return the last placements of the tile the server remembers, newest first, or null if the
+     *         connection was lost before the answer arrived
+     */
+    public PlaceTile[] getTileHistory(int row, int col)
+    {
+        if (protocolVersion < PlaceCodec.VERSION)
+        {
+            PlaceTile tile = board.getTile(row, col);
+            return tile.getTime() == 0 ? new PlaceTile[0] : new PlaceTile[] { tile };
+        }
+
+        synchronized (historyLock)
+        {
+            synchronized (histories)
+            {
+                int connection = connections;
+
+                try
+                {
+                    synchronized (this) {
+                        user.send(new PlaceRequest<>(PlaceRequest.RequestType.GET_TILE_HISTORY,
+                                new TileHistory(row, col)));
+                    }
+
+                    while (histories.isEmpty() && connection == connections)
+                        histories.wait();
+                }
+                catch (IOException e) {
+                    // The main loop notices the lost connection and reconnects
+                    System.err.println("IOException: An error occurred sending GET_TILE_HISTORY to server");
+                    user.close();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                TileHistory history = connection == connections ? histories.poll() : null;
+
+                if (history == null)
+                    return null;
+
+                for (PlaceTile placement : history.getPlacements())
+                    placement.setOwner(board.getOwners().nameOf(placement.getOwnerId()));
+
+                return history.getPlacements();
+            }
+        }
+    }
+
+    /**
+     * Hands the answer to a GET_TILE_HISTORY to the thread waiting for it in getTileHistory().
+     *
+     * @param history the last placements of the tile
+     */
+    private void tileHistory(TileHistory history)
+    {
+        synchronized (histories)
+        {
+            histories.add(history);
+            histories.notifyAll();
+        }
+    }
+
+    /**
+     * Releases the threads waiting for the results of CHANGE_TILES and the answers to
+     * GET_TILE_HISTORY sent over a connection that is gone
+     */
+    private void endBatches()
+    {
+        synchronized (batchResults)
+        {
+            connections++;
+            batchResults.clear();
+            batchResults.notifyAll();
+        }
+
+        synchronized (histories)
+        {
+            histories.clear();
+            histories.notifyAll();
+        }
+    }
+
+    /**
+     * Represents the SUBSCRIBE PlaceRequest: tells the server which regions of the board this client
+     * shows, so that it is only sent the changes of those regions (and of the tiles around them). The
+     * regions are remembered and sent again after a reconnect. Servers that do not understand
+     * SUBSCRIBE keep sending every change.
+     *
+     * @param regions the regions of the board this client shows
+     */
+    public synchronized void subscribe(Region... regions)
+    {
+        if (Arrays.equals(regions, this.regions))
+            return;
+
+        this.regions = regions.clone();
+        sendSubscription();
+    }
+
+    /**
+     * Sends the regions this client shows to the server, if it subscribed to any and the server
+     * understands SUBSCRIBE.
+     */
+    private synchronized void sendSubscription()
+    {
+        if (regions == null || protocolVersion < PlaceCodec.VERSION)
+            return;
+
+        try {
+            user.send(new PlaceRequest<>(PlaceRequest.RequestType.SUBSCRIBE, regions));
         }
         catch (IOException e) {
-            error("IOException: An error occurred sending CHANGE_TILE to server");
+            // The main loop notices the lost connection and reconnects, which sends the regions again
+            System.err.println("IOException: An error occurred sending SUBSCRIBE to server");
+            user.close();
         }
     }
 
@@ -261,7 +618,10 @@ public class ClientModel extends Thread
 
             switch (comm.getType()) // Checks if the data is in the correct form for what is expected of each RequestType
             {
-                case LOGIN_SUCCESS:
+                case LOGIN_SUCCESS: // A server without the binary protocol answers with a String, just like ERROR
+                    if (comm.getData() instanceof Handshake || comm.getData() instanceof String)
+                        return comm;
+                    break;
                 case ERROR:
                     if (comm.getData() instanceof String)
                         return comm;
@@ -273,6 +633,26 @@ public class ClientModel extends Thread
                 case TILE_CHANGED:
                     if (comm.getData() instanceof PlaceTile)
                         return comm;
+                    break;
+                case USER_ADDED:
+                    if (comm.getData() instanceof OwnerDictionary.Entry)
+                        return comm;
+                    break;
+                case TILES_CHANGED:
+                    if (comm.getData() instanceof PlaceTile[])
+                        return comm;
+                    break;
+                case CHANGE_TILES_RESULT:
+                    if (comm.getData() instanceof boolean[])
+                        return comm;
+                    break;
+                case TILE_REJECTED:
+                    if (comm.getData() instanceof Rejection)
+                        return comm;
+                    break;
+                case TILE_HISTORY:
+                    if (comm.getData() instanceof TileHistory)
+                        return comm;
             }
         }
 
@@ -300,8 +680,20 @@ public class ClientModel extends Thread
 
             while (status == Status.RUNNING) // The main loop
             {
-                // Validates the protocol coming from the server
-                PlaceRequest protocol = validateProtocol(user.getInputStream().readUnshared());
+                PlaceRequest protocol;
+
+                try {
+                    // Validates the protocol coming from the server
+                    protocol = validateProtocol(user.receive());
+                }
+                catch (IOException e)
+                {
+                    // A lost connection is only fatal if the model cannot reconnect
+                    if (status != Status.RUNNING || !reconnect())
+                        throw e;
+
+                    continue;
+                }
 
                 if (protocol != null) // If protocol does return null, status would have already changed to ERROR
                 {
@@ -315,6 +707,32 @@ public class ClientModel extends Thread
                             PlaceTile tile = (PlaceTile)protocol.getData();
                             changedTile(tile);
                             break;
+                        case TILES_CHANGED: // A server that broadcasts on a tick sends each tick's changes at once
+                            for (PlaceTile changed : (PlaceTile[])protocol.getData())
+                                changedTile(changed);
+                            break;
+                        case BOARD: // The server resends the board when this client fell too far behind
+                            resync((PlaceBoard)protocol.getData());
+                            break;
+                        case CHANGE_TILES_RESULT: // Tells the thread waiting in changeTiles() which tiles were changed
+                            batchResult((boolean[])protocol.getData());
+                            break;
+                        case TILE_REJECTED: // The server did not change a tile because it was placed too soon
+                            Rejection rejection = (Rejection)protocol.getData();
+                            System.err.printf("Tile (%d, %d) was not placed: wait %d ms before placing another\n",
+                                    rejection.getTile().getRow(), rejection.getTile().getCol(), rejection.getRetryAfter());
+                            break;
+                        case TILE_HISTORY: // Tells the thread waiting in getTileHistory() who placed the tile
+                            tileHistory((TileHistory)protocol.getData());
+                            break;
+                        case USER_ADDED: // Learns the name behind the next owner id, which is about to be used
+                            OwnerDictionary.Entry owner = (OwnerDictionary.Entry)protocol.getData();
+                            // Ids are handed out one after another, so any other id would leave a gap to fill
+                            if (owner.getId() != board.getOwners().size())
+                                throw new IOException("IOException: The server sent owner id " + owner.getId() +
+                                        " while " + board.getOwners().size() + " was next");
+                            board.getOwners().add(owner);
+                            break;
                         default: // If the message received was of an incorrect type - throw an IOException
                             throw new IOException("IOException: The message sent by the server is an invalid protocol");
                     }
@@ -334,6 +752,7 @@ public class ClientModel extends Thread
         finally // Dismisses a possible view thread and closes all connections
         {
             dismissViewThread();
+            endBatches();
             user.close();
         }
     }
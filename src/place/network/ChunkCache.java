@@ -0,0 +1,160 @@
+package place.network;
+
+import place.PlaceBoard;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * The compressed sections of the chunks of a board (see the BOARD frame of {@link PlaceCodec}), each kept
+ * along with the chunk version it was compressed at. Every client that logs in or resyncs is sent the whole board, and
+ * most of its chunks have not changed since the last client was sent it, so a chunk is only compressed again once it
+ * has changed rather than once per client.
+ * <p>
+ * There is one cache per board, shared by every thread that writes the board, and it goes away with the board.
+ *
+ * @author Joey Territo
+ */
+class ChunkCache
+{
+	/** The cache of every board that has been written, for as long as the board is around */
+	private static final Map<PlaceBoard, ChunkCache> CACHES = Collections.synchronizedMap(new WeakHashMap<>());
+
+	/** The compressed section of every chunk (row-major), or null until the chunk is first written */
+	private final byte[][] sections;
+
+	/** The chunk version every section was compressed at */
+	private final long[] versions;
+
+	/**
+	 * Create an empty cache.
+	 *
+	 * @param chunks the number of chunks of the board
+	 */
+	private ChunkCache(int chunks)
+	{
+		sections = new byte[chunks][];
+		versions = new long[chunks];
+	}
+
+	/**
+	 * Get the cache of a board.
+	 *
+	 * @param board the board
+	 * @return the cache, which is created the first time the board is written
+	 */
+	static ChunkCache of(PlaceBoard board)
+	{
+		return CACHES.computeIfAbsent(board, key -> new ChunkCache(key.CHUNKS * key.CHUNKS));
+	}
+
+	/**
+	 * Get the compressed section of a chunk as it is now. Only a chunk that changed since it was last compressed is
+	 * compressed again, which happens outside the chunk lock so that the chunk may go on changing meanwhile.
+	 *
+	 * @param board the board the cache belongs to
+	 * @param chunk the chunk number
+	 * @return the compressed section, which must not be modified
+	 * @throws IOException if the chunk could not be compressed
+	 */
+	byte[] section(PlaceBoard board, int chunk) throws IOException
+	{
+		int firstRow = board.getChunkRow(chunk);
+		int firstCol = board.getChunkCol(chunk);
+		int rows = Math.min(PlaceBoard.CHUNK, board.DIM - firstRow);
+		int cols = Math.min(PlaceBoard.CHUNK, board.DIM - firstCol);
+		long version;
+
+		synchronized (board.getChunkLock(chunk))
+		{
+			version = board.getChunkVersion(chunk);
+		}
+
+		synchronized (this)
+		{
+			if (sections[chunk] != null && versions[chunk] == version)
+				return sections[chunk];
+		}
+
+		byte[] colors = new byte[rows * cols];
+		int[] ownerIds = new int[rows * cols];
+		long[] times = new long[rows * cols];
+
+		synchronized (board.getChunkLock(chunk)) // Copies the chunk as it is at one version
+		{
+			version = board.getChunkVersion(chunk);
+
+			for (int i = 0; i < colors.length; i++)
+			{
+				int row = firstRow + i / cols;
+				int col = firstCol + i % cols;
+				colors[i] = (byte) board.getColor(row, col).getNumber();
+				ownerIds[i] = board.getOwnerId(row, col);
+				times[i] = board.getTime(row, col);
+			}
+		}
+
+		byte[] section = compress(colors, ownerIds, times);
+
+		synchronized (this)
+		{
+			if (sections[chunk] == null || versions[chunk] < version)
+			{
+				sections[chunk] = section;
+				versions[chunk] = version;
+			}
+		}
+
+		return section;
+	}
+
+	/**
+	 * Compress the tiles of a chunk: the colors as (varint run length, color byte) runs, followed by the varint owner id
+	 * and varlong time of every tile.
+	 *
+	 * @param colors the color number of every tile of the chunk (row-major)
+	 * @param ownerIds the owner id of every tile of the chunk
+	 * @param times the time of every tile of the chunk
+	 * @return the compressed section
+	 * @throws IOException if the section could not be written
+	 */
+	private static byte[] compress(byte[] colors, int[] ownerIds, long[] times) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater();
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new DeflaterOutputStream(bytes, deflater))))
+		{
+			for (int start = 0; start < colors.length; )
+			{
+				int end = start + 1;
+
+				while (end < colors.length && colors[end] == colors[start])
+					end++;
+
+				PlaceCodec.writeVarInt(out, end - start);
+				out.writeByte(colors[start]);
+				start = end;
+			}
+
+			for (int i = 0; i < colors.length; i++)
+			{
+				PlaceCodec.writeVarInt(out, ownerIds[i]);
+				PlaceCodec.writeVarLong(out, times[i]);
+			}
+		}
+		finally {
+			deflater.end();
+		}
+
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,110 @@
+package place.network;
+
+import java.io.Serializable;
+
+/**
+ * The data of a LOGIN request from a client that can speak the binary protocol of {@link PlaceCodec}, and of the
+ * LOGIN_SUCCESS the server answers it with. The client offers the newest binary protocol version it knows, and the
+ * server answers with the version both sides will use from then on (0 to keep using Java serialization). Clients that
+ * send a plain String username in their LOGIN are always answered with a plain String and never switched over.
+ * <p>
+ * A client that lost its connection can also ask to resume where it left off: its LOGIN carries the epoch of the
+ * server it was connected to and the sequence number of the last change it saw. If the server is still the same run
+ * (same epoch) and still remembers every change after that one, its LOGIN_SUCCESS carries the same sequence number and
+ * is followed by only the missed changes; otherwise it carries -1 and is followed by BOARD as usual.
+ *
+ * @author Joey Territo
+ */
+public class Handshake implements Serializable
+{
+	/** The username the client logs in with */
+	private final String username;
+
+	/** The binary protocol version offered (LOGIN) or accepted (LOGIN_SUCCESS), or 0 for Java serialization */
+	private final int protocolVersion;
+
+	/** The run of the server the client was connected to (LOGIN) or is connected to (LOGIN_SUCCESS), or 0 if none */
+	private final long epoch;
+
+	/** The last change the client saw (LOGIN) or the change it is resumed after (LOGIN_SUCCESS), or -1 if none */
+	private final long sequence;
+
+	/** How many owners the client already knows about (LOGIN only) */
+	private final int owners;
+
+	/**
+	 * Create a new Handshake.
+	 *
+	 * @param username the username the client logs in with
+	 * @param protocolVersion the binary protocol version, or 0 for Java serialization
+	 */
+	public Handshake(String username, int protocolVersion)
+	{
+		this(username, protocolVersion, 0, -1, 0);
+	}
+
+	/**
+	 * Create a new Handshake that asks to resume (LOGIN) or answers such a request (LOGIN_SUCCESS).
+	 *
+	 * @param username the username the client logs in with
+	 * @param protocolVersion the binary protocol version, or 0 for Java serialization
+	 * @param epoch the run of the server, or 0 if none
+	 * @param sequence the last change the client saw or is resumed after, or -1 if none
+	 * @param owners how many owners the client already knows about
+	 */
+	public Handshake(String username, int protocolVersion, long epoch, long sequence, int owners)
+	{
+		this.username = username;
+		this.protocolVersion = protocolVersion;
+		this.epoch = epoch;
+		this.sequence = sequence;
+		this.owners = owners;
+	}
+
+	/**
+	 * Get the username the client logs in with.
+	 *
+	 * @return the username
+	 */
+	public String getUsername() { return username; }
+
+	/**
+	 * Get the binary protocol version.
+	 *
+	 * @return the version, or 0 for Java serialization
+	 */
+	public int getProtocolVersion() { return protocolVersion; }
+
+	/**
+	 * Get the run of the server.
+	 *
+	 * @return the epoch, or 0 if none
+	 */
+	public long getEpoch() { return epoch; }
+
+	/**
+	 * Get the last change the client saw (LOGIN) or the change it is resumed after (LOGIN_SUCCESS).
+	 *
+	 * @return the sequence number, or -1 if none (for LOGIN_SUCCESS: BOARD follows)
+	 */
+	public long getSequence() { return sequence; }
+
+	/**
+	 * Get how many owners the client already knows about.
+	 *
+	 * @return the number of owners
+	 */
+	public int getOwners() { return owners; }
+
+	/**
+	 * Utility method for debugging only.
+	 *
+	 * @return the handshake as a string
+	 */
+	@Override
+	public String toString()
+	{
+		return "Handshake{username=" + username + ", protocolVersion=" + protocolVersion + ", epoch=" + epoch +
+				", sequence=" + sequence + ", owners=" + owners + '}';
+	}
+}
@@ -0,0 +1,659 @@
+package place.network;
+
+import place.OwnerDictionary;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.*;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The compact binary framing of {@link PlaceRequest}s that clients and the server switch to after they agree on it
+ * with a {@link Handshake} during LOGIN. Java serialization spends hundreds of bytes (class descriptors, field names)
+ * and a round of reflection on every tile change; a binary frame of a tile change is usually around a dozen bytes.
+ * <p>
+ * Every frame starts with a type byte: 0 marks the end of the stream (the client is leaving) and any other value is
+ * the ordinal of the {@link PlaceRequest.RequestType} plus one, which is why request types must only ever be added at
+ * the end of the enum. The rest of the frame depends on the type:
+ * <ul>
+ *     <li>CHANGE_TILE: varint row, varint column, color byte, varint owner id + 1 (0 when the tile has no owner id
+ *     yet), varlong time</li>
+ *     <li>TILE_CHANGED: the tile as in CHANGE_TILE, followed by the varlong sequence number the server gave it, so
+ *     that clients can resume after losing their connection</li>
+ *     <li>TILES_CHANGED: varint tile count, then each tile as in TILE_CHANGED</li>
+ *     <li>ERROR, LOGIN, LOGIN_SUCCESS: modified UTF-8 string</li>
+ *     <li>USER_ADDED: varint owner id, modified UTF-8 name. Owner ids are handed out densely, so the id is always
+ *     the size of the dictionary the receiver has so far</li>
+ *     <li>SUBSCRIBE: varint region count, then each region as varint row, varint column, varint row count, varint
+ *     column count</li>
+ *     <li>CHANGE_TILES: varint tile count, then each tile as in CHANGE_TILE</li>
+ *     <li>CHANGE_TILES_RESULT: varint count, then one bit per tile (set if the tile was changed), eight to a byte,
+ *     lowest bit first</li>
+ *     <li>TILE_REJECTED: the tile as in CHANGE_TILE, then the varlong wait in milliseconds</li>
+ *     <li>GET_TILE_HISTORY: varint row, varint column</li>
+ *     <li>TILE_HISTORY: varint row, varint column, varint placement count, then each placement as in CHANGE_TILE,
+ *     newest first</li>
+ *     <li>BOARD: the varlong sequence number of the last change the board reflects (its version), varint DIM, varint
+ *     owner count, the owner names from id 1 on, then one deflate-compressed section per chunk of
+ *     {@link PlaceBoard#CHUNK} x {@link PlaceBoard#CHUNK} tiles, chunks in row-major order, each preceded by its
+ *     varint length. A section holds the colors of the chunk's tiles (row-major within the chunk) as runs of
+ *     (varint run length, color byte), so a fresh or mostly uniform chunk costs a few bytes, followed by the varint
+ *     owner id and varlong time of every tile. A chunk is only compressed again once it has changed (see
+ *     {@link ChunkCache}), so sending the board to many clients costs little more than copying bytes.</li>
+ * </ul>
+ * Every frame a client sends is preceded by its varint length (see {@link #writeFramed}), so that a server can tell a
+ * request has arrived in full before it decodes it, and refuse one that is larger than {@link #MAX_FRAME} without
+ * reading it. The frames the server sends are not preceded by their length.
+ * <p>
+ * Nothing is allocated from a count before it is checked. Frames are read for a board of a known DIM (the one the
+ * server was configured with, or the one a client was last sent): a tile must lie on that board, a batch of tile
+ * changes carries at most every tile of it, a request carries at most {@link #MAX_TILES} tiles or regions, and an
+ * owner dictionary at most {@link #MAX_OWNERS} owners. The
+ * DIM a BOARD frame itself starts with is only bounded by {@link PlaceBoard#MAX_DIM}. A frame with a count,
+ * coordinate or color out of range is rejected as malformed.
+ * <p>
+ * Varints are unsigned LEB128: seven bits per byte, least significant group first, high bit set on all but the last
+ * byte.
+ *
+ * @author Joey Territo
+ */
+public class PlaceCodec
+{
+	/** The binary protocol version this codec speaks (0 in a {@link Handshake} stands for Java serialization) */
+	public static final int VERSION = 1;
+
+	/** The largest frame a client may send, in bytes (not counting its length) */
+	public static final int MAX_FRAME = 1 << 21;
+
+	/** The most tiles a CHANGE_TILES, regions a SUBSCRIBE, or placements a TILE_HISTORY may carry */
+	public static final int MAX_TILES = 1 << 14;
+
+	/** The most owners a BOARD may name, and one more than the largest owner id a frame may carry */
+	public static final int MAX_OWNERS = 1 << 24;
+
+	/** The type byte that marks the end of the stream */
+	private static final int END = 0;
+
+	/** All the request types, indexed by ordinal */
+	private static final PlaceRequest.RequestType[] TYPES = PlaceRequest.RequestType.values();
+
+	/** All the colors, indexed by color number */
+	private static final PlaceColor[] COLORS = PlaceColor.values();
+
+	/**
+	 * Write one request as a binary frame.
+	 *
+	 * @param out where the frame is written
+	 * @param request the request, or null to mark the end of the stream
+	 * @throws IOException if out throws an IOException
+	 */
+	public static void write(DataOutput out, PlaceRequest<?> request) throws IOException
+	{
+		if (request == null)
+		{
+			out.writeByte(END);
+			return;
+		}
+
+		out.writeByte(request.getType().ordinal() + 1);
+
+		switch (request.getType())
+		{
+			case BOARD:
+				writeVarLong(out, ((PlaceBoard) request.getData()).getVersion());
+				writeBoard(out, (PlaceBoard) request.getData());
+				break;
+			case CHANGE_TILE:
+				writeTile(out, (PlaceTile) request.getData());
+				break;
+			case TILE_CHANGED:
+				writeChange(out, (PlaceTile) request.getData());
+				break;
+			case TILES_CHANGED:
+				PlaceTile[] tiles = (PlaceTile[]) request.getData();
+				writeVarInt(out, tiles.length);
+				for (PlaceTile tile : tiles)
+					writeChange(out, tile);
+				break;
+			case SUBSCRIBE:
+				Region[] regions = (Region[]) request.getData();
+				writeVarInt(out, regions.length);
+				for (Region region : regions)
+				{
+					writeVarInt(out, region.getRow());
+					writeVarInt(out, region.getCol());
+					writeVarInt(out, region.getRows());
+					writeVarInt(out, region.getCols());
+				}
+				break;
+			case CHANGE_TILES:
+				PlaceTile[] changes = (PlaceTile[]) request.getData();
+				writeVarInt(out, changes.length);
+				for (PlaceTile tile : changes)
+					writeTile(out, tile);
+				break;
+			case CHANGE_TILES_RESULT:
+				boolean[] results = (boolean[]) request.getData();
+				writeVarInt(out, results.length);
+				for (int i = 0; i < results.length; i += 8)
+				{
+					int bits = 0;
+					for (int bit = 0; bit < 8 && i + bit < results.length; bit++)
+						bits |= results[i + bit] ? 1 << bit : 0;
+					out.writeByte(bits);
+				}
+				break;
+			case TILE_REJECTED:
+				Rejection rejection = (Rejection) request.getData();
+				writeTile(out, rejection.getTile());
+				writeVarLong(out, rejection.getRetryAfter());
+				break;
+			case GET_TILE_HISTORY:
+			case TILE_HISTORY:
+				TileHistory history = (TileHistory) request.getData();
+				writeVarInt(out, history.getRow());
+				writeVarInt(out, history.getCol());
+				if (request.getType() == PlaceRequest.RequestType.TILE_HISTORY)
+				{
+					writeVarInt(out, history.getPlacements().length);
+					for (PlaceTile placement : history.getPlacements())
+						writeTile(out, placement);
+				}
+				break;
+			case USER_ADDED:
+				OwnerDictionary.Entry entry = (OwnerDictionary.Entry) request.getData();
+				writeVarInt(out, entry.getId());
+				out.writeUTF(entry.getName());
+				break;
+			default:
+				out.writeUTF(String.valueOf(request.getData()));
+		}
+	}
+
+	/**
+	 * Read one binary frame.
+	 *
+	 * @param in where the frame is read from
+	 * @param DIM the square dimension of the board the frame's tiles must lie on (a BOARD frame brings its own)
+	 * @return the request, or null if the frame marks the end of the stream
+	 * @throws IOException if in throws an IOException or the frame is malformed
+	 */
+	public static PlaceRequest<?> read(DataInput in, int DIM) throws IOException
+	{
+		int type = in.readUnsignedByte();
+
+		if (type == END)
+			return null;
+		if (type > TYPES.length)
+			throw new IOException("Unknown frame type " + type);
+
+		PlaceRequest.RequestType requestType = TYPES[type - 1];
+
+		switch (requestType)
+		{
+			case BOARD:
+				long sequence = readVarLong(in);
+				PlaceBoard board = readBoard(in);
+				board.setVersion(sequence);
+				return new PlaceRequest<>(requestType, board);
+			case CHANGE_TILE:
+				return new PlaceRequest<>(requestType, readTile(in, DIM));
+			case TILE_CHANGED:
+				return new PlaceRequest<>(requestType, readChange(in, DIM));
+			case TILES_CHANGED:
+				PlaceTile[] tiles = new PlaceTile[readCount(in, DIM * DIM)];
+				for (int i = 0; i < tiles.length; i++)
+					tiles[i] = readChange(in, DIM);
+				return new PlaceRequest<>(requestType, tiles);
+			case SUBSCRIBE:
+				Region[] regions = new Region[readCount(in, MAX_TILES)];
+				for (int i = 0; i < regions.length; i++)
+					regions[i] = new Region(readVarInt(in), readVarInt(in), readVarInt(in), readVarInt(in));
+				return new PlaceRequest<>(requestType, regions);
+			case CHANGE_TILES:
+				PlaceTile[] changes = new PlaceTile[readCount(in, MAX_TILES)];
+				for (int i = 0; i < changes.length; i++)
+					changes[i] = readTile(in, DIM);
+				return new PlaceRequest<>(requestType, changes);
+			case CHANGE_TILES_RESULT:
+				boolean[] results = new boolean[readCount(in, MAX_TILES)];
+				for (int i = 0; i < results.length; i += 8)
+				{
+					int bits = in.readUnsignedByte();
+					for (int bit = 0; bit < 8 && i + bit < results.length; bit++)
+						results[i + bit] = (bits & 1 << bit) != 0;
+				}
+				return new PlaceRequest<>(requestType, results);
+			case TILE_REJECTED:
+				return new PlaceRequest<>(requestType, new Rejection(readTile(in, DIM), readVarLong(in)));
+			case GET_TILE_HISTORY:
+				return new PlaceRequest<>(requestType, new TileHistory(readVarInt(in), readVarInt(in)));
+			case TILE_HISTORY:
+				int row = readVarInt(in);
+				int col = readVarInt(in);
+				PlaceTile[] placements = new PlaceTile[readCount(in, MAX_TILES)];
+				for (int i = 0; i < placements.length; i++)
+					placements[i] = readTile(in, DIM);
+				return new PlaceRequest<>(requestType, new TileHistory(row, col, placements));
+			case USER_ADDED:
+				return new PlaceRequest<>(requestType, new OwnerDictionary.Entry(readCount(in, MAX_OWNERS - 1),
+						in.readUTF()));
+			default:
+				return new PlaceRequest<>(requestType, in.readUTF());
+		}
+	}
+
+	/**
+	 * Write one request as a binary frame preceded by its varint length, as clients do.
+	 *
+	 * @param out where the frame is written
+	 * @param request the request, or null to mark the end of the stream
+	 * @throws IOException if out throws an IOException, or the frame is larger than MAX_FRAME
+	 */
+	public static void writeFramed(DataOutput out, PlaceRequest<?> request) throws IOException
+	{
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		write(new DataOutputStream(frame), request);
+
+		if (frame.size() > MAX_FRAME)
+			throw new IOException("A frame of " + frame.size() + " bytes is larger than a server accepts");
+
+		writeVarInt(out, frame.size());
+		out.write(frame.toByteArray());
+	}
+
+	/**
+	 * Read one binary frame preceded by its varint length.
+	 *
+	 * @param in where the frame is read from
+	 * @param DIM the square dimension of the board the frame's tiles must lie on
+	 * @return the request, or null if the frame marks the end of the stream
+	 * @throws IOException if in throws an IOException, or the frame is too large or malformed
+	 */
+	public static PlaceRequest<?> readFramed(DataInput in, int DIM) throws IOException
+	{
+		byte[] frame = new byte[checkFrameLength(readVarInt(in))];
+		in.readFully(frame);
+		return decodeFrame(frame, 0, frame.length, DIM);
+	}
+
+	/**
+	 * Check the length a frame was sent with.
+	 *
+	 * @param length the length of the frame
+	 * @return the length
+	 * @throws IOException if the length is 0 or larger than MAX_FRAME
+	 */
+	public static int checkFrameLength(int length) throws IOException
+	{
+		if (length < 1 || length > MAX_FRAME)
+			throw new IOException("Frame of " + length + " bytes");
+
+		return length;
+	}
+
+	/**
+	 * Decode one frame that has arrived in full. The frame must be exactly as long as it was sent.
+	 *
+	 * @param bytes the bytes the frame is in
+	 * @param offset where the frame starts
+	 * @param length the length of the frame
+	 * @param DIM the square dimension of the board the frame's tiles must lie on
+	 * @return the request, or null if the frame marks the end of the stream
+	 * @throws IOException if the frame is malformed
+	 */
+	public static PlaceRequest<?> decodeFrame(byte[] bytes, int offset, int length, int DIM) throws IOException
+	{
+		ByteArrayInputStream frame = new ByteArrayInputStream(bytes, offset, length);
+		PlaceRequest<?> request;
+
+		try {
+			request = read(new DataInputStream(frame), DIM);
+		}
+		catch (EOFException e) {
+			throw new IOException("Malformed frame: it ends early");
+		}
+
+		if (frame.available() > 0)
+			throw new IOException("Malformed frame: " + frame.available() + " bytes are left over");
+
+		return request;
+	}
+
+	/**
+	 * Write the body of a tile frame.
+	 *
+	 * @param out where the tile is written
+	 * @param tile the tile
+	 * @throws IOException if out throws an IOException
+	 */
+	public static void writeTile(DataOutput out, PlaceTile tile) throws IOException
+	{
+		writeVarInt(out, tile.getRow());
+		writeVarInt(out, tile.getCol());
+		out.writeByte(tile.getColor().getNumber());
+		writeVarInt(out, tile.getOwnerId() + 1);
+		writeVarLong(out, tile.getTime());
+	}
+
+	/**
+	 * Read the body of a tile frame.
+	 *
+	 * @param in where the tile is read from
+	 * @param DIM the square dimension of the board the tile must lie on
+	 * @return the tile (its owner name is left for the receiver to look up)
+	 * @throws IOException if in throws an IOException, or the row, column, color or owner id is out of range
+	 */
+	public static PlaceTile readTile(DataInput in, int DIM) throws IOException
+	{
+		int row = readCoordinate(in, DIM);
+		int col = readCoordinate(in, DIM);
+		PlaceColor color = readColor(in);
+		int ownerId = readCount(in, MAX_OWNERS) - 1;
+
+		PlaceTile tile = new PlaceTile(row, col, null, color, readVarLong(in));
+		tile.setOwnerId(ownerId);
+		return tile;
+	}
+
+	/**
+	 * Write a tile the server has accepted: the tile, followed by its sequence number.
+	 *
+	 * @param out where the tile is written
+	 * @param tile the tile
+	 * @throws IOException if out throws an IOException
+	 */
+	private static void writeChange(DataOutput out, PlaceTile tile) throws IOException
+	{
+		writeTile(out, tile);
+		writeVarLong(out, tile.getSequence());
+	}
+
+	/**
+	 * Read a tile the server has accepted.
+	 *
+	 * @param in where the tile is read from
+	 * @param DIM the square dimension of the board the tile must lie on
+	 * @return the tile, with its sequence number
+	 * @throws IOException if in throws an IOException, or the tile is out of range
+	 */
+	private static PlaceTile readChange(DataInput in, int DIM) throws IOException
+	{
+		PlaceTile tile = readTile(in, DIM);
+		tile.setSequence(readVarLong(in));
+		return tile;
+	}
+
+	/**
+	 * Write the body of a BOARD frame, after its sequence number.
+	 *
+	 * @param out where the board is written
+	 * @param board the board
+	 * @throws IOException if out throws an IOException
+	 */
+	private static void writeBoard(DataOutput out, PlaceBoard board) throws IOException
+	{
+		writeOwners(out, board);
+		ChunkCache cache = ChunkCache.of(board);
+
+		for (int chunk = 0; chunk < board.CHUNKS * board.CHUNKS; chunk++)
+		{
+			byte[] section = cache.section(board, chunk);
+			writeVarInt(out, section.length);
+			out.write(section);
+		}
+	}
+
+	/**
+	 * Read the body of a BOARD frame, after its sequence number.
+	 *
+	 * @param in where the board is read from
+	 * @return the board
+	 * @throws IOException if in throws an IOException or a section is malformed
+	 */
+	private static PlaceBoard readBoard(DataInput in) throws IOException
+	{
+		int DIM = readDIM(in);
+		PlaceBoard board = new PlaceBoard(DIM, readOwners(in));
+		byte[] colors = new byte[PlaceBoard.CHUNK * PlaceBoard.CHUNK];
+
+		for (int chunk = 0; chunk < board.CHUNKS * board.CHUNKS; chunk++)
+		{
+			int firstRow = board.getChunkRow(chunk);
+			int firstCol = board.getChunkCol(chunk);
+			int cols = Math.min(PlaceBoard.CHUNK, DIM - firstCol);
+			int tiles = Math.min(PlaceBoard.CHUNK, DIM - firstRow) * cols;
+
+			try (DataInputStream section = readSection(in, tiles))
+			{
+				for (int index = 0; index < tiles; )
+				{
+					int runLength = readVarInt(section);
+					byte color = (byte) readColor(section).getNumber();
+
+					if (runLength <= 0 || runLength > tiles - index)
+						throw new IOException("Malformed BOARD: run of " + runLength + " tiles in chunk " + chunk);
+
+					for (int end = index + runLength; index < end; index++)
+						colors[index] = color;
+				}
+
+				for (int i = 0; i < tiles; i++)
+					board.setTile(firstRow + i / cols, firstCol + i % cols, COLORS[colors[i]], readVarInt(section),
+							readVarLong(section));
+			}
+		}
+
+		return board;
+	}
+
+	/**
+	 * Write the varint DIM, varint owner count and owner names that start the body of a BOARD frame.
+	 *
+	 * @param out where the owners are written
+	 * @param board the board
+	 * @throws IOException if out throws an IOException
+	 */
+	private static void writeOwners(DataOutput out, PlaceBoard board) throws IOException
+	{
+		OwnerDictionary owners = board.getOwners();
+		int ownerCount = owners.size();
+
+		writeVarInt(out, board.DIM);
+		writeVarInt(out, ownerCount);
+
+		for (int id = 1; id < ownerCount; id++)
+			out.writeUTF(owners.nameOf(id));
+	}
+
+	/**
+	 * Read the varint owner count and owner names of a BOARD frame.
+	 *
+	 * @param in where the owners are read from
+	 * @return a dictionary of the owners
+	 * @throws IOException if in throws an IOException, or there are more than MAX_OWNERS owners
+	 */
+	private static OwnerDictionary readOwners(DataInput in) throws IOException
+	{
+		int ownerCount = readCount(in, MAX_OWNERS);
+		OwnerDictionary owners = new OwnerDictionary();
+
+		for (int id = 1; id < ownerCount; id++)
+			owners.add(new OwnerDictionary.Entry(id, in.readUTF()));
+
+		return owners;
+	}
+
+	/**
+	 * Read a varint length followed by that many bytes of deflate-compressed data.
+	 *
+	 * @param in where the section is read from
+	 * @param tiles the number of tiles the section holds
+	 * @return a stream of the decompressed section
+	 * @throws IOException if in throws an IOException, or the section is longer than that many tiles can need
+	 */
+	private static DataInputStream readSection(DataInput in, int tiles) throws IOException
+	{
+		// At most a color run, a varint owner id and a varlong time per tile, which deflate only grows by a few bytes
+		byte[] compressed = new byte[readCount(in, 24 * tiles + 64)];
+		in.readFully(compressed);
+
+		return new DataInputStream(new BufferedInputStream(
+				new InflaterInputStream(new ByteArrayInputStream(compressed))));
+	}
+
+	/**
+	 * Read a varint count (or any other non-negative number) that must not be larger than max.
+	 *
+	 * @param in where the count is read from
+	 * @param max the largest count allowed
+	 * @return the count
+	 * @throws IOException if in throws an IOException, or the count is negative or larger than max
+	 */
+	private static int readCount(DataInput in, int max) throws IOException
+	{
+		int count = readVarInt(in);
+
+		if (count < 0 || count > max)
+			throw new IOException("Malformed frame: " + Integer.toUnsignedString(count) + " is out of range (at most " +
+					max + ")");
+
+		return count;
+	}
+
+	/**
+	 * Read the row or column of a tile.
+	 *
+	 * @param in where the coordinate is read from
+	 * @param DIM the square dimension of the board the tile must lie on
+	 * @return the coordinate
+	 * @throws IOException if in throws an IOException, or the coordinate is not on the board
+	 */
+	private static int readCoordinate(DataInput in, int DIM) throws IOException
+	{
+		int coordinate = readVarInt(in);
+
+		if (coordinate < 0 || coordinate >= DIM)
+			throw new IOException("Malformed frame: " + Integer.toUnsignedString(coordinate) +
+					" is not a row or column of a board of " + DIM);
+
+		return coordinate;
+	}
+
+	/**
+	 * Read the DIM a BOARD frame starts with.
+	 *
+	 * @param in where the DIM is read from
+	 * @return the DIM
+	 * @throws IOException if in throws an IOException, or the DIM is 0 or larger than PlaceBoard.MAX_DIM
+	 */
+	private static int readDIM(DataInput in) throws IOException
+	{
+		int DIM = readCount(in, PlaceBoard.MAX_DIM);
+
+		if (DIM == 0)
+			throw new IOException("Malformed BOARD: a board of no tiles");
+
+		return DIM;
+	}
+
+	/**
+	 * Read a color byte.
+	 *
+	 * @param in where the color is read from
+	 * @return the color
+	 * @throws IOException if in throws an IOException, or the byte is not the number of a color
+	 */
+	private static PlaceColor readColor(DataInput in) throws IOException
+	{
+		int color = in.readUnsignedByte();
+
+		if (color >= COLORS.length)
+			throw new IOException("Malformed frame: there is no color " + color);
+
+		return COLORS[color];
+	}
+
+	/**
+	 * Write a non-negative int as an unsigned LEB128 varint.
+	 *
+	 * @param out where the varint is written
+	 * @param value the value
+	 * @throws IOException if out throws an IOException
+	 */
+	public static void writeVarInt(DataOutput out, int value) throws IOException
+	{
+		while ((value & ~0x7F) != 0)
+		{
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+
+		out.writeByte(value);
+	}
+
+	/**
+	 * Read an unsigned LEB128 varint.
+	 *
+	 * @param in where the varint is read from
+	 * @return the value
+	 * @throws IOException if in throws an IOException or the varint is too long
+	 */
+	public static int readVarInt(DataInput in) throws IOException
+	{
+		int value = 0;
+
+		for (int shift = 0; shift < 35; shift += 7)
+		{
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+
+			if ((b & 0x80) == 0)
+				return value;
+		}
+
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Write a non-negative long as an unsigned LEB128 varint.
+	 *
+	 * @param out where the varint is written
+	 * @param value the value
+	 * @throws IOException if out throws an IOException
+	 */
+	public static void writeVarLong(DataOutput out, long value) throws IOException
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+
+		out.writeByte((int) value);
+	}
+
+	/**
+	 * Read an unsigned LEB128 varint into a long.
+	 *
+	 * @param in where the varint is read from
+	 * @return the value
+	 * @throws IOException if in throws an IOException or the varint is too long
+	 */
+	public static long readVarLong(DataInput in) throws IOException
+	{
+		long value = 0;
+
+		for (int shift = 0; shift < 70; shift += 7)
+		{
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+
+			if ((b & 0x80) == 0)
+				return value;
+		}
+
+		throw new IOException("Malformed varint");
+	}
+}
@@ -5,15 +5,24 @@ import java.io.Serializable;
 /**
  * This is the class that represents the requests that are transmitted between
  * the server and clients.  These objects will be sent and received using
- * PlaceExchange.
+ * PlaceExchange, either as Java-serialized objects or, once both sides have
+ * agreed on it during LOGIN, as the binary frames of PlaceCodec.
  *
  * @param <E> the data type (depends on the request type):<br>
  *      BOARD: PlaceBoard object<br>
  *      CHANGE_TILE: PlaceTile object<br>
  *      ERROR: String<br>
- *      LOGIN: String<br>
- *      LOGIN_SUCCESS: String<br>
+ *      LOGIN: String or Handshake object<br>
+ *      LOGIN_SUCCESS: String or Handshake object<br>
  *      TILE_CHANGED: PlaceTile object<br>
+ *      USER_ADDED: OwnerDictionary.Entry object<br>
+ *      TILES_CHANGED: PlaceTile[] object<br>
+ *      SUBSCRIBE: Region[] object<br>
+ *      CHANGE_TILES: PlaceTile[] object<br>
+ *      CHANGE_TILES_RESULT: boolean[] object<br>
+ *      TILE_REJECTED: Rejection object<br>
+ *      GET_TILE_HISTORY: TileHistory object<br>
+ *      TILE_HISTORY: TileHistory object<br>
  *
  * @author Sean Strout @ RIT CS
  */
@@ -21,8 +30,9 @@ public class PlaceRequest<E extends Serializable> implements Serializable {
     public enum RequestType {
         /**
          * After a successful client login, the server will send the current
-         * Board to the client.  This is only sent once - afterwards the
-         * only information transmitted are the tile changes.
+         * Board to the client.  Afterwards the only information transmitted
+         * are the tile changes, unless the client falls so far behind on them
+         * that the server sends the current Board again instead.
          */
         BOARD,
 
@@ -61,7 +71,81 @@ public class PlaceRequest<E extends Serializable> implements Serializable {
          * The clients should update their view of the board each time
          * a tile change arrives.
          */
-        TILE_CHANGED
+        TILE_CHANGED,
+
+        /**
+         * Used by the server to tell a client the name behind an owner id
+         * before that id first shows up in a TILE_CHANGED.  The BOARD already
+         * carries every owner known when it was sent, so only owners that
+         * appear afterwards are sent this way.
+         */
+        USER_ADDED,
+
+        /**
+         * Used by a server that broadcasts on a tick to send every tile that
+         * changed during the tick at once, in the order they last changed.
+         * It will contain an array of Tile objects, and the clients should
+         * handle each of them like a TILE_CHANGED.  Only sent to clients that
+         * speak the binary protocol.
+         */
+        TILES_CHANGED,
+
+        /**
+         * Used by a client to tell the server which parts of the board it
+         * shows.  It will contain an array of Region objects, and from then on
+         * the server only sends the client the changes of the tiles in (or
+         * near) them, preceded by the current tiles of any part of the board
+         * that was not covered before.  A client that never sends it is sent
+         * every change.  Only understood by servers that speak the binary
+         * protocol.
+         */
+        SUBSCRIBE,
+
+        /**
+         * A trusted client's request to the server to change many tiles at
+         * once, such as an admin tool seeding or restoring an image.  It will
+         * contain an array of Tile objects.  The server applies every valid
+         * tile at once, so no other change lands in between, and broadcasts
+         * them as a single TILES_CHANGED.  Only understood by servers that
+         * speak the binary protocol.
+         */
+        CHANGE_TILES,
+
+        /**
+         * Used by the server to answer a CHANGE_TILES.  It will contain an
+         * array of booleans, one for each tile of the request in the same
+         * order, telling whether that tile was changed.  The tiles themselves
+         * still arrive as tile changes like any other.  A CHANGE_TILES sent
+         * faster than the server allows tiles to be placed changes nothing.
+         */
+        CHANGE_TILES_RESULT,
+
+        /**
+         * Used by the server to answer a CHANGE_TILE that came faster than
+         * the server allows the user to place tiles.  It will contain a
+         * Rejection object with the tile, which was not changed, and how long
+         * the user has to wait.  Only sent to clients that speak the binary
+         * protocol; the CHANGE_TILEs of clients that still use Java
+         * serialization are made later instead, once the user has waited.
+         */
+        TILE_REJECTED,
+
+        /**
+         * A client's request to the server for the recent placements of a
+         * tile, such as a GUI showing who drew over the tile in a tooltip.
+         * It will contain a TileHistory object with the tile's coordinates.
+         * Only understood by servers that speak the binary protocol.
+         */
+        GET_TILE_HISTORY,
+
+        /**
+         * Used by the server to answer a GET_TILE_HISTORY.  It will contain a
+         * TileHistory object with the last placements of the tile the server
+         * remembers, newest first.  A server that keeps no placement history
+         * only sends the tile's current placement (or none if the tile was
+         * never changed).
+         */
+        TILE_HISTORY
     }
 
     /** The request type */
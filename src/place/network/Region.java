@@ -0,0 +1,100 @@
+package place.network;
+
+import java.io.Serializable;
+
+/**
+ * A rectangle of tiles on the board, the unit a client subscribes to with SUBSCRIBE. A client only wants the changes
+ * of the tiles it shows, for example the part of the board a zoomed-in GUI can see.
+ *
+ * @author Joey Territo
+ */
+public class Region implements Serializable
+{
+	/** The first row of the region */
+	private final int row;
+
+	/** The first column of the region */
+	private final int col;
+
+	/** The number of rows the region covers */
+	private final int rows;
+
+	/** The number of columns the region covers */
+	private final int cols;
+
+	/**
+	 * Create a new Region.
+	 *
+	 * @param row the first row
+	 * @param col the first column
+	 * @param rows the number of rows
+	 * @param cols the number of columns
+	 */
+	public Region(int row, int col, int rows, int cols)
+	{
+		this.row = row;
+		this.col = col;
+		this.rows = rows;
+		this.cols = cols;
+	}
+
+	/**
+	 * Get the first row of the region.
+	 *
+	 * @return the row
+	 */
+	public int getRow() { return row; }
+
+	/**
+	 * Get the first column of the region.
+	 *
+	 * @return the column
+	 */
+	public int getCol() { return col; }
+
+	/**
+	 * Get the number of rows the region covers.
+	 *
+	 * @return the number of rows
+	 */
+	public int getRows() { return rows; }
+
+	/**
+	 * Get the number of columns the region covers.
+	 *
+	 * @return the number of columns
+	 */
+	public int getCols() { return cols; }
+
+	/**
+	 * Compare this region to another object.
+	 *
+	 * @param other the other object
+	 * @return is the other object a region covering the same tiles
+	 */
+	@Override
+	public boolean equals(Object other)
+	{
+		if (!(other instanceof Region))
+			return false;
+
+		Region region = (Region) other;
+		return row == region.row && col == region.col && rows == region.rows && cols == region.cols;
+	}
+
+	/**
+	 * Get a hash code consistent with equals.
+	 *
+	 * @return the hash code
+	 */
+	@Override
+	public int hashCode() { return ((row * 31 + col) * 31 + rows) * 31 + cols; }
+
+	/**
+	 * Utility method for debugging only.
+	 *
+	 * @return a string representation of the region
+	 */
+	@Override
+	public String toString() { return String.format("Region{row=%d, col=%d, rows=%d, cols=%d}", row, col, rows, cols); }
+}
@@ -0,0 +1,54 @@
+package place.network;
+
+import place.PlaceTile;
+
+import java.io.Serializable;
+
+/**
+ * The data of a TILE_REJECTED the server answers a CHANGE_TILE with when the user is placing tiles faster than the
+ * server allows. The tile was not changed; the client may try again once the user's wait is over.
+ *
+ * @author Joey Territo
+ */
+public class Rejection implements Serializable
+{
+	/** The tile that was not changed */
+	private final PlaceTile tile;
+
+	/** How long the user has to wait before placing another tile, in milliseconds */
+	private final long retryAfter;
+
+	/**
+	 * Create a new Rejection.
+	 *
+	 * @param tile the tile that was not changed
+	 * @param retryAfter how long the user has to wait before placing another tile, in milliseconds
+	 */
+	public Rejection(PlaceTile tile, long retryAfter)
+	{
+		this.tile = tile;
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * Get the tile that was not changed.
+	 *
+	 * @return the tile
+	 */
+	public PlaceTile getTile() { return tile; }
+
+	/**
+	 * Get how long the user has to wait before placing another tile.
+	 *
+	 * @return the wait in milliseconds
+	 */
+	public long getRetryAfter() { return retryAfter; }
+
+	/**
+	 * Utility method for debugging only.
+	 *
+	 * @return a string representation of the rejection
+	 */
+	@Override
+	public String toString() { return "Rejection{tile=" + tile + ", retryAfter=" + retryAfter + '}'; }
+}
@@ -0,0 +1,81 @@
+package place.network;
+
+import place.PlaceTile;
+
+import java.io.Serializable;
+
+/**
+ * The data of a GET_TILE_HISTORY a client asks the server for the recent placements of a tile with, and of the
+ * TILE_HISTORY the server answers with. The question only carries the tile's coordinates; the answer also carries the
+ * last placements of the tile the server remembers, newest first.
+ *
+ * @author Joey Territo
+ */
+public class TileHistory implements Serializable
+{
+	/** The row of the tile */
+	private final int row;
+
+	/** The column of the tile */
+	private final int col;
+
+	/** The last placements of the tile, newest first */
+	private final PlaceTile[] placements;
+
+	/**
+	 * Create a new TileHistory that asks for the placements of a tile.
+	 *
+	 * @param row the row of the tile
+	 * @param col the column of the tile
+	 */
+	public TileHistory(int row, int col)
+	{
+		this(row, col, new PlaceTile[0]);
+	}
+
+	/**
+	 * Create a new TileHistory that answers with the placements of a tile.
+	 *
+	 * @param row the row of the tile
+	 * @param col the column of the tile
+	 * @param placements the last placements of the tile, newest first
+	 */
+	public TileHistory(int row, int col, PlaceTile[] placements)
+	{
+		this.row = row;
+		this.col = col;
+		this.placements = placements;
+	}
+
+	/**
+	 * Get the row of the tile.
+	 *
+	 * @return the row
+	 */
+	public int getRow() { return row; }
+
+	/**
+	 * Get the column of the tile.
+	 *
+	 * @return the column
+	 */
+	public int getCol() { return col; }
+
+	/**
+	 * Get the last placements of the tile.
+	 *
+	 * @return the placements, newest first (empty in a question)
+	 */
+	public PlaceTile[] getPlacements() { return placements; }
+
+	/**
+	 * Utility method for debugging only.
+	 *
+	 * @return a string representation of the history
+	 */
+	@Override
+	public String toString()
+	{
+		return "TileHistory{row=" + row + ", col=" + col + ", placements=" + placements.length + '}';
+	}
+}
@@ -1,11 +1,9 @@
 package place.network;
 
+import place.PlaceBoard;
 import place.PlaceException;
 
-import java.io.Closeable;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.*;
 import java.net.Socket;
 
 /**
@@ -14,6 +12,11 @@ import java.net.Socket;
  * change has occurred, this class gets that connection and then can immediately forward it to the model. Likewise, a
  * model can tell this User to convey the server some information.
  * <p>
+ * Requests start out as Java-serialized objects. Once the server has accepted the binary protocol during LOGIN (see
+ * {@link Handshake}), {@link #useBinaryProtocol(int)} switches both directions over to {@link PlaceCodec} frames (the
+ * frames this user sends are preceded by their length). The tiles of a frame must lie on the board the server sent
+ * last, so a tile that arrives before any BOARD is a malformed frame.
+ * <p>
  * Last modified: 11/21/19
  *
  * @author Joey Territo
@@ -32,6 +35,18 @@ public class User implements Closeable {
 	 * The {@link ObjectOutputStream} used as a gateway to writing to the server.
 	 */
 	private ObjectOutputStream out;
+	/**
+	 * The stream binary frames are read from, or null while requests are still Java-serialized.
+	 */
+	private volatile DataInputStream binaryIn;
+	/**
+	 * The stream binary frames are written to, or null while requests are still Java-serialized.
+	 */
+	private volatile DataOutputStream binaryOut;
+	/**
+	 * The square dimension of the board the tiles the server sends lie on, or 0 before it has sent one.
+	 */
+	private int DIM;
 
 	/**
 	 * Create a new User by attempting to connect to a server with a given host name and port number. The {@link Socket}
@@ -71,6 +86,55 @@ public class User implements Closeable {
 		return out;
 	}
 
+	/**
+	 * Switch both directions of the connection over to the binary protocol of {@link PlaceCodec}. Must only be called
+	 * once the server has accepted it, i.e. right after its LOGIN_SUCCESS has been read.
+	 *
+	 * @param DIM the square dimension of the board the model already has, or 0 if it has none
+	 * @throws IOException if the socket's streams could not be opened
+	 */
+	public synchronized void useBinaryProtocol(int DIM) throws IOException {
+		this.DIM = DIM;
+		binaryIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		binaryOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	/**
+	 * Send a request to the server using whichever protocol the connection is using.
+	 *
+	 * @param request the request, or null to tell the server this user is leaving
+	 * @throws IOException if the request could not be sent
+	 */
+	public void send(PlaceRequest<?> request) throws IOException {
+		if (binaryOut == null) {
+			getOutputStream().writeUnshared(request);
+		} else {
+			synchronized (binaryOut) {
+				PlaceCodec.writeFramed(binaryOut, request);
+				binaryOut.flush();
+			}
+		}
+	}
+
+	/**
+	 * Wait for the next request from the server using whichever protocol the connection is using.
+	 *
+	 * @return the request (a Java-serialized request may be of any type and must be validated)
+	 * @throws IOException if the connection was lost or a frame was malformed
+	 * @throws ClassNotFoundException if a Java-serialized request is of an unknown class
+	 */
+	public Object receive() throws IOException, ClassNotFoundException {
+		if (binaryIn == null)
+			return getInputStream().readUnshared();
+
+		PlaceRequest<?> request = PlaceCodec.read(binaryIn, DIM);
+
+		if (request != null && request.getType() == PlaceRequest.RequestType.BOARD)
+			DIM = ((PlaceBoard) request.getData()).DIM;
+
+		return request;
+	}
+
 	/**
 	 * Close the {@link Socket} and I/O streams that this User holds.
 	 */
@@ -0,0 +1,477 @@
+package place.server;
+
+import place.OwnerDictionary;
+import place.PlaceBoard;
+import place.PlaceException;
+import place.PlaceTile;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The history of the board, kept in a directory so that the board can be rebuilt as it was at any earlier change or
+ * time, for moderation and for looking back on an event. Every so many changes the history writes a keyframe, a
+ * {@link Snapshot} of the board holding exactly the changes up to it, and the changes after a keyframe are appended to
+ * a segment of their own, a {@link Journal} named after the keyframe. Rebuilding the board loads the last keyframe
+ * before the point asked for and replays its segment up to that point, so it takes as long as the distance from that
+ * keyframe, never longer than the keyframe interval.
+ * <p>
+ * Recording a change never waits for the disk: the change is queued, and a background thread applies it to a board of
+ * the history's own (which takes as much memory as an on-heap board) and appends it to the segment. Owner ids in the
+ * history are the history's own, so that every keyframe and its segment can be read without the server.
+ *
+ * @author Dmitry Selin
+ */
+class BoardHistory extends Thread
+{
+    /** the number of changes that are applied before the segment is committed */
+    private static final int BATCH = 4096;
+
+    /** how long the history thread waits for a change before it checks whether it was closed, in milliseconds */
+    private static final long POLL_MS = 200;
+
+    /** how long the history waits for a missing change before it skips it, in milliseconds */
+    private static final long GAP_MS = 1000;
+
+    /** how many changes that came ahead of a missing one are held before it is skipped without waiting any longer */
+    private static final int MAX_EARLY = 16 * BATCH;
+
+    /** the keyframes in the directory, keyed by the sequence number of the last change they hold */
+    private final ConcurrentSkipListMap<Long, Path> keyframes = new ConcurrentSkipListMap<>();
+
+    /** the sequence number of the last change of every keyframe, keyed by the time of that change */
+    private final ConcurrentSkipListMap<Long, Long> keyframeTimes = new ConcurrentSkipListMap<>();
+
+    /** the changes waiting to be recorded */
+    private final LinkedBlockingQueue<PlaceTile> changes = new LinkedBlockingQueue<>();
+
+    /** the directory the history is kept in */
+    private final Path directory;
+
+    /** the square dimension of the board */
+    private final int DIM;
+
+    /** how many changes there are between keyframes */
+    private final long interval;
+
+    /** the board as of the last recorded change (only used by the history thread) */
+    private PlaceBoard board;
+
+    /** the time of the last recorded change */
+    private long lastTime;
+
+    /** the sequence number of the last change written to the segment, which the board can be rebuilt up to */
+    private volatile long writtenSequence;
+
+    /** the time of the last change written to the segment */
+    private volatile long writtenTime;
+
+    /** are changes being held back until a missing one is recorded or skipped */
+    private volatile boolean waiting;
+
+    /** the segment the changes since the last keyframe are appended to */
+    private Journal segment;
+
+    /** the sequence number of the change after which the next keyframe is written */
+    private long nextKeyframe;
+
+    /** has the history been closed */
+    private volatile boolean closed;
+
+    /**
+     * Opens the history in a directory, creating it if it does not exist yet, and starts it with a keyframe of the
+     * server's board. Keyframes of earlier runs are kept if the board's sequence numbers go on from every change they
+     * recorded, and deleted otherwise (the board started over without a journal).
+     *
+     * @param directory the directory
+     * @param serverBoard the server's board, which nobody may change until this returns
+     * @param interval how many changes there are between keyframes
+     * @throws PlaceException if the history could not be opened
+     */
+    BoardHistory (Path directory, PlaceBoard serverBoard, long interval) throws PlaceException
+    {
+        super("Board history");
+        this.directory = directory;
+        this.DIM = serverBoard.DIM;
+        this.interval = interval;
+
+        try
+        {
+            Files.createDirectories(directory);
+            indexKeyframes(serverBoard.getVersion());
+        }
+        catch (IOException e) {
+            throw new PlaceException(e);
+        }
+
+        board = new PlaceBoard(DIM);
+        OwnerDictionary serverOwners = serverBoard.getOwners();
+
+        for (int row = 0; row < DIM; row++)
+        {
+            for (int col = 0; col < DIM; col++)
+            {
+                long time = serverBoard.getTime(row, col);
+
+                if (time != 0) // Tiles that were never changed are white on every board
+                {
+                    board.restoreTile(row, col, serverBoard.getColor(row, col).getNumber(),
+                            board.getOwners().idOf(serverOwners.nameOf(serverBoard.getOwnerId(row, col))), time);
+                    lastTime = Math.max(lastTime, time);
+                }
+            }
+        }
+
+        board.setVersion(serverBoard.getVersion());
+        startSegment();
+        writtenSequence = board.getVersion();
+        writtenTime = lastTime;
+
+        setDaemon(true);
+        start();
+    }
+
+    /**
+     * Queues a change to be recorded. Changes may be recorded out of order (by the threads of a striped server). A change
+     * that is left out (the server failed between numbering it and recording it) holds back the ones after it for
+     * {@link #GAP_MS} at most, and is then skipped.
+     *
+     * @param tile the change, with its sequence number
+     */
+    void record (PlaceTile tile)
+    {
+        if (!closed)
+            changes.add(tile);
+    }
+
+    /**
+     * Rebuilds the board as it was right after a change.
+     *
+     * @param sequence the sequence number of the change
+     * @return a new board with the tiles and owners the board had then, and the change's sequence number as its version
+     * @throws PlaceException if the history does not go back that far, has not recorded the change yet, or could not
+     *         be read
+     */
+    PlaceBoard boardAt (long sequence) throws PlaceException
+    {
+        if (sequence > writtenSequence)
+            throw new PlaceException("The history has only recorded the tile changes up to " + writtenSequence);
+
+        Map.Entry<Long, Path> keyframe = keyframes.floorEntry(sequence);
+
+        if (keyframe == null)
+            throw new PlaceException("The history does not go back to tile change " + sequence);
+
+        return rebuild(keyframe.getKey(), keyframe.getValue(), sequence, Long.MAX_VALUE);
+    }
+
+    /**
+     * Rebuilds the board as it was at a time, after every change made up to it.
+     *
+     * @param time the time, in milliseconds
+     * @return a new board with the tiles and owners the board had then, and the last change made by then as its version
+     * @throws PlaceException if the history does not go back that far, is still waiting for a change made before it, or
+     *         could not be read
+     */
+    PlaceBoard boardAtTime (long time) throws PlaceException
+    {
+        if (waiting && time > writtenTime)
+            throw new PlaceException("The history is waiting for a tile change, and has only recorded the board up to "
+                    + new Date(writtenTime));
+
+        Map.Entry<Long, Long> keyframe = keyframeTimes.floorEntry(time);
+
+        if (keyframe == null)
+            throw new PlaceException("The history does not go back to " + new Date(time));
+
+        return rebuild(keyframe.getValue(), keyframes.get(keyframe.getValue()), Long.MAX_VALUE, time);
+    }
+
+    /**
+     * This helper method loads a keyframe and replays its segment onto it, up to the last change with a sequence
+     * number and time no later than the ones given.
+     *
+     * @param sequence the sequence number of the keyframe
+     * @param path the keyframe file
+     * @param lastSequence the sequence number of the last change to replay
+     * @param lastTime the time of the last change to replay
+     * @return the rebuilt board
+     * @throws PlaceException if the keyframe or the segment could not be read
+     */
+    private PlaceBoard rebuild (long sequence, Path path, long lastSequence, long lastTime) throws PlaceException
+    {
+        PlaceBoard rebuilt = new PlaceBoard(DIM);
+        new Snapshot(path).load(rebuilt);
+
+        Path changesPath = segmentPath(sequence);
+
+        if (Files.exists(changesPath)) // Possibly the segment the history thread is appending to, so it is only read
+        {
+            Journal changes = Journal.openForReading(changesPath, DIM, rebuilt.getOwners());
+
+            try {
+                changes.replayUntil(rebuilt, lastSequence, lastTime);
+            }
+            finally {
+                closeQuietly(changes);
+            }
+        }
+
+        return rebuilt;
+    }
+
+    /**
+     * Records every change that is still queued, writes the segment and stops the history thread.
+     */
+    void close ()
+    {
+        closed = true;
+
+        try {
+            join();
+        }
+        catch (InterruptedException ignored) {}
+    }
+
+    /**
+     * The main loop of the history: records the queued changes in order of their sequence numbers, commits the segment
+     * after every batch, and writes a keyframe every interval changes. A missing change is skipped once it has been
+     * waited for {@link #GAP_MS}, once {@link #MAX_EARLY} changes are held back by it, or once the history is closed.
+     */
+    @Override
+    public void run ()
+    {
+        ArrayList<PlaceTile> batch = new ArrayList<>(BATCH);
+        TreeMap<Long, PlaceTile> early = new TreeMap<>(); // Changes that came ahead of one that is still missing
+        long gapSince = 0; // When the history started waiting for the missing change, 0 if it is not waiting
+
+        while (!closed || !changes.isEmpty() || !early.isEmpty())
+        {
+            PlaceTile first = null;
+            long version = board.getVersion();
+
+            try {
+                first = changes.poll(POLL_MS, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException ignored) {}
+
+            if (first != null)
+            {
+                batch.add(first);
+                changes.drainTo(batch, BATCH - 1);
+
+                for (PlaceTile tile : batch)
+                    early.put(tile.getSequence(), tile);
+
+                batch.clear();
+            }
+
+            applyInOrder(early);
+
+            if (early.isEmpty())
+                gapSince = 0;
+            else if (gapSince == 0 && !closed && early.size() < MAX_EARLY)
+                gapSince = System.currentTimeMillis();
+            else if (closed || early.size() >= MAX_EARLY || System.currentTimeMillis() - gapSince >= GAP_MS)
+            {
+                System.err.println("The board history skips tile changes " + (board.getVersion() + 1) + " to "
+                        + (early.firstKey() - 1) + ", which were never recorded");
+                board.setVersion(early.firstKey() - 1);
+                applyInOrder(early);
+                gapSince = early.isEmpty() ? 0 : System.currentTimeMillis();
+            }
+
+            waiting = !early.isEmpty();
+
+            if (board.getVersion() == version)
+                continue;
+
+            try {
+                segment.commit();
+                writtenSequence = board.getVersion();
+                writtenTime = lastTime;
+            }
+            catch (PlaceException e) { // The changes are kept, and written with the next batch
+                System.err.println("Could not write the board history: " + e.getMessage());
+            }
+        }
+
+        closeQuietly(segment);
+    }
+
+    /**
+     * This helper method applies the changes that go on from the history's board without a gap, in order.
+     *
+     * @param early the changes that have not been applied yet, keyed by their sequence numbers
+     */
+    private void applyInOrder (TreeMap<Long, PlaceTile> early)
+    {
+        while (!early.isEmpty() && early.firstKey() == board.getVersion() + 1)
+            apply(early.pollFirstEntry().getValue());
+    }
+
+    /**
+     * This helper method applies a change to the history's board and appends it to the segment, and writes a keyframe
+     * if it is the last change of the interval.
+     *
+     * @param tile the change
+     */
+    private void apply (PlaceTile tile)
+    {
+        int ownerId = board.getOwners().idOf(tile.getOwner());
+        board.setTile(tile.getRow(), tile.getCol(), tile.getColor(), ownerId, tile.getTime());
+        lastTime = Math.max(lastTime, tile.getTime());
+
+        PlaceTile recorded = new PlaceTile(tile.getRow(), tile.getCol(), tile.getOwner(), tile.getColor(), tile.getTime());
+        recorded.setOwnerId(ownerId);
+        recorded.setSequence(tile.getSequence());
+        segment.append(recorded);
+
+        if (board.getVersion() >= nextKeyframe)
+        {
+            try {
+                startSegment();
+            }
+            catch (PlaceException e) // Keeps appending to the current segment until the next keyframe is due
+            {
+                System.err.println("Could not write a keyframe of the board history: " + e.getMessage());
+                nextKeyframe = board.getVersion() + interval;
+            }
+        }
+    }
+
+    /**
+     * This helper method writes a keyframe of the history's board, and replaces the segment with a new one that the
+     * changes after the keyframe are appended to.
+     *
+     * @throws PlaceException if the keyframe or the new segment could not be written (the old segment is kept)
+     */
+    private void startSegment () throws PlaceException
+    {
+        long sequence = board.getVersion();
+        Path path = directory.resolve(String.format("keyframe-%020d-%d.snap", sequence, lastTime));
+
+        new Snapshot(path).write(board); // Only this thread changes the history's board, so it holds exactly up to sequence
+
+        try {
+            // A segment of this keyframe left by an earlier run holds changes whose numbers are about to be used again
+            Files.deleteIfExists(segmentPath(sequence));
+        }
+        catch (IOException e) {
+            throw new PlaceException(e);
+        }
+
+        Journal next = new Journal(segmentPath(sequence), DIM, board.getOwners(), ServerConfig.FsyncPolicy.NEVER, 0);
+        next.replay(board); // Skips what the keyframe holds, and only journals the owners added from now on
+
+        if (segment != null)
+        {
+            try {
+                segment.commit();
+            }
+            catch (PlaceException e)
+            {
+                closeQuietly(next);
+                throw e;
+            }
+
+            closeQuietly(segment);
+        }
+
+        segment = next;
+        nextKeyframe = sequence + interval;
+        keyframes.put(sequence, path);
+        keyframeTimes.put(lastTime, sequence);
+    }
+
+    /**
+     * This helper method finds the keyframes of earlier runs in the directory. If any of them, or any change recorded
+     * after the last of them, is past the board's version, the board's sequence numbers started over (the server was
+     * started again without the journal that would have brought the board up to them), so the history of the earlier
+     * runs belongs to another board: all of the keyframes and their segments are deleted instead.
+     *
+     * @param version the version of the server's board
+     * @throws IOException if the directory could not be read
+     * @throws PlaceException if the last segment could not be read
+     */
+    private void indexKeyframes (long version) throws IOException, PlaceException
+    {
+        ArrayList<Path> found = new ArrayList<>();
+        boolean startedOver = false;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "keyframe-*.snap"))
+        {
+            for (Path path : files)
+            {
+                String[] parts = path.getFileName().toString().replace(".snap", "").split("-");
+                long sequence = Long.parseLong(parts[1]);
+
+                startedOver |= sequence > version;
+                found.add(path);
+                keyframes.put(sequence, path);
+                keyframeTimes.put(Long.parseLong(parts[2]), sequence);
+            }
+        }
+
+        Path lastSegment = keyframes.isEmpty() ? null : segmentPath(keyframes.lastKey());
+
+        if (!startedOver && lastSegment != null && Files.exists(lastSegment))
+        {
+            Journal changes = Journal.openForReading(lastSegment, DIM, new OwnerDictionary());
+
+            try {
+                startedOver = changes.lastSequence() > version;
+            }
+            finally {
+                closeQuietly(changes);
+            }
+        }
+
+        if (!startedOver)
+            return;
+
+        System.out.println("Deleting the board history of a board that started over");
+
+        for (Path path : found)
+        {
+            long sequence = Long.parseLong(path.getFileName().toString().split("-")[1]);
+            Files.deleteIfExists(path);
+            Files.deleteIfExists(segmentPath(sequence));
+        }
+
+        keyframes.clear();
+        keyframeTimes.clear();
+    }
+
+    /**
+     * Returns the file of the segment that follows a keyframe.
+     *
+     * @param sequence the sequence number of the keyframe
+     * @return the segment file
+     */
+    private Path segmentPath (long sequence) { return directory.resolve(String.format("changes-%020d.journal", sequence)); }
+
+    /**
+     * This helper method closes a journal, reporting rather than throwing an IOException.
+     *
+     * @param journal the journal
+     */
+    private static void closeQuietly (Journal journal)
+    {
+        try {
+            journal.close();
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
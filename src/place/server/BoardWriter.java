@@ -0,0 +1,191 @@
+package place.server;
+
+import place.PlaceTile;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The single thread that changes the board. The threads that read requests from clients only validate a placement
+ * and publish it into a ring here, without taking any lock: each claims the next sequence number with one atomic
+ * increment and fills in the slot of that number. The writer takes the placements out in the order of their sequence
+ * numbers and has the server apply them, many at a time, so the board, the statistics, the change log and every
+ * broadcast see the placements in one order, and the server's lock is taken once per run of placements rather than
+ * once per placement by every reader.
+ * <p>
+ * A reader only waits when the ring is full, until the writer has taken out enough placements to make room. The
+ * writer parks when the ring is empty and is woken by the next reader that publishes.
+ *
+ * @author Dmitry Selin
+ */
+class BoardWriter extends Thread
+{
+    /** how many placements the ring holds (a power of two) */
+    private static final int CAPACITY = 1 << 16;
+
+    /** the most placements the server applies while holding its lock once */
+    private static final int MAX_RUN = 256;
+
+    /** how many times the writer checks an empty ring again before it parks */
+    private static final int SPINS = 100;
+
+    /** a placement that was published: the validated tiles, and the connection to send them back to */
+    static class Placement
+    {
+        /** the tiles, already stamped with their owner and time */
+        final PlaceTile[] tiles;
+
+        /** the connection that placed the tiles, which is sent the change as well */
+        final ClientConnection placer;
+
+        /**
+         * Creates a placement.
+         *
+         * @param tiles the tiles, already stamped with their owner and time
+         * @param placer the connection that placed the tiles
+         */
+        Placement (PlaceTile[] tiles, ClientConnection placer)
+        {
+            this.tiles = tiles;
+            this.placer = placer;
+        }
+    }
+
+    /** the server whose board is changed */
+    private final PlaceServer server;
+
+    /** the published placements, each at its sequence number modulo the capacity; null where none is waiting */
+    private final AtomicReferenceArray<Placement> ring = new AtomicReferenceArray<>(CAPACITY);
+
+    /** the sequence number the next reader to publish claims */
+    private final AtomicLong claimed = new AtomicLong();
+
+    /** the sequence number of the next placement the writer takes out; every slot before it is free again */
+    private volatile long taken;
+
+    /** is the writer parked, waiting for a reader to publish */
+    private volatile boolean sleeping;
+
+    /** has the server been closed */
+    private volatile boolean closed;
+
+    /**
+     * Creates the writer of a server's board. It still has to be started.
+     *
+     * @param server the server
+     */
+    BoardWriter (PlaceServer server)
+    {
+        super("Board writer");
+        this.server = server;
+        setDaemon(true);
+    }
+
+    /**
+     * Publishes a placement for the writer to apply. Called by any number of threads at once.
+     *
+     * @param tiles the tiles, already validated and stamped with their owner and time
+     * @param placer the connection that placed the tiles
+     */
+    void publish (PlaceTile[] tiles, ClientConnection placer)
+    {
+        long sequence = claimed.getAndIncrement();
+
+        while (sequence - taken >= CAPACITY) // The ring is full: wait for the writer to make room
+        {
+            if (closed)
+                return;
+
+            LockSupport.parkNanos(1000);
+        }
+
+        ring.set((int)(sequence & (CAPACITY - 1)), new Placement(tiles, placer));
+
+        if (sleeping)
+            LockSupport.unpark(this);
+    }
+
+    /**
+     * Stops the writer once it has applied every placement already published, and waits for it to finish.
+     * Placements still being published at the same time may be dropped along with their clients.
+     */
+    void close ()
+    {
+        closed = true;
+        LockSupport.unpark(this);
+
+        try {
+            join();
+        }
+        catch (InterruptedException ignored) {}
+    }
+
+    /**
+     * The main loop of the writer: takes runs of placements out of the ring in order and has the server apply them.
+     */
+    @Override
+    public void run ()
+    {
+        Placement[] run = new Placement[MAX_RUN];
+        long next = 0;
+        int idle = 0;
+
+        while (true)
+        {
+            int count = 0;
+
+            for (Placement placement; count < MAX_RUN && (placement = take(next)) != null; next++)
+            {
+                run[count++] = placement;
+                taken = next + 1; // Frees the slot for a reader waiting on a full ring
+            }
+
+            if (count > 0)
+            {
+                try {
+                    server.applyPlacements(run, count);
+                }
+                catch (RuntimeException e) {
+                    // The run is lost, but the writer must go on: every reader would wait for it forever otherwise
+                    System.err.println("The board writer dropped " + count + " placements: " + e);
+                }
+
+                Arrays.fill(run, 0, count, null);
+                idle = 0;
+            }
+            else if (closed)
+                return;
+            else if (idle++ < SPINS)
+                Thread.onSpinWait();
+            else
+            {
+                sleeping = true;
+
+                if (ring.get((int)(next & (CAPACITY - 1))) == null && !closed) // Nothing was published meanwhile
+                    LockSupport.parkNanos(1000000);
+
+                sleeping = false;
+                idle = 0;
+            }
+        }
+    }
+
+    /**
+     * Takes a placement out of the ring if it has been published.
+     *
+     * @param sequence the sequence number of the placement
+     * @return the placement, or null if it has not been published yet
+     */
+    private Placement take (long sequence)
+    {
+        int slot = (int)(sequence & (CAPACITY - 1));
+        Placement placement = ring.get(slot);
+
+        if (placement != null)
+            ring.lazySet(slot, null);
+
+        return placement;
+    }
+}
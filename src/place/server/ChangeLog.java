@@ -0,0 +1,85 @@
+package place.server;
+
+import place.PlaceTile;
+
+import java.util.LinkedHashMap;
+
+/**
+ * The most recent tile changes the server accepted, kept in a ring so that a client that lost its connection for a
+ * moment can be sent only the changes it missed instead of the whole board. Every change is stored at its sequence
+ * number modulo the capacity, so the ring always holds the latest capacity changes and never needs to be trimmed.
+ * Changes may be logged a little out of order when the board is changed from many threads at once, so every change is
+ * checked to still be the one with its sequence number before it is handed out. The log is thread-safe: every method
+ * is synchronized.
+ *
+ * @author Dmitry Selin
+ */
+class ChangeLog
+{
+    /** the logged changes, each at its sequence number modulo the capacity */
+    private final PlaceTile[] changes;
+
+    /** the sequence number of the latest logged change, or -1 if none has been logged */
+    private long latest = -1;
+
+    /** the sequence number of the oldest logged change */
+    private long oldest;
+
+    /**
+     * Creates an empty log.
+     *
+     * @param capacity the number of changes the log remembers
+     */
+    ChangeLog (int capacity) { changes = new PlaceTile[capacity]; }
+
+    /**
+     * Logs a change.
+     *
+     * @param tile the change, with its sequence number
+     */
+    synchronized void add (PlaceTile tile)
+    {
+        long sequence = tile.getSequence();
+
+        if (latest < 0) // The first change
+            oldest = sequence;
+
+        changes[(int)(sequence % changes.length)] = tile;
+        latest = Math.max(latest, sequence);
+        oldest = Math.max(oldest, latest - changes.length + 1);
+    }
+
+    /**
+     * Returns every change made after a given one, collapsed to the latest change of each tile.
+     *
+     * @param sequence the sequence number of the last change the client saw
+     * @param current the sequence number of the server's latest change
+     * @return the changes in the order they last changed, or null if the log no longer reaches back that far (or
+     *         does not have every change up to the latest one yet)
+     */
+    synchronized PlaceTile[] since (long sequence, long current)
+    {
+        if (sequence == current)
+            return new PlaceTile[0];
+
+        if (sequence > current || sequence + 1 < oldest)
+            return null;
+
+        LinkedHashMap<Long, PlaceTile> missed = new LinkedHashMap<>();
+
+        for (long next = sequence + 1; next <= current; next++)
+        {
+            PlaceTile tile = changes[(int)(next % changes.length)];
+
+            if (tile == null || tile.getSequence() != next) // Not logged yet, or a gap the log cannot fill
+                return null;
+
+            Long position = TileChange.positionOf(tile);
+
+            missed.remove(position);
+            missed.put(position, tile);
+        }
+
+        return missed.values().toArray(new PlaceTile[0]);
+    }
+}
@@ -0,0 +1,94 @@
+package place.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
+
+/**
+ * The changes of one chunk of the board that were made but not yet sent to the clients (in --striped mode). A change
+ * is added while the chunk's lock is held, so the changes of a chunk are numbered in the order they were made, and
+ * sent in that order by whichever thread gets to them first, after the chunk's lock is released. That way a placer
+ * neither waits for the journal nor for the clients while other placers of the same chunk wait for it, and no lock of
+ * the server is needed to send a change. A change the journal could not write stays in the outbox until a later
+ * change is written, and is sent along with it. boardWriter keeps an outbox of the whole board for the same reason,
+ * and adds to it under the server's lock instead.
+ * <p>
+ * Adding never blocks, as it is done under the chunk's lock and sending a change may take other locks (a connection
+ * that falls too far behind is closed, which takes the server's lock). Sending is serialized by the outbox's own lock.
+ *
+ * @author Dmitry Selin
+ */
+class ChunkOutbox
+{
+    /** the changes that were added but not yet sent, oldest first */
+    private final ConcurrentLinkedQueue<Entry> changes = new ConcurrentLinkedQueue<>();
+
+    /** how many changes were added (guarded by the lock that add is called under) */
+    private long added;
+
+    /** how many changes were sent (only read and written while the outbox's lock is held) */
+    private long sent;
+
+    /**
+     * Adds a change of the chunk. The chunk's lock (the server's, for boardWriter) must be held, from the change being
+     * made to it being added.
+     *
+     * @param change the change
+     * @param placer the connection that made the change, which is sent it as well (or null)
+     * @return the number of the change, to send up to
+     */
+    long add (TileChange change, ClientConnection placer)
+    {
+        changes.add(new Entry(change, placer));
+        return ++added;
+    }
+
+    /**
+     * Sends every change up to a number that was not sent yet, in the order they were added. The changes before it
+     * may still be waiting for another thread to send them, so they are sent first.
+     *
+     * @param number the number of the last change to send
+     * @param sender sends a change to the clients, and to the connection that made it
+     */
+    synchronized void sendUpTo (long number, BiConsumer<TileChange, ClientConnection> sender)
+    {
+        while (sent < number)
+        {
+            Entry entry = changes.poll();
+            sent++;
+            sender.accept(entry.change, entry.placer);
+        }
+    }
+
+    /**
+     * Sends something ahead of every change that was not yet sent, for example the current tiles of the chunk to a
+     * connection that was not sent its changes until now. Changes that are sent afterwards may already be part of the
+     * tiles, but they are sent in order, so the latest is still the last.
+     *
+     * @param send sends it
+     */
+    synchronized void sendAhead (Runnable send) { send.run(); }
+
+    /**
+     * A change, along with the connection that made it.
+     */
+    private static class Entry
+    {
+        /** the change */
+        final TileChange change;
+
+        /** the connection that made the change (or null) */
+        final ClientConnection placer;
+
+        /**
+         * Creates an entry.
+         *
+         * @param change the change
+         * @param placer the connection that made the change (or null)
+         */
+        Entry (TileChange change, ClientConnection placer)
+        {
+            this.change = change;
+            this.placer = placer;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package place.server;
+
+import place.model.Observer;
+
+import java.io.IOException;
+
+/**
+ * A logged in client as seen by the {@link PlaceServer}. The server notifies every connection of each tile change
+ * through {@link Observer#update}, all of them sharing one {@link TileChange}, and tells them when it is shutting
+ * down. Depending on how the server was started a connection is either a {@link PlaceServerThread} or an
+ * {@link NioClientConnection}.
+ *
+ * @author Dmitry Selin
+ */
+public interface ClientConnection extends Observer<PlaceServer, TileChange>
+{
+    /**
+     * Tells the client that the server is shutting down and stops serving it.
+     *
+     * @throws IOException if the message could not be sent
+     */
+    void serverClosed () throws IOException;
+}
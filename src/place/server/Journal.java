@@ -0,0 +1,628 @@
+package place.server;
+
+import place.OwnerDictionary;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceException;
+import place.PlaceTile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of every tile change the server accepts, so that the board survives the server stopping or
+ * dying. The file starts with a header (a magic number and the board dimension), followed by frames: the length and
+ * CRC-32 of a payload, then the payload, a run of records. A record is either a tile change (sequence number, row,
+ * column, color, owner id and time) or an owner the first time one of its changes is journaled (owner id and name),
+ * so the journal can be replayed onto a board with an empty owner dictionary.
+ * <p>
+ * Changes are appended to a buffer and written with a group commit: whichever thread commits first writes one frame
+ * holding everything appended until then, including the changes of the threads that commit after it, and syncs the
+ * file once for all of them (depending on the {@link ServerConfig.FsyncPolicy}). A frame that was only partly written
+ * when the server died fails its length or checksum and is cut off when the journal is opened again.
+ * <p>
+ * The journal is thread-safe: any number of threads may append and commit at once (in --striped mode, every thread
+ * that places tiles does), and a commit returns once every change appended before it was called is written.
+ * <p>
+ * Once a {@link Snapshot} of the board has been taken, the frames whose changes it holds are no longer needed, and
+ * {@link #compact} drops them so that the journal only grows by what changed since the last snapshot.
+ *
+ * @author Dmitry Selin
+ */
+class Journal implements Closeable
+{
+    /** the first bytes of every journal file */
+    private static final int MAGIC = 0x504c4a31; // "PLJ1"
+
+    /** the length of the file header */
+    private static final int HEADER = 8;
+
+    /** the record of an owner */
+    private static final byte OWNER = 0;
+
+    /** the record of a tile change */
+    private static final byte TILE = 1;
+
+    /** all the colors, indexed by color number */
+    private static final PlaceColor[] COLORS = PlaceColor.values();
+
+    /** the path of the journal file */
+    private final Path path;
+
+    /** the journal file (replaced when the journal is compacted, guarded by the commit lock) */
+    private FileChannel channel;
+
+    /** the names behind the owner ids of the journaled changes */
+    private final OwnerDictionary owners;
+
+    /** when the file is synced to the disk */
+    private final ServerConfig.FsyncPolicy policy;
+
+    /** syncs the file every interval under {@link ServerConfig.FsyncPolicy#INTERVAL}, otherwise null */
+    private ScheduledExecutorService syncer;
+
+    /** the records appended since the last commit */
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    /** writes records into pending */
+    private DataOutputStream records = new DataOutputStream(pending);
+
+    /** the number of owner ids whose names have been journaled */
+    private int ownersJournaled;
+
+    /** the number of tile changes appended */
+    private long appended;
+
+    /** the number of tile changes written to the file (guarded by the commit lock) */
+    private volatile long committed;
+
+    /** held by the thread that writes a frame */
+    private final Object commitLock = new Object();
+
+    /** has anything been written since the file was last synced */
+    private volatile boolean unsynced;
+
+    /**
+     * Opens a journal, creating it if it does not exist yet. An existing journal is not replayed until
+     * {@link #replay} is called, and nothing may be appended before that.
+     *
+     * @param path the journal file
+     * @param DIM the square dimension of the board
+     * @param owners the server's owner dictionary
+     * @param policy when the file is synced to the disk
+     * @param interval how often the file is synced under {@link ServerConfig.FsyncPolicy#INTERVAL}, in milliseconds
+     * @throws PlaceException if the file could not be opened or belongs to a board of another size
+     */
+    Journal (Path path, int DIM, OwnerDictionary owners, ServerConfig.FsyncPolicy policy, long interval)
+            throws PlaceException
+    {
+        this(path, DIM, owners, policy, interval, false);
+    }
+
+    /**
+     * Opens an existing journal only to read it with {@link #replayUntil}, for example while another Journal of the
+     * same file is still appended to. The file is never created or cut; one that is shorter than a header holds no
+     * frames. Nothing may be appended to the journal.
+     *
+     * @param path the journal file
+     * @param DIM the square dimension of the board
+     * @param owners the owner dictionary of the board it is replayed onto
+     * @return the journal
+     * @throws PlaceException if the file could not be opened or belongs to a board of another size
+     */
+    static Journal openForReading (Path path, int DIM, OwnerDictionary owners) throws PlaceException
+    {
+        return new Journal(path, DIM, owners, ServerConfig.FsyncPolicy.NEVER, 0, true);
+    }
+
+    /**
+     * This helper constructor opens a journal for appending (creating it if it does not exist yet) or only for reading.
+     *
+     * @param path the journal file
+     * @param DIM the square dimension of the board
+     * @param owners the owner dictionary
+     * @param policy when the file is synced to the disk
+     * @param interval how often the file is synced under {@link ServerConfig.FsyncPolicy#INTERVAL}, in milliseconds
+     * @param readOnly is the journal only read
+     * @throws PlaceException if the file could not be opened or belongs to a board of another size
+     */
+    private Journal (Path path, int DIM, OwnerDictionary owners, ServerConfig.FsyncPolicy policy, long interval,
+            boolean readOnly) throws PlaceException
+    {
+        this.path = path;
+        this.owners = owners;
+        this.policy = policy;
+
+        try
+        {
+            channel = readOnly ? FileChannel.open(path, StandardOpenOption.READ) : FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+
+            if (channel.size() < HEADER && readOnly) // Its header is still being written, so it has no frames yet
+                return;
+
+            if (channel.size() < HEADER) // A new journal (or one that died before its header was written)
+            {
+                header.putInt(MAGIC).putInt(DIM).flip();
+                channel.truncate(0);
+                channel.write(header, 0);
+                channel.force(true);
+            }
+            else
+            {
+                channel.read(header, 0);
+                header.flip();
+
+                if (header.getInt() != MAGIC)
+                    throw new PlaceException(path + " is not a journal");
+
+                if (header.getInt() != DIM)
+                    throw new PlaceException(path + " is the journal of a board of another size");
+            }
+        }
+        catch (IOException e) {
+            throw new PlaceException(e);
+        }
+
+        if (policy == ServerConfig.FsyncPolicy.INTERVAL)
+        {
+            syncer = Executors.newSingleThreadScheduledExecutor(task ->
+            {
+                Thread thread = new Thread(task, "Journal sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleAtFixedRate(this::sync, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Replays the journaled changes onto a board, in order, and cuts off a frame that was only partly written. Changes
+     * the board already holds (those up to its version, when it was loaded from a snapshot) are skipped. The board ends
+     * up with the version of the last journaled change, so that sequence numbers go on from there.
+     *
+     * @param board the board, whose owner dictionary is the server's
+     * @return the number of changes replayed
+     * @throws PlaceException if the journal could not be read
+     */
+    long replay (PlaceBoard board) throws PlaceException
+    {
+        long loaded = board.getVersion();
+
+        try
+        {
+            long size = channel.size();
+            long position = replayFrames(board, size, Long.MAX_VALUE, Long.MAX_VALUE);
+
+            if (position < size) // The server died while this frame was written
+                channel.truncate(position);
+
+            channel.position(position);
+        }
+        catch (IOException e) {
+            throw new PlaceException(e);
+        }
+
+        ownersJournaled = owners.size();
+        return board.getVersion() - loaded;
+    }
+
+    /**
+     * Replays the journaled changes after the board's version onto a board, in order, up to the last change with a
+     * sequence number and time no later than the ones given. Unlike {@link #replay}, the journal is left as it is, so
+     * this may be called while changes are still appended to it (only the frames committed so far are read), but not
+     * while it is compacted. The owners of the journaled changes are added to the board's owner dictionary.
+     *
+     * @param board the board
+     * @param lastSequence the sequence number of the last change to replay
+     * @param lastTime the time of the last change to replay, in milliseconds
+     * @return the number of changes replayed
+     * @throws PlaceException if the journal could not be read
+     */
+    long replayUntil (PlaceBoard board, long lastSequence, long lastTime) throws PlaceException
+    {
+        long loaded = board.getVersion();
+
+        try {
+            replayFrames(board, channel.size(), lastSequence, lastTime);
+        }
+        catch (IOException e) {
+            throw new PlaceException(e);
+        }
+
+        return board.getVersion() - loaded;
+    }
+
+    /**
+     * Finds the sequence number of the last change in the whole frames written so far.
+     *
+     * @return the sequence number, or 0 if the journal holds no changes
+     * @throws PlaceException if the journal could not be read
+     */
+    long lastSequence () throws PlaceException
+    {
+        try
+        {
+            long size = channel.size();
+            long position = HEADER;
+            long last = 0;
+            byte[] payload;
+
+            while ((payload = readFrame(position, size)) != null)
+            {
+                last = Math.max(last, lastSequenceOf(payload));
+                position += 8 + payload.length;
+            }
+
+            return last;
+        }
+        catch (IOException e) {
+            throw new PlaceException(e);
+        }
+    }
+
+    /**
+     * This helper method replays the whole frames of the journal onto a board until it reaches a change after the
+     * last sequence number or time, skipping the changes the board already holds. The board ends up with the version
+     * of the last change replayed.
+     *
+     * @param board the board
+     * @param size the size of the file
+     * @param lastSequence the sequence number of the last change to replay
+     * @param lastTime the time of the last change to replay
+     * @return the position after the last whole frame that was read
+     * @throws IOException if the file could not be read
+     */
+    private long replayFrames (PlaceBoard board, long size, long lastSequence, long lastTime) throws IOException
+    {
+        long loaded = board.getVersion();
+        long replayed = loaded;
+        long position = HEADER;
+        byte[] payload;
+
+        frames:
+        while ((payload = readFrame(position, size)) != null)
+        {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+            while (in.available() > 0)
+            {
+                if (in.readByte() == OWNER)
+                    board.getOwners().add(new OwnerDictionary.Entry(in.readInt(), in.readUTF()));
+                else
+                {
+                    long sequence = in.readLong();
+                    int row = in.readInt();
+                    int col = in.readInt();
+                    byte color = in.readByte();
+                    int ownerId = in.readInt();
+                    long time = in.readLong();
+
+                    if (sequence <= loaded) // The snapshot already holds this change, or a later one of the tile
+                        continue;
+
+                    if (sequence > lastSequence || time > lastTime)
+                        break frames;
+
+                    board.setTile(row, col, COLORS[color], ownerId, time);
+                    replayed = Math.max(replayed, sequence);
+                }
+            }
+
+            position += 8 + payload.length;
+        }
+
+        board.setVersion(replayed);
+        return position;
+    }
+
+    /**
+     * This helper method reads the payload of the frame at a position, if the frame was written completely.
+     *
+     * @param position the position of the frame in the file
+     * @param size the size of the file
+     * @return the payload, or null if there is no whole frame at position
+     * @throws IOException if the file could not be read
+     */
+    private byte[] readFrame (long position, long size) throws IOException
+    {
+        if (position + 8 > size)
+            return null;
+
+        ByteBuffer frameHeader = ByteBuffer.allocate(8);
+        channel.read(frameHeader, position);
+        frameHeader.flip();
+
+        int length = frameHeader.getInt();
+        int checksum = frameHeader.getInt();
+
+        if (length <= 0 || position + 8 + length > size)
+            return null;
+
+        ByteBuffer payload = ByteBuffer.allocate(length);
+
+        while (payload.hasRemaining())
+            channel.read(payload, position + 8 + payload.position());
+
+        CRC32 crc = new CRC32();
+        crc.update(payload.array());
+
+        return (int)crc.getValue() == checksum ? payload.array() : null;
+    }
+
+    /**
+     * This helper method finds the highest sequence number among the tile changes of a frame.
+     *
+     * @param payload the payload of the frame
+     * @return the highest sequence number, or 0 if the frame holds no tile changes
+     * @throws IOException if the payload is not a run of records
+     */
+    private static long lastSequenceOf (byte[] payload) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        long last = 0;
+
+        while (in.available() > 0)
+        {
+            if (in.readByte() == OWNER)
+            {
+                in.readInt();
+                in.readUTF();
+            }
+            else
+            {
+                last = Math.max(last, in.readLong());
+                in.skipBytes(2 * Integer.BYTES + 1 + Integer.BYTES + Long.BYTES); // Row, column, color, owner and time
+            }
+        }
+
+        return last;
+    }
+
+    /**
+     * Drops the frames at the start of the journal whose changes are all held by a snapshot. The frames that are kept
+     * are copied into a new file that replaces the journal once it is synced, so a journal is always whole on the disk.
+     * Appending goes on in the meantime; only commits wait.
+     * <p>
+     * Owner records are dropped along with their frames. That is safe because the snapshot holds the name of every
+     * owner of the changes it holds, and an owner record always comes before the first change of its owner.
+     *
+     * @param sequence the version of the snapshot, which holds every change up to it
+     * @return the number of bytes dropped
+     * @throws PlaceException if the journal could not be compacted (it is left as it was)
+     */
+    long compact (long sequence) throws PlaceException
+    {
+        synchronized (commitLock)
+        {
+            try
+            {
+                long position = HEADER;
+                long size = channel.size(); // Every frame written so far is whole, since no commit is under way
+                byte[] payload;
+
+                while ((payload = readFrame(position, size)) != null && lastSequenceOf(payload) <= sequence)
+                    position += 8 + payload.length;
+
+                if (position == HEADER)
+                    return 0;
+
+                Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+
+                try (FileChannel compacted = FileChannel.open(temp, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+                {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER);
+                    channel.read(header, 0);
+                    header.flip();
+
+                    while (header.hasRemaining())
+                        compacted.write(header);
+
+                    for (long copied = position; copied < size; )
+                        copied += channel.transferTo(copied, size - copied, compacted);
+
+                    compacted.force(true);
+                }
+
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                channel.close();
+                channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                channel.position(channel.size());
+
+                return position - HEADER;
+            }
+            catch (IOException e) {
+                throw new PlaceException(e);
+            }
+        }
+    }
+
+    /**
+     * Appends a tile change to the next frame. It is not written until {@link #commit} is called.
+     *
+     * @param tile the change, with its owner id and sequence number
+     */
+    synchronized void append (PlaceTile tile)
+    {
+        try
+        {
+            while (ownersJournaled <= tile.getOwnerId()) // Owner ids are handed out in order
+            {
+                OwnerDictionary.Entry owner = owners.entry(ownersJournaled++);
+                records.writeByte(OWNER);
+                records.writeInt(owner.getId());
+                records.writeUTF(owner.getName());
+            }
+
+            records.writeByte(TILE);
+            records.writeLong(tile.getSequence());
+            records.writeInt(tile.getRow());
+            records.writeInt(tile.getCol());
+            records.writeByte(tile.getColor().getNumber());
+            records.writeInt(tile.getOwnerId());
+            records.writeLong(tile.getTime());
+        }
+        catch (IOException e) { // A ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+
+        appended++;
+    }
+
+    /**
+     * Makes sure that every change this thread appended has been written (and synced, if the policy says so). If it
+     * has not, this thread writes one frame of every change appended so far, by any thread. If the frame could not be
+     * written, the file is cut back to where the frame started and its changes are kept, ahead of those appended
+     * since, for the next commit to write again.
+     *
+     * @throws PlaceException if the changes could not be written, so they must not be acknowledged yet
+     */
+    void commit () throws PlaceException
+    {
+        long count;
+
+        synchronized (this) {
+            count = appended;
+        }
+
+        if (committed >= count)
+            return;
+
+        synchronized (commitLock)
+        {
+            if (committed >= count) // Another thread wrote them while this one waited
+                return;
+
+            byte[] payload;
+            long upTo;
+
+            synchronized (this)
+            {
+                payload = pending.toByteArray();
+                upTo = appended;
+                pending.reset();
+            }
+
+            long start = -1;
+
+            try
+            {
+                start = channel.position();
+
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+
+                ByteBuffer frame = ByteBuffer.allocate(8 + payload.length);
+                frame.putInt(payload.length).putInt((int)crc.getValue()).put(payload).flip();
+
+                while (frame.hasRemaining())
+                    channel.write(frame);
+
+                if (policy == ServerConfig.FsyncPolicy.BATCH)
+                    channel.force(false);
+                else
+                    unsynced = true;
+            }
+            catch (IOException e)
+            {
+                keep(payload, start);
+                throw new PlaceException("Could not write to the journal: " + e.getMessage(), e);
+            }
+
+            committed = upTo;
+        }
+    }
+
+    /**
+     * This helper method undoes a frame that could not be written: the file is cut back to where the frame started,
+     * so that a later frame is not hidden behind a broken one, and the payload is put back ahead of the records that
+     * were appended since. The commit lock must be held.
+     *
+     * @param payload the payload of the frame
+     * @param start where the frame started in the file, or -1 if not even that could be found out
+     */
+    private void keep (byte[] payload, long start)
+    {
+        if (start >= 0)
+        {
+            try
+            {
+                channel.truncate(start);
+                channel.position(start);
+            }
+            catch (IOException ignored) {} // The next frame is written after the broken one, and replay stops there
+        }
+
+        synchronized (this)
+        {
+            ByteArrayOutputStream kept = new ByteArrayOutputStream(payload.length + pending.size());
+            kept.write(payload, 0, payload.length);
+            kept.write(pending.toByteArray(), 0, pending.size());
+            pending = kept;
+            records = new DataOutputStream(pending);
+        }
+    }
+
+    /**
+     * Syncs the file to the disk if anything was written since it was last synced.
+     */
+    private void sync ()
+    {
+        if (!unsynced)
+            return;
+
+        unsynced = false;
+
+        synchronized (commitLock) // The file is not replaced while it is synced
+        {
+            try {
+                channel.force(false);
+            }
+            catch (IOException e) {
+                System.err.println("Could not sync the journal: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes and syncs every appended change and closes the file.
+     *
+     * @throws IOException if the changes could not be written, or the file could not be closed
+     */
+    @Override
+    public void close () throws IOException
+    {
+        if (syncer != null)
+            syncer.shutdown();
+
+        try
+        {
+            commit();
+            unsynced = true;
+            sync();
+        }
+        catch (PlaceException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,969 @@
+package place.server;
+
+import place.OwnerDictionary;
+import place.PlaceBoard;
+import place.PlaceTile;
+import place.network.Handshake;
+import place.network.PlaceCodec;
+import place.network.PlaceRequest;
+import place.network.Region;
+import place.network.Rejection;
+import place.network.TileHistory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * One client of an {@link NioServer}. This is the non-blocking counterpart of {@link PlaceServerThread} and speaks
+ * the same protocol (LOGIN, LOGIN_SUCCESS, BOARD, CHANGE_TILE, CHANGE_TILES, CHANGE_TILES_RESULT, TILE_CHANGED,
+ * TILES_CHANGED, USER_ADDED, SUBSCRIBE, GET_TILE_HISTORY, TILE_HISTORY and ERROR), but it never owns a thread of its own:
+ * <ul>
+ *     <li>The selector thread hands it incoming bytes through {@link #received}, and whenever bytes arrive while no
+ *     I/O thread is working on the connection, one is asked to handle the requests.</li>
+ *     <li>A request is only decoded once it has arrived in full, so an I/O thread never waits for a client: a request
+ *     that has only partly arrived is left until the rest comes in. The bytes that may wait are bounded. The LOGIN
+ *     must arrive in MAX_LOGIN bytes, every binary frame in {@link PlaceCodec#MAX_FRAME} (clients send the length
+ *     of every frame first), and the selector stops reading from a client whose undecoded bytes
+ *     reach MAX_INBOUND until they are decoded. As only a LOGIN can be decoded without waiting for the rest of a
+ *     Java-serialized stream, a client that does not speak the binary protocol is refused.</li>
+ *     <li>Outgoing requests are serialized into a byte buffer and queued; the socket takes as much as it can right
+ *     away and the selector thread writes the rest once the socket is writable again.</li>
+ *     <li>Tile changes are only serialized while the socket keeps up with them. While it is behind they wait in an
+ *     {@link OutboundQueue}, which the server's {@link ServerConfig.SlowConsumerPolicy} keeps bounded, and an I/O
+ *     thread sends them on once the selector thread has caught up.</li>
+ *     <li>The server's limit on how fast a user may place tiles is never waited out on an I/O thread. A tile that
+ *     comes too fast is rejected with TILE_REJECTED, which every client of the binary protocol understands.</li>
+ * </ul>
+ *
+ * @author Dmitry Selin
+ */
+public final class NioClientConnection implements ClientConnection
+{
+    /** the most bytes the Java-serialized LOGIN may take */
+    private static final int MAX_LOGIN = 16384;
+
+    /** the most undecoded bytes kept for a client before the selector stops reading from it */
+    private static final int MAX_INBOUND = PlaceCodec.MAX_FRAME + 16;
+
+    /** stands for a request that has not arrived in full yet */
+    private static final PlaceRequest<?> INCOMPLETE = new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "");
+
+    /** the server this client is connected to */
+    private PlaceServer server;
+
+    /** the NioServer whose selector and I/O threads serve this client */
+    private NioServer nio;
+
+    /** the client's socket channel */
+    private SocketChannel channel;
+
+    /** the selector key of channel */
+    private SelectionKey key;
+
+    /** the bytes received from the client that have not been decoded yet */
+    private Inbound inbound = new Inbound();
+
+    /** the buffer that out serializes requests into */
+    private EncodeBuffer encoded = new EncodeBuffer();
+
+    /** serializes requests for the client into encoded */
+    private ObjectOutputStream out;
+
+    /** encodes binary frames for the client into encoded, or null while requests are Java-serialized */
+    private DataOutputStream binaryOut;
+
+    /** serialized requests waiting to be written to the socket */
+    private ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+
+    /** tile changes waiting for the socket to catch up before they are serialized */
+    private final OutboundQueue tileChanges;
+
+    /** is a thread moving tileChanges into outbound */
+    private boolean pumping;
+
+    /** did tileChanges or the socket change while a thread was pumping, so that it must look again */
+    private boolean pumpAgain;
+
+    /** is an I/O thread handling (or scheduled to resume handling) this connection */
+    private boolean processing;
+
+    /** has the selector stopped reading from the client because inbound is full */
+    private boolean readsPaused;
+
+    /** should the connection be closed once everything in outbound has been written */
+    private boolean closeWhenFlushed;
+
+    /** the name that the client logged in with */
+    private String username = "";
+
+    /** has the client logged in successfully */
+    private boolean loggedIn;
+
+    /** has the client been sent the board (or the changes it missed), so that tile changes may follow */
+    private boolean ready;
+
+    /** has the connection been closed */
+    private boolean closed;
+
+    /** the id given to username by the server's {@link OwnerDictionary} */
+    private int ownerId;
+
+    /** how many entries of the server's {@link OwnerDictionary} the client already knows about */
+    private int ownersSent;
+
+    /**
+     * Creates a new connection and queues the serialization stream header that the client is waiting for.
+     *
+     * @param server the server the client is connected to
+     * @param nio the NioServer that serves the client
+     * @param channel the client's socket channel
+     * @param key the selector key of channel
+     * @throws IOException if the stream header could not be written
+     */
+    NioClientConnection (PlaceServer server, NioServer nio, SocketChannel channel, SelectionKey key) throws IOException
+    {
+        this.server = server;
+        this.nio = nio;
+        this.channel = channel;
+        this.key = key;
+
+        ServerConfig config = server.getConfig();
+        tileChanges = new OutboundQueue(config.getOutboundCapacity(), config.getSlowConsumerPolicy());
+
+        synchronized (encoded)
+        {
+            out = new ObjectOutputStream(encoded);
+            out.flush();
+            queue(ByteBuffer.wrap(encoded.take()));
+        }
+    }
+
+    /**
+     * Called by the selector thread with newly received bytes, or with null once the client has closed its end of the
+     * connection. Makes sure an I/O thread will handle them.
+     *
+     * @param bytes the bytes received, or null at the end of the stream
+     * @return should the selector go on reading from the client (false once inbound is full)
+     */
+    boolean received (ByteBuffer bytes)
+    {
+        if (bytes == null)
+            inbound.finish();
+        else
+            inbound.append(bytes);
+
+        synchronized (this)
+        {
+            readsPaused = inbound.size() >= MAX_INBOUND;
+
+            if (processing || closed)
+                return !readsPaused;
+
+            processing = true;
+        }
+
+        nio.getWorkers().execute(this::process);
+        return !readsPaused;
+    }
+
+    /**
+     * Handles requests for as long as complete ones are available. Runs on an I/O thread, and only ever on one at a
+     * time for a given connection. Returns as soon as the next request has not arrived in full.
+     */
+    private void process ()
+    {
+        try
+        {
+            while (true)
+            {
+                long seen = inbound.received();
+                PlaceRequest<?> request = closed ? INCOMPLETE : decode();
+
+                if (request == INCOMPLETE)
+                {
+                    boolean ended;
+
+                    synchronized (this)
+                    {
+                        if (!closed && inbound.received() != seen) // More bytes arrived while decoding
+                            continue;
+
+                        processing = false;
+                        ended = inbound.isFinished();
+                    }
+
+                    if (ended) // The client left in the middle of a request
+                        close();
+
+                    return;
+                }
+
+                resumeReads();
+
+                if (request == null) // The client signs off by sending null
+                {
+                    close();
+                    return;
+                }
+
+                handle(request);
+            }
+        }
+        catch (Exception e) {
+            close();
+        }
+    }
+
+    /**
+     * Decodes the next request if it has arrived in full: the Java-serialized LOGIN, and binary frames after it.
+     *
+     * @return the request, null if the client signed off, or INCOMPLETE if the request has not arrived in full yet
+     * @throws IOException if the request is malformed or too large
+     */
+    private PlaceRequest<?> decode () throws IOException
+    {
+        if (!loggedIn)
+            return inbound.decodeLogin();
+
+        return inbound.decodeFramed(server.getBoard().DIM);
+    }
+
+    /**
+     * Has the selector read from the client again if it stopped because inbound was full and there is room now.
+     */
+    private void resumeReads ()
+    {
+        synchronized (this)
+        {
+            if (!readsPaused || inbound.size() >= MAX_INBOUND)
+                return;
+
+            readsPaused = false;
+        }
+
+        nio.wantRead(this);
+    }
+
+    /**
+     * Handles one request from the client.
+     *
+     * @param request the request
+     * @throws IOException if a reply could not be sent
+     */
+    private void handle (PlaceRequest<?> request) throws IOException
+    {
+        if (!loggedIn)
+        {
+            login(request);
+            return;
+        }
+
+        if (request.getType() == PlaceRequest.RequestType.CHANGE_TILE)
+            changeTile((PlaceTile)request.getData());
+        else if (request.getType() == PlaceRequest.RequestType.CHANGE_TILES)
+        {
+            // A trusted client may change many tiles at once (counting as one placement), and is told which of them
+            // were changed
+            PlaceTile[] tilesToChange = (PlaceTile[])request.getData();
+            boolean[] accepted = new boolean[tilesToChange.length];
+            logToFile("Received CHANGE_TILES from " + username);
+
+            if (server.getConfig().isTrusted(username) && server.tryPlace(username) == 0)
+            {
+                long now = System.currentTimeMillis();
+
+                for (PlaceTile tile : tilesToChange)
+                {
+                    if (tile != null)
+                    {
+                        tile.setTime(now);
+                        tile.setOwner(username);
+                        tile.setOwnerId(ownerId);
+                    }
+                }
+
+                server.changeBoardTiles(tilesToChange, accepted, this);
+            }
+
+            send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILES_RESULT, accepted));
+            logToFile("Sent CHANGE_TILES_RESULT to " + username);
+        }
+        else if (request.getType() == PlaceRequest.RequestType.SUBSCRIBE)
+        {
+            // A client that only shows part of the board only wants the changes of that part
+            server.subscribe(username, this, (Region[])request.getData());
+            logToFile("Received SUBSCRIBE from " + username);
+        }
+        else if (request.getType() == PlaceRequest.RequestType.GET_TILE_HISTORY)
+            sendTileHistory((TileHistory)request.getData()); // A client may ask who drew over a tile and when
+    }
+
+    /**
+     * Handles a CHANGE_TILE. A tile that comes faster than the server allows the user to place tiles is answered with
+     * TILE_REJECTED.
+     *
+     * @param tileToChange the tile
+     * @throws IOException if TILE_REJECTED could not be serialized
+     */
+    private void changeTile (PlaceTile tileToChange) throws IOException
+    {
+        logToFile("Received CHANGE_TILE from " + username);
+
+        if (!server.isValidPlacement(tileToChange))
+        {
+            logToFile("Dropped CHANGE_TILE from " + username + " (not a tile of the board)");
+            return;
+        }
+
+        long wait = server.tryPlace(username);
+
+        if (wait > 0)
+        {
+            send(new PlaceRequest<>(PlaceRequest.RequestType.TILE_REJECTED, new Rejection(tileToChange, wait)));
+            logToFile("Sent TILE_REJECTED to " + username);
+            return;
+        }
+
+        placeTile(tileToChange);
+    }
+
+    /**
+     * Changes a tile on the board for the client, and queues TILE_CHANGED for it.
+     *
+     * @param tileToChange the tile
+     */
+    private void placeTile (PlaceTile tileToChange)
+    {
+        synchronized (this)
+        {
+            if (closed) // The client left while the placement was waiting
+                return;
+        }
+
+        // When a tile change comes in, it should be recorded by the server with a timestamp of the current time
+        tileToChange.setTime(System.currentTimeMillis());
+        tileToChange.setOwner(username);
+        tileToChange.setOwnerId(ownerId);
+        server.changeBoardTile(tileToChange, this);
+        logToFile("Sent TILE_CHANGED to " + username);
+    }
+
+    /**
+     * Handles the first request from the client, which must be a LOGIN with a username that is not taken.
+     *
+     * @param maybeLogin the first request
+     * @throws IOException if a reply could not be sent
+     */
+    private void login (PlaceRequest<?> maybeLogin) throws IOException
+    {
+        // Newer clients log in with a Handshake offering the binary protocol, older ones with just their username
+        Handshake offer = maybeLogin.getData() instanceof Handshake ? (Handshake)maybeLogin.getData() : null;
+
+        try {
+            username = offer != null ? offer.getUsername() : (String)maybeLogin.getData();
+            logToFile("Received LOGIN from " + username);
+        }
+        catch (ClassCastException e) {
+            username = "";
+        }
+
+        if (maybeLogin.getType() != PlaceRequest.RequestType.LOGIN)
+        {
+            send(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Did not receive an initial LOGIN request"));
+            logToFile("Sent ERROR to " + username + "(Did not receive an initial LOGIN request)");
+            closeWhenFlushed();
+        }
+        else if (offer == null || offer.getProtocolVersion() < 1)
+        {
+            send(new PlaceRequest<>(PlaceRequest.RequestType.ERROR,
+                    "This server only serves clients that speak the binary protocol"));
+            logToFile("Sent ERROR to " + username + "(No binary protocol)");
+            closeWhenFlushed();
+        }
+        else if (!server.isUsernameValid(username))
+        {
+            send(new PlaceRequest<>(PlaceRequest.RequestType.ERROR,
+                    String.format("A user with the username %s is already logged in", username)));
+            logToFile("Sent ERROR to " + username + "(Same username conflict)");
+            closeWhenFlushed();
+        }
+        else
+        {
+            /* Log in first, so that every change made from now on is queued for the client (and held back until it
+               is ready); anything earlier is in the board or the missed changes sent below */
+            loggedIn = true;
+            server.logIn(username, this);
+
+            PlaceTile[] missed = null;
+
+            // Accept the binary protocol, and switch to it for everything after LOGIN_SUCCESS
+            int version = Math.min(offer.getProtocolVersion(), PlaceCodec.VERSION);
+
+            // A client that is reconnecting only needs what it missed, if the server still remembers it
+            if (offer.getSequence() >= 0)
+                missed = server.changesSince(offer.getEpoch(), offer.getSequence());
+
+            send(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN_SUCCESS, new Handshake(username, version,
+                    server.getEpoch(), missed != null ? offer.getSequence() : -1, 0)));
+
+            synchronized (encoded)
+            {
+                binaryOut = new DataOutputStream(encoded);
+            }
+            logToFile("Sent LOGIN_SUCCESS to " + username);
+
+            PlaceBoard board = server.getBoard();
+
+            // Give the username an owner id before the board (and its owner dictionary) is sent
+            ownerId = board.getOwners().idOf(username);
+
+            if (missed != null)
+            {
+                // The client kept its board and owner dictionary, so it only needs the changes it missed
+                synchronized (encoded) {
+                    ownersSent = Math.min(offer.getOwners(), board.getOwners().size());
+                }
+
+                if (missed.length > 0)
+                    sendTileChanged(new TileChange(missed));
+
+                logToFile("Sent " + missed.length + " missed changes to " + username);
+            }
+            else
+            {
+                synchronized (encoded)
+                {
+                    ownersSent = board.getOwners().size();
+                    send(new PlaceRequest<>(PlaceRequest.RequestType.BOARD, board));
+                }
+
+                logToFile("Sent BOARD to " + username);
+            }
+
+            synchronized (this) {
+                ready = true;
+            }
+
+            pump();
+
+            System.out.printf("%s (%s) has entered the chat\n", username, channel.socket().getInetAddress());
+        }
+    }
+
+    /**
+     * Queues TILE_CHANGED (or TILES_CHANGED for a batch) for the client, preceded by USER_ADDED for any owners the
+     * client has not heard of yet. A binary client is queued a view of the frames the server encoded once for
+     * everybody.
+     *
+     * @param change the tiles that changed
+     * @throws IOException if the request could not be serialized
+     */
+    private void sendTileChanged (TileChange change) throws IOException
+    {
+        synchronized (encoded)
+        {
+            OwnerDictionary owners = server.getBoard().getOwners();
+
+            for (PlaceTile tile : change.getTiles())
+            {
+                while (ownersSent <= tile.getOwnerId())
+                    send(new PlaceRequest<>(PlaceRequest.RequestType.USER_ADDED, owners.entry(ownersSent++)));
+            }
+
+            if (binaryOut == null)
+            {
+                for (PlaceTile tile : change.getTiles())
+                    send(new PlaceRequest<>(PlaceRequest.RequestType.TILE_CHANGED, tile));
+            }
+            else
+                queue(change.getFrame());
+        }
+    }
+
+    /**
+     * Answers a GET_TILE_HISTORY with the last placements of the tile the server remembers, preceded by USER_ADDED for
+     * any of their owners the client has not heard of yet. A tile outside the board has no placements.
+     *
+     * @param question the coordinates of the tile
+     * @throws IOException if the request could not be serialized
+     */
+    private void sendTileHistory (TileHistory question) throws IOException
+    {
+        logToFile("Received GET_TILE_HISTORY from " + username);
+
+        PlaceBoard board = server.getBoard();
+        int row = question.getRow();
+        int col = question.getCol();
+        PlaceTile[] placements = row >= 0 && row < board.DIM && col >= 0 && col < board.DIM ?
+                server.tileHistory(row, col) : new PlaceTile[0];
+
+        synchronized (encoded)
+        {
+            for (PlaceTile placement : placements)
+            {
+                while (ownersSent <= placement.getOwnerId())
+                    send(new PlaceRequest<>(PlaceRequest.RequestType.USER_ADDED, board.getOwners().entry(ownersSent++)));
+            }
+
+            send(new PlaceRequest<>(PlaceRequest.RequestType.TILE_HISTORY, new TileHistory(row, col, placements)));
+        }
+
+        logToFile("Sent TILE_HISTORY to " + username);
+    }
+
+    /**
+     * Queues the whole board for the client in place of the tile changes it fell too far behind on. The board carries
+     * the owner dictionary, so the client has heard of every owner in it.
+     *
+     * @throws IOException if the board could not be serialized
+     */
+    private void resync () throws IOException
+    {
+        synchronized (encoded)
+        {
+            PlaceBoard board = server.getBoard();
+            ownersSent = board.getOwners().size();
+            send(new PlaceRequest<>(PlaceRequest.RequestType.BOARD, board));
+        }
+
+        logToFile("Sent BOARD to " + username + " (resync)");
+    }
+
+    /**
+     * Moves tile changes from tileChanges into outbound for as long as the socket takes them right away. Only one
+     * thread pumps at a time; any other that wants to only makes sure the pumping thread looks again.
+     */
+    private void pump ()
+    {
+        synchronized (this)
+        {
+            if (!ready)
+                return; // login pumps once the client has what the changes apply to
+
+            if (pumping)
+            {
+                pumpAgain = true;
+                return;
+            }
+
+            pumping = true;
+        }
+
+        try
+        {
+            while (true)
+            {
+                synchronized (this) {
+                    pumpAgain = false;
+                }
+
+                while (!closed && isFlushed() && !tileChanges.isEmpty())
+                {
+                    if (tileChanges.takeResync())
+                        resync();
+
+                    TileChange change = tileChanges.poll();
+
+                    if (change != null)
+                        sendTileChanged(change);
+                }
+
+                synchronized (this)
+                {
+                    if (!pumpAgain)
+                    {
+                        pumping = false;
+                        return;
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            synchronized (this) {
+                pumping = false;
+            }
+
+            close();
+        }
+    }
+
+    /**
+     * Checks whether everything serialized so far has been written to the socket.
+     *
+     * @return is outbound empty
+     */
+    private boolean isFlushed ()
+    {
+        synchronized (outbound)
+        {
+            return outbound.isEmpty();
+        }
+    }
+
+    /**
+     * Serializes a request and queues it to be written to the client.
+     *
+     * @param request the request
+     * @throws IOException if the request could not be serialized
+     */
+    private void send (PlaceRequest<?> request) throws IOException
+    {
+        synchronized (encoded)
+        {
+            if (binaryOut == null)
+            {
+                out.writeUnshared(request);
+                out.flush();
+            }
+            else
+                PlaceCodec.write(binaryOut, request);
+
+            queue(ByteBuffer.wrap(encoded.take()));
+        }
+    }
+
+    /**
+     * Adds bytes to the outbound queue and writes as much of the queue as the socket will take right now. If
+     * anything is left over the selector thread is asked to finish the job.
+     *
+     * @param bytes the bytes to write
+     */
+    private void queue (ByteBuffer bytes)
+    {
+        synchronized (outbound)
+        {
+            outbound.add(bytes);
+
+            if (outbound.size() > 1) // Whoever queued the bytes ahead of these is already writing them
+                return;
+        }
+
+        if (!writeOutbound())
+            nio.wantWrite(this);
+    }
+
+    /**
+     * Writes as much of the outbound queue as the socket will take without blocking. Called by whichever thread
+     * queued the bytes, and by the selector thread once the socket is writable again.
+     *
+     * @return was the whole queue written
+     */
+    boolean writeOutbound ()
+    {
+        boolean failed = false;
+
+        synchronized (outbound)
+        {
+            try
+            {
+                while (!outbound.isEmpty())
+                {
+                    ByteBuffer head = outbound.peek();
+                    channel.write(head);
+
+                    if (head.hasRemaining())
+                        return false;
+
+                    outbound.poll();
+                }
+
+                if (key.isValid())
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            catch (IOException e)
+            {
+                outbound.clear();
+                failed = true;
+            }
+        }
+
+        // Closing is left until the lock is released, as close() needs the server's lock
+        if (failed || closeWhenFlushed)
+            close();
+
+        return true;
+    }
+
+    /**
+     * Called by the selector thread once the socket is writable again. Writes as much of outbound as the socket will
+     * take, and if all of it was written has an I/O thread send on the tile changes that waited in the meantime.
+     */
+    void writable ()
+    {
+        if (writeOutbound() && !tileChanges.isEmpty())
+            nio.getWorkers().execute(this::pump);
+    }
+
+    /**
+     * Makes the selector watch for the socket becoming writable (only ever called on the selector thread).
+     */
+    void watchWrites ()
+    {
+        if (key.isValid())
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Makes the selector read from the socket again (only ever called on the selector thread).
+     */
+    void watchReads ()
+    {
+        if (key.isValid())
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    /**
+     * Closes the connection once every queued request has been written.
+     */
+    private void closeWhenFlushed ()
+    {
+        closeWhenFlushed = true;
+
+        synchronized (outbound)
+        {
+            if (!outbound.isEmpty())
+                return;
+        }
+
+        close();
+    }
+
+    /**
+     * A private method that simply forwards a log of a PlaceRequest
+     * to a synchronized method inside PlaceServer
+     *
+     * @param message the message to be written to an external log file
+     */
+    private void logToFile (String message) { server.writeToFile(message); }
+
+    /**
+     * Queues TILE_CHANGED for the client whenever a tile on the server's board changes. This never waits on the
+     * client; if the client has fallen so far behind that the policy is to disconnect it, it is disconnected.
+     *
+     * @param placeServer the server whose board changed
+     * @param change the tile that changed, with its frame already encoded
+     */
+    @Override
+    public void update (PlaceServer placeServer, TileChange change)
+    {
+        if (tileChanges.offer(change))
+            pump();
+        else
+        {
+            logToFile("Disconnected " + username + " (too far behind on tile changes)");
+            close();
+        }
+    }
+
+    /**
+     * Sends the client ERROR and closes the connection once it has been written.
+     *
+     * @throws IOException if the request could not be serialized
+     */
+    @Override
+    public void serverClosed () throws IOException
+    {
+        tileChanges.close();
+        send(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Server Closed"));
+        logToFile("Sent ERROR to " + username + "(Server Closed)");
+        closeWhenFlushed();
+    }
+
+    /**
+     * Closes the channel and, if the client had logged in, frees its username.
+     */
+    void close ()
+    {
+        synchronized (this)
+        {
+            if (closed)
+                return;
+
+            closed = true;
+        }
+
+        key.cancel();
+        inbound.finish();
+        tileChanges.close();
+
+        try {
+            channel.close();
+        }
+        catch (IOException ignored) {}
+
+        if (loggedIn)
+        {
+            logToFile(username + " has left the server");
+            server.logOff(username);
+            System.out.printf("%s (%s) has left the chat\n", username, channel.socket().getInetAddress());
+        }
+    }
+
+    /**
+     * The buffer requests are serialized into. Unlike a plain ByteArrayOutputStream it does not hold on to the room
+     * it grew to for a large request (such as BOARD), which would otherwise stay allocated for every connection.
+     */
+    private static class EncodeBuffer extends ByteArrayOutputStream
+    {
+        /** the largest buffer kept between requests */
+        private static final int KEEP = 8192;
+
+        /**
+         * Removes everything written so far.
+         *
+         * @return the bytes that were written
+         */
+        byte[] take ()
+        {
+            byte[] bytes = toByteArray();
+            reset();
+
+            if (buf.length > KEEP)
+                buf = new byte[KEEP];
+
+            return bytes;
+        }
+    }
+
+    /**
+     * The bytes received from the client that have not been decoded yet. A request is only decoded once all of it has
+     * arrived; until then its bytes are left where they are.
+     */
+    private static class Inbound
+    {
+        /** the received bytes; the undecoded ones are data[start] to data[end - 1] */
+        private byte[] data = new byte[512];
+
+        /** the index of the first undecoded byte */
+        private int start;
+
+        /** the index after the last received byte */
+        private int end;
+
+        /** the number of bytes received so far, which tells a decoder whether more came in since it last looked */
+        private long received;
+
+        /** has the client closed its end of the connection */
+        private boolean finished;
+
+        /**
+         * Adds newly received bytes.
+         *
+         * @param bytes the bytes
+         */
+        synchronized void append (ByteBuffer bytes)
+        {
+            int length = bytes.remaining();
+
+            if (end + length > data.length)
+            {
+                int size = end - start;
+                byte[] bigger = size + length > data.length ? new byte[Math.max(data.length * 2, size + length)] : data;
+                System.arraycopy(data, start, bigger, 0, size);
+                data = bigger;
+                start = 0;
+                end = size;
+            }
+
+            bytes.get(data, end, length);
+            end += length;
+            received += length;
+        }
+
+        /** Marks the end of the stream */
+        synchronized void finish () { finished = true; }
+
+        /**
+         * Tells whether the client has closed its end of the connection.
+         *
+         * @return has the stream ended
+         */
+        synchronized boolean isFinished () { return finished; }
+
+        /**
+         * Returns the number of bytes received so far.
+         *
+         * @return the number of bytes
+         */
+        synchronized long received () { return received; }
+
+        /**
+         * Returns the number of bytes that have not been decoded yet.
+         *
+         * @return the number of bytes
+         */
+        synchronized int size () { return end - start; }
+
+        /**
+         * Decodes the Java-serialized LOGIN that starts the stream, if it has arrived in full. A LOGIN is decoded from
+         * the start of the stream every time, so a try that runs out of bytes leaves nothing behind.
+         *
+         * @return the request, or INCOMPLETE
+         * @throws IOException if the bytes are not a request, or MAX_LOGIN bytes are not enough for one
+         */
+        synchronized PlaceRequest<?> decodeLogin () throws IOException
+        {
+            ByteArrayInputStream bytes = new ByteArrayInputStream(data, start, end - start);
+
+            try
+            {
+                PlaceRequest<?> request = (PlaceRequest<?>)new ObjectInputStream(bytes).readUnshared();
+                start = end - bytes.available();
+                return request;
+            }
+            catch (EOFException e) {
+                return incomplete(MAX_LOGIN);
+            }
+            catch (ClassNotFoundException | ClassCastException e) {
+                throw new IOException("The client did not log in with a request", e);
+            }
+        }
+
+        /**
+         * Decodes the next binary frame, preceded by its length, if it has arrived in full.
+         *
+         * @param DIM the square dimension of the board the frame's tiles must lie on
+         * @return the request, null if the client signed off, or INCOMPLETE
+         * @throws IOException if the frame is malformed or larger than MAX_FRAME
+         */
+        synchronized PlaceRequest<?> decodeFramed (int DIM) throws IOException
+        {
+            ByteArrayInputStream bytes = new ByteArrayInputStream(data, start, end - start);
+            int length;
+
+            try {
+                length = PlaceCodec.checkFrameLength(PlaceCodec.readVarInt(new DataInputStream(bytes)));
+            }
+            catch (EOFException e) {
+                return INCOMPLETE;
+            }
+
+            int frame = end - bytes.available();
+
+            if (end - frame < length)
+                return INCOMPLETE;
+
+            start = frame + length;
+            return PlaceCodec.decodeFrame(data, frame, length, DIM);
+        }
+
+        /**
+         * This helper method reports a request that has not arrived in full, unless it is already too large.
+         *
+         * @param limit the most bytes the request may take
+         * @return INCOMPLETE
+         * @throws IOException if limit bytes have arrived without the whole request
+         */
+        private PlaceRequest<?> incomplete (int limit) throws IOException
+        {
+            if (end - start >= limit)
+                throw new IOException("A request of more than " + limit + " bytes");
+
+            return INCOMPLETE;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package place.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * The non-blocking alternative to running one {@link PlaceServerThread} per client. A single selector thread (the one
+ * that calls {@link #run()}) accepts connections and moves bytes between the sockets and each
+ * {@link NioClientConnection}'s buffers, while a fixed pool of I/O threads decodes and handles the requests. The
+ * number of threads therefore stays the same no matter how many clients are connected.
+ *
+ * @author Dmitry Selin
+ */
+public final class NioServer implements Closeable
+{
+    /** the server whose board and users the connections share */
+    private PlaceServer server;
+
+    /** the selector that watches every channel */
+    private Selector selector;
+
+    /** the channel that accepts new clients */
+    private ServerSocketChannel serverChannel;
+
+    /** the fixed pool of I/O threads that handle requests */
+    private ScheduledExecutorService workers;
+
+    /** connections that have bytes waiting to be written, whose keys must start watching for OP_WRITE */
+    private ConcurrentLinkedQueue<NioClientConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    /** connections that have room for incoming bytes again, whose keys must start watching for OP_READ */
+    private ConcurrentLinkedQueue<NioClientConnection> pendingReads = new ConcurrentLinkedQueue<>();
+
+    /** the buffer the selector thread reads incoming bytes into */
+    private ByteBuffer readBuffer = ByteBuffer.allocateDirect(8192);
+
+    /** is the server still accepting and serving clients */
+    private volatile boolean running;
+
+    /**
+     * Creates a new NioServer and binds it to port.
+     *
+     * @param server the PlaceServer the connections belong to
+     * @param port the port to listen on
+     * @param ioThreads the number of I/O threads that handle requests
+     * @throws IOException if the port could not be bound
+     */
+    public NioServer (PlaceServer server, int port, int ioThreads) throws IOException
+    {
+        this.server = server;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        workers = Executors.newScheduledThreadPool(ioThreads);
+        running = true;
+    }
+
+    /**
+     * Returns the pool of I/O threads (used by NioClientConnection).
+     *
+     * @return the I/O threads
+     */
+    ScheduledExecutorService getWorkers () { return workers; }
+
+    /**
+     * Asks the selector thread to start watching a connection for writability. Called by a connection whose socket
+     * could not take all of its outbound bytes at once.
+     *
+     * @param connection the connection with bytes left to write
+     */
+    void wantWrite (NioClientConnection connection)
+    {
+        pendingWrites.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the selector thread to start reading from a connection again. Called by a connection that had no room for
+     * incoming bytes, once it has decoded enough of them.
+     *
+     * @param connection the connection with room for incoming bytes
+     */
+    void wantRead (NioClientConnection connection)
+    {
+        pendingReads.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * The selector loop. Runs until {@link #close()} is called.
+     */
+    public void run ()
+    {
+        while (running)
+        {
+            try
+            {
+                selector.select();
+
+                NioClientConnection pending;
+                while ((pending = pendingWrites.poll()) != null)
+                    pending.watchWrites();
+                while ((pending = pendingReads.poll()) != null)
+                    pending.watchReads();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid())
+                        continue;
+
+                    if (key.isAcceptable())
+                        accept();
+                    else
+                    {
+                        NioClientConnection connection = (NioClientConnection)key.attachment();
+
+                        if (key.isReadable())
+                            read(key, connection);
+                        if (key.isValid() && key.isWritable())
+                            connection.writable();
+                    }
+                }
+            }
+            catch (ClosedSelectorException e) {
+                break;
+            }
+            catch (IOException e)
+            {
+                if (running)
+                    System.err.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Accepts a waiting client and starts watching it for incoming requests.
+     *
+     * @throws IOException if the client could not be accepted
+     */
+    private void accept () throws IOException
+    {
+        SocketChannel channel = serverChannel.accept();
+
+        if (channel == null)
+            return;
+
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        NioClientConnection connection = new NioClientConnection(server, this, channel, key);
+        key.attach(connection);
+    }
+
+    /**
+     * Reads whatever bytes are available on a connection's channel and hands them to the connection, and stops reading
+     * from it while it has no room for more.
+     *
+     * @param key the key of the readable channel
+     * @param connection the connection the channel belongs to
+     */
+    private void read (SelectionKey key, NioClientConnection connection)
+    {
+        SocketChannel channel = (SocketChannel)key.channel();
+
+        try
+        {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+
+            if (read < 0)
+            {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                connection.received(null);
+            }
+            else if (read > 0)
+            {
+                readBuffer.flip();
+
+                if (!connection.received(readBuffer))
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+        catch (IOException e) {
+            connection.received(null);
+        }
+    }
+
+    /**
+     * Stops accepting clients, stops the selector thread and shuts the I/O threads down once the requests they are
+     * handling are done.
+     *
+     * @throws IOException if closing a channel or the selector throws an IOException
+     */
+    @Override
+    public void close () throws IOException
+    {
+        running = false;
+        serverChannel.close();
+        selector.wakeup();
+        workers.shutdown();
+        selector.close();
+    }
+}
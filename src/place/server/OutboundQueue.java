@@ -0,0 +1,160 @@
+package place.server;
+
+import place.PlaceTile;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+
+/**
+ * The tile changes waiting to be sent to one client. The server only ever adds to the queue, which never blocks, so
+ * a client that reads slowly (or not at all) cannot hold up tile placement for everybody else; its connection takes
+ * the changes off the queue as fast as its socket allows. The queue is bounded, and once it is full the server's
+ * {@link ServerConfig.SlowConsumerPolicy} decides what happens:
+ * <ul>
+ *     <li>RESYNC - every queued change is dropped and the client is owed the whole board instead, which is sent
+ *     ahead of any change queued after that</li>
+ *     <li>COALESCE - the queued changes are collapsed into a single batch of the latest change of each tile; if that
+ *     batch would be larger than the queue itself the client is resynced</li>
+ *     <li>DISCONNECT - the change is refused and the connection should be closed</li>
+ * </ul>
+ * An entry of the queue is a {@link TileChange}, which is either a single change or a tick's batch of them.
+ *
+ * @author Dmitry Selin
+ */
+class OutboundQueue
+{
+    /** the most entries the queue holds */
+    private final int capacity;
+
+    /** what to do when the queue is full */
+    private final ServerConfig.SlowConsumerPolicy policy;
+
+    /** the queued changes, oldest first */
+    private ArrayDeque<TileChange> changes = new ArrayDeque<>();
+
+    /** is the client owed the whole board before the queued changes */
+    private boolean resync;
+
+    /** has the connection stopped taking changes */
+    private boolean closed;
+
+    /**
+     * Creates an empty queue.
+     *
+     * @param capacity the most entries the queue holds
+     * @param policy what to do when the queue is full
+     */
+    OutboundQueue (int capacity, ServerConfig.SlowConsumerPolicy policy)
+    {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Adds a change to the queue, making room for it according to the policy if the queue is full.
+     *
+     * @param change the change
+     * @return false if the queue is full and the policy is DISCONNECT, true otherwise
+     */
+    synchronized boolean offer (TileChange change)
+    {
+        if (closed)
+            return true;
+
+        if (changes.size() >= capacity)
+        {
+            if (policy == ServerConfig.SlowConsumerPolicy.DISCONNECT)
+                return false;
+
+            // When too many different tiles have changed to coalesce them, only a resync makes room
+            if (policy == ServerConfig.SlowConsumerPolicy.RESYNC || !coalesce())
+            {
+                changes.clear();
+                resync = true;
+            }
+        }
+
+        changes.add(change);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Collapses the queue into one batch of the latest change of each tile, in the order of those latest changes.
+     *
+     * @return false (leaving the queue as it was) if more tiles have changed than the queue has entries
+     */
+    private boolean coalesce ()
+    {
+        LinkedHashMap<Long, PlaceTile> latest = new LinkedHashMap<>();
+
+        for (TileChange change : changes)
+        {
+            for (PlaceTile tile : change.getTiles())
+            {
+                Long position = TileChange.positionOf(tile);
+
+                latest.remove(position);
+                latest.put(position, tile);
+            }
+        }
+
+        if (latest.size() > capacity)
+            return false;
+
+        changes.clear();
+        changes.add(new TileChange(latest.values().toArray(new PlaceTile[0])));
+        return true;
+    }
+
+    /**
+     * Waits until there is something to send or the queue is closed.
+     *
+     * @return false if the queue was closed, true otherwise
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    synchronized boolean await () throws InterruptedException
+    {
+        while (!closed && !resync && changes.isEmpty())
+            wait();
+
+        return !closed;
+    }
+
+    /**
+     * Checks whether the client is owed the whole board, and clears the debt. The board must be sent before any
+     * change that is taken off the queue afterwards.
+     *
+     * @return is the client owed the whole board
+     */
+    synchronized boolean takeResync ()
+    {
+        boolean owed = resync;
+        resync = false;
+        return owed;
+    }
+
+    /**
+     * Takes the oldest change off the queue.
+     *
+     * @return the change, or null if the queue is empty
+     */
+    synchronized TileChange poll () { return changes.poll(); }
+
+    /**
+     * Checks whether there is anything to send.
+     *
+     * @return is the queue empty and no resync owed
+     */
+    synchronized boolean isEmpty () { return !resync && changes.isEmpty(); }
+
+    /**
+     * Stops the queue: anything queued is dropped, later changes are ignored and a thread in {@link #await()} returns.
+     */
+    synchronized void close ()
+    {
+        closed = true;
+        changes.clear();
+        notifyAll();
+    }
+}
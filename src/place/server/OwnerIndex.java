@@ -0,0 +1,108 @@
+package place.server;
+
+import place.PlaceBoard;
+
+import java.util.Arrays;
+
+/**
+ * An index from every owner to the tiles it currently owns, so that moderation can list or revert the tiles of a user
+ * without scanning the whole board. Every owner id has a dense list of the row-major indices of its tiles, and every
+ * tile remembers where it is in the list of its owner, so a tile changing hands is moved from one list to the other
+ * in constant time (the last tile of the old list takes its place). Tiles of the empty owner (id 0) are not listed.
+ * <p>
+ * The index is kept up to date by the server as it changes the board, and may be read from any thread.
+ *
+ * @author Dmitry Selin
+ */
+class OwnerIndex
+{
+    /** the row-major indices of the tiles of every owner id, in no particular order */
+    private int[][] tiles = new int[16][];
+
+    /** the number of tiles of every owner id */
+    private int[] sizes = new int[16];
+
+    /** where every tile (row-major) is in the list of its owner */
+    private final int[] positions;
+
+    /**
+     * Creates the index of the tiles of a board as it is now.
+     *
+     * @param board the board, which nobody may change until this returns
+     */
+    OwnerIndex (PlaceBoard board)
+    {
+        positions = new int[board.DIM * board.DIM];
+
+        for (int row = 0; row < board.DIM; row++)
+        {
+            for (int col = 0; col < board.DIM; col++)
+                add(row * board.DIM + col, board.getOwnerId(row, col));
+        }
+    }
+
+    /**
+     * Moves a tile from the list of its old owner to the list of its new one.
+     *
+     * @param index the row-major index of the tile
+     * @param from the id of the owner the tile had before it changed
+     * @param to the id of the owner the tile has now
+     */
+    synchronized void moved (int index, int from, int to)
+    {
+        if (from == to)
+            return;
+
+        if (from != 0)
+        {
+            int position = positions[index];
+            int last = tiles[from][--sizes[from]];
+
+            tiles[from][position] = last;
+            positions[last] = position;
+        }
+
+        add(index, to);
+    }
+
+    /**
+     * Returns the tiles an owner owns now.
+     *
+     * @param ownerId the id of the owner
+     * @return the row-major indices of the tiles, in no particular order
+     */
+    synchronized int[] tilesOf (int ownerId)
+    {
+        if (ownerId <= 0 || ownerId >= sizes.length)
+            return new int[0];
+
+        return Arrays.copyOf(tiles[ownerId], sizes[ownerId]);
+    }
+
+    /**
+     * This helper method adds a tile to the end of the list of its owner.
+     *
+     * @param index the row-major index of the tile
+     * @param ownerId the id of the owner
+     */
+    private synchronized void add (int index, int ownerId)
+    {
+        if (ownerId == 0)
+            return;
+
+        if (ownerId >= sizes.length)
+        {
+            int length = Math.max(sizes.length * 2, ownerId + 1);
+            tiles = Arrays.copyOf(tiles, length);
+            sizes = Arrays.copyOf(sizes, length);
+        }
+
+        if (tiles[ownerId] == null)
+            tiles[ownerId] = new int[16];
+        else if (sizes[ownerId] == tiles[ownerId].length)
+            tiles[ownerId] = Arrays.copyOf(tiles[ownerId], sizes[ownerId] * 2);
+
+        positions[index] = sizes[ownerId];
+        tiles[ownerId][sizes[ownerId]++] = index;
+    }
+}
@@ -1,23 +1,38 @@
 package place.server;
 
+import place.MappedPlaceBoard;
+import place.OwnerDictionary;
 import place.PlaceBoard;
+import place.PlaceException;
 import place.PlaceTile;
-import place.model.Observer;
+import place.network.Region;
 
-import java.io.FileWriter;
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
 import java.util.Scanner;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The Place server is run on the command line as:
  *
- * $ java PlaceServer port DIM
+ * $ java PlaceServer port DIM [boardFile] [options]
  *
  * Where port is the port number of the host and DIM is the square dimension
- * of the board. This class represents the server end of Place.
+ * of the board. If boardFile is given, the board is kept off-heap in that
+ * memory-mapped file (see {@link MappedPlaceBoard}) and survives restarts.
+ * The options are described in {@link ServerConfig}. This class represents
+ * the server end of Place.
  *
  * @author Sean Strout @ RIT CS
  * @author Dmitry Selin
@@ -29,11 +44,14 @@ public class PlaceServer extends Thread
     /** the main PlaceBoard of the server */
     private PlaceBoard board;
 
+    /** the server-wide dictionary that gives every username that logs in a compact owner id */
+    private OwnerDictionary owners;
+
     /**
      * The HashMap of active users where the key is the username
-     * and the value is the PlaceServerThread of the user
+     * and the value is the connection of the user
      */
-    private ConcurrentHashMap<String, PlaceServerThread> usernames = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, ClientConnection> usernames = new ConcurrentHashMap<>();
 
     /** a listener thread that listens for any tile changes and records for statistics */
     private StatisticsListener statListener;
@@ -41,29 +59,94 @@ public class PlaceServer extends Thread
     /** the ServerSocket that client sockets connect to */
     private ServerSocket serverSocket;
 
+    /** the selector-based server that is used instead of serverSocket in NIO mode */
+    private NioServer nioServer;
+
     /** the port of the serverSocket */
     private final int PORT;
 
     /** the dimensions of board */
     private final int DIM;
 
-    /** the FileWriter that logs all exchanges between the server and client */
-    private FileWriter log;
+    /** the settings the server was started with */
+    private final ServerConfig config;
+
+    /** the factory that makes the threads each PlaceServerThread (and its writer) runs on */
+    private ThreadFactory clientThreads;
+
+    /** broadcasts the changes of every tick together, or null if every change is broadcast as it is made */
+    private ScheduledExecutorService broadcastTicker;
+
+    /** the latest change of every tile during the current tick, in the order they last changed (guarded by itself) */
+    private final LinkedHashMap<Long, PlaceTile> tickChanges = new LinkedHashMap<>();
+
+    /** identifies this run of the server, so that a reconnecting client can tell whether its sequence numbers still apply */
+    private final long epoch = System.currentTimeMillis();
+
+    /** the latest changes, for clients that reconnect (null if none are kept) */
+    private ChangeLog changeLog;
+
+    /** which connections only want the changes of some parts of the board */
+    private SubscriptionIndex subscriptions;
+
+    /** limits how fast each user may place tiles, or null if there is no limit */
+    private RateLimiter rateLimiter;
+
+    /** the journal every tile change is appended to, or null if none is kept */
+    private Journal journal;
+
+    /** the snapshot the board is written to every snapshot interval, or null if none are taken */
+    private Snapshot snapshot;
+
+    /** takes a snapshot every snapshot interval, or null if none are taken */
+    private ScheduledExecutorService snapshotTaker;
+
+    /** the history every tile change is recorded in, or null if none is kept */
+    private BoardHistory history;
+
+    /** the last placements of every tile, or null if none are remembered */
+    private PlacementHistory placements;
+
+    /** the tiles every owner currently owns, for moderation */
+    private OwnerIndex ownerIndex;
+
+    /** the single thread that applies every placement to board, in the order they were published */
+    private BoardWriter boardWriter;
+
+    /** the changes of every chunk (row-major) that are still to be sent, in --striped mode (null otherwise) */
+    private ChunkOutbox[] outboxes;
+
+    /** the changes boardWriter made that are still to be sent, as they wait for the journal (guarded by this) */
+    private final ChunkOutbox writerOutbox = new ChunkOutbox();
+
+    /** makes the placements of clients that cannot be told to wait once their users have waited */
+    private ScheduledExecutorService placementQueue;
+
+    /** the log of all exchanges between the server and client (null if it could not be opened) */
+    private ServerLog log;
 
     /**
      * Creates a new PlaceServer: initializes the port and board dimensions
-     * of the new server (as well as the FileWriter, log)
+     * of the new server (as well as the log)
      *
      * @param port the port that clients must use to connect to the server
      * @param DIM the dimensions of board
      */
-    public PlaceServer (int port, int DIM)
+    public PlaceServer (int port, int DIM) { this(new ServerConfig(port, DIM)); }
+
+    /**
+     * Creates a new PlaceServer with the given settings.
+     *
+     * @param config the settings parsed from the command line
+     */
+    public PlaceServer (ServerConfig config)
     {
-        PORT = port;
-        this.DIM = DIM;
+        PORT = config.getPort();
+        this.DIM = config.getDIM();
+        this.config = config;
 
         try {
-            log = new FileWriter("./src/place/server/ServerLog.txt");
+            log = new ServerLog(config.getLogFile());
         }
         catch (IOException e) {
             e.printStackTrace();
@@ -78,26 +161,479 @@ public class PlaceServer extends Thread
     public PlaceBoard getBoard() { return board; }
 
     /**
-     * Changes a tile in board. This method also updates statListener and
-     * pushes the recent tile change to the other user threads.
+     * Returns the settings the server was started with (used by the client connections)
+     *
+     * @return the settings
+     */
+    public ServerConfig getConfig() { return config; }
+
+    /**
+     * Returns the factory that makes the threads each PlaceServerThread runs on (used by
+     * PlaceServerThread to start its writer on the same kind of thread)
+     *
+     * @return the thread factory
+     */
+    ThreadFactory getClientThreads() { return clientThreads; }
+
+    /**
+     * Returns the statistics of the server, which may be read while it runs (for example the
+     * heatmap of the board and its hottest tiles, rows, columns and chunks)
+     *
+     * @return the statistics listener
+     */
+    public StatisticsListener getStatistics() { return statListener; }
+
+    /**
+     * Changes a tile in board. The tile is handed to boardWriter, which applies it to board,
+     * updates statListener and pushes the change to the other user threads (right away, or
+     * at the end of the current tick if the server broadcasts on a tick) on its own thread,
+     * so the calling thread never waits for the server's lock. If the server was started
+     * with --striped, the calling thread does all of that itself instead, holding only the
+     * lock of the tile's chunk while it changes board. A tile outside the board or without a
+     * color is not changed.
+     *
+     * @param tile the tile to change, already stamped with its owner and time
+     * @param placer the connection that changed the tile, which is sent the change as well
+     * @return was the tile valid, and so changed
+     */
+    public boolean changeBoardTile (PlaceTile tile, ClientConnection placer)
+    {
+        if (!isValidPlacement(tile)) // Only valid tiles may reach boardWriter, which applies them blindly
+            return false;
+
+        if (boardWriter != null)
+            boardWriter.publish(new PlaceTile[] { tile }, placer);
+        else
+            placeInChunk(new PlaceTile[] { tile }, placer);
+
+        return true;
+    }
+
+    /**
+     * Tells whether a tile may be placed: it has a color and is on the board.
+     *
+     * @param tile the tile
+     * @return is the tile valid
+     */
+    public boolean isValidPlacement (PlaceTile tile)
+    {
+        return tile != null && tile.getColor() != null && board.isValid(tile);
+    }
+
+    /**
+     * Changes many tiles in board at once (CHANGE_TILES). The valid tiles are handed to
+     * boardWriter together, so they are applied while the server's lock is held only once,
+     * no other change lands in between, and they are pushed to the other user threads as
+     * one batch of the last change of each tile (or added to the current tick). Tiles
+     * outside the board or without a color are skipped. If the server was started with
+     * --striped, the tiles are applied and pushed chunk by chunk instead.
+     *
+     * @param tiles the tiles to change, already stamped with their owner and time
+     * @param accepted filled in with whether each tile is changed
+     * @param placer the connection that changed the tiles, which is sent the batch as well
+     *               (null if the server changed them itself, which statListener does not count
+     *               as placements)
+     */
+    public void changeBoardTiles (PlaceTile[] tiles, boolean[] accepted, ClientConnection placer)
+    {
+        ArrayList<PlaceTile> valid = new ArrayList<>(tiles.length);
+
+        for (int i = 0; i < tiles.length; i++)
+        {
+            PlaceTile tile = tiles[i];
+            accepted[i] = isValidPlacement(tile);
+
+            if (accepted[i])
+                valid.add(tile);
+        }
+
+        if (valid.isEmpty())
+            return;
+
+        if (boardWriter != null)
+        {
+            boardWriter.publish(valid.toArray(new PlaceTile[0]), placer);
+            return;
+        }
+
+        LinkedHashMap<Integer, ArrayList<PlaceTile>> parts = new LinkedHashMap<>();
+
+        for (PlaceTile tile : valid)
+            parts.computeIfAbsent(chunkOf(tile), key -> new ArrayList<>()).add(tile);
+
+        for (ArrayList<PlaceTile> part : parts.values())
+            placeInChunk(part.toArray(new PlaceTile[0]), placer);
+    }
+
+    /**
+     * This helper method applies tiles of a single chunk to board on the calling thread (in
+     * --striped mode). Only the chunk's lock is held, and only while the tiles are applied and
+     * the change is added to the chunk's outbox; changes of other chunks are made at the same
+     * time. The journal is committed after the lock is released, so placers that commit at
+     * once share a single write (and fsync). The change is then pushed from the outbox, which
+     * sends the changes of a chunk in the order they were made without the server's lock. A
+     * change the journal could not write is left in the outbox, and only sent along with the
+     * next change of the chunk that is written.
+     *
+     * @param tiles the tiles, all in the same chunk
+     * @param placer the connection that changed the tiles, which is sent the change as well (or null)
+     */
+    private void placeInChunk (PlaceTile[] tiles, ClientConnection placer)
+    {
+        int chunk = chunkOf(tiles[0]);
+        long number;
+
+        synchronized (board.getChunkLock(chunk))
+        {
+            number = outboxes[chunk].add(applyTiles(tiles, placer != null), placer);
+        }
+
+        if (journal != null) // Nobody is told of the change before it is committed
+        {
+            try {
+                journal.commit();
+            }
+            catch (PlaceException e)
+            {
+                System.err.println(e.getMessage());
+                return;
+            }
+        }
+
+        outboxes[chunk].sendUpTo(number, this::sendChange);
+    }
+
+    /**
+     * This helper method pushes a change to the other user threads (or adds it to the current
+     * tick), and sends it to the connection that made it.
+     *
+     * @param change the change
+     * @param placer the connection that made the change (or null)
+     */
+    private void sendChange (TileChange change, ClientConnection placer)
+    {
+        broadcast(change);
+
+        if (placer != null)
+            placer.update(this, change);
+    }
+
+    /**
+     * Utilized by boardWriter. Applies a run of placements in the order they were published,
+     * while the server's lock is held only once. Every placement is pushed to the other user
+     * threads (or added to the current tick), and sent to the connection that made it. If the
+     * server keeps a journal, the whole run is committed to it at once before anybody is told
+     * of it; a run the journal could not write is held back until a later run is written.
      *
-     * @param tile the tile that was changed
+     * @param placements the placements
+     * @param count how many of them to apply
+     */
+    void applyPlacements (BoardWriter.Placement[] placements, int count)
+    {
+        long number = 0;
+
+        synchronized (this)
+        {
+            for (int i = 0; i < count; i++)
+                number = writerOutbox.add(applyTiles(placements[i].tiles, placements[i].placer != null),
+                        placements[i].placer);
+
+            if (journal == null)
+            {
+                writerOutbox.sendUpTo(number, this::sendChange);
+                return;
+            }
+        }
+
+        try {
+            journal.commit();
+        }
+        catch (PlaceException e)
+        {
+            System.err.println(e.getMessage());
+            return;
+        }
+
+        synchronized (this)
+        {
+            writerOutbox.sendUpTo(number, this::sendChange);
+        }
+    }
+
+    /**
+     * This helper method applies the tiles of one placement to board, as a single change of the
+     * last change of each tile.
+     *
+     * @param tiles the tiles
+     * @param placed were the tiles placed by a user (rather than changed by the server itself)
+     * @return the change, so every client can be sent the same frame
+     */
+    private TileChange applyTiles (PlaceTile[] tiles, boolean placed)
+    {
+        TileChange change;
+
+        if (tiles.length == 1)
+        {
+            applyTile(tiles[0], placed);
+            change = new TileChange(tiles[0]);
+        }
+        else
+        {
+            LinkedHashMap<Long, PlaceTile> latest = new LinkedHashMap<>();
+
+            for (PlaceTile tile : tiles)
+            {
+                applyTile(tile, placed);
+
+                Long position = TileChange.positionOf(tile);
+                latest.remove(position);
+                latest.put(position, tile);
+            }
+
+            change = new TileChange(latest.values().toArray(new PlaceTile[0]));
+        }
+
+        return change;
+    }
+
+    /**
+     * This helper method pushes a change to the other user threads, or adds it to the current
+     * tick. It needs no lock of the server, and in --striped mode is called by many threads at
+     * once (for different chunks).
+     *
+     * @param change the change
+     */
+    private void broadcast (TileChange change)
+    {
+        if (broadcastTicker == null)
+            updateServerThreads(change);
+        else
+        {
+            synchronized (tickChanges)
+            {
+                // Only the last change of a tile during a tick is broadcast
+                for (PlaceTile tile : change.getTiles())
+                {
+                    Long position = TileChange.positionOf(tile);
+                    tickChanges.remove(position);
+                    tickChanges.put(position, tile);
+                }
+            }
+        }
+    }
+
+    /**
+     * This helper method changes a tile in board, numbers the change and records it for
+     * statListener, the change log, the journal and the owner index. In --striped mode it is
+     * called by many threads at once (holding the lock of the tile's chunk), so everything it
+     * records to is safe for that: the board version and statListener are atomic, ownerIndex,
+     * changeLog and journal are synchronized (changeLog takes changes out of sequence order,
+     * and journal.commit() covers every change appended before it), history queues the
+     * changes for its own thread and placements is only touched under the chunk's lock. Only
+     * tiles a user placed are counted by statListener.
+     *
+     * @param tile the tile
+     * @param placed was the tile placed by a user (rather than changed by the server itself)
+     */
+    private void applyTile (PlaceTile tile, boolean placed)
+    {
+        // Read before the change, while nobody else can change the tile (the writer thread, or the chunk's lock)
+        int previousOwner = board.getOwnerId(tile.getRow(), tile.getCol());
+
+        tile.setSequence(board.setTile(tile)); // The board version counts every change the server has accepted
+        ownerIndex.moved(tile.getRow() * DIM + tile.getCol(), previousOwner, tile.getOwnerId());
+
+        if (placed)
+            statListener.update(this, tile);
+
+        if (changeLog != null)
+            changeLog.add(tile);
+
+        if (journal != null)
+            journal.append(tile);
+
+        if (history != null)
+            history.record(tile);
+
+        if (placements != null)
+            placements.record(tile);
+    }
+
+    /**
+     * Returns the run of the server that sequence numbers belong to (used by the client connections)
+     *
+     * @return the epoch
+     */
+    public long getEpoch() { return epoch; }
+
+    /**
+     * Returns every change a reconnecting client missed, collapsed to the latest change of each
+     * tile. The client must already be logged in, so that any change made after this returns is
+     * sent to it as usual.
+     *
+     * @param epoch the run of the server the client was connected to
+     * @param sequence the sequence number of the last change the client saw
+     * @return the missed changes, or null if the client must be sent the whole board instead
+     */
+    public synchronized PlaceTile[] changesSince (long epoch, long sequence)
+    {
+        if (epoch != this.epoch || changeLog == null)
+            return null;
+
+        return changeLog.since(sequence, board.getVersion());
+    }
+
+    /**
+     * Utilized by PlaceServerThread and NioClientConnection. Returns the last placements of a tile
+     * the server remembers (GET_TILE_HISTORY).
+     *
+     * @param row the row of the tile
+     * @param col the column of the tile
+     * @return the placements, newest first; only the current one (or none if the tile was never
+     *         changed) if the server remembers no placements
+     */
+    PlaceTile[] tileHistory (int row, int col)
+    {
+        if (placements != null)
+            return placements.placementsOf(row, col);
+
+        return board.getTime(row, col) == 0 ? new PlaceTile[0] : new PlaceTile[] { board.getTile(row, col) };
+    }
+
+    /**
+     * Rebuilds board as it was right after a tile change, from the history of the server.
+     * Used for moderation and for looking back on an event (the console's at command).
+     *
+     * @param sequence the sequence number of the change
+     * @return a new PlaceBoard with the tiles the board had then
+     * @throws PlaceException if the server keeps no history, or its history does not go back that far
+     */
+    public PlaceBoard getBoardAt (long sequence) throws PlaceException
+    {
+        if (history == null)
+            throw new PlaceException("The server keeps no history");
+
+        return history.boardAt(sequence);
+    }
+
+    /**
+     * Rebuilds board as it was at a time, after every tile change made up to it, from the
+     * history of the server (the console's ago command).
+     *
+     * @param time the time, in milliseconds
+     * @return a new PlaceBoard with the tiles the board had then
+     * @throws PlaceException if the server keeps no history, or its history does not go back that far
+     */
+    public PlaceBoard getBoardAtTime (long time) throws PlaceException
+    {
+        if (history == null)
+            throw new PlaceException("The server keeps no history");
+
+        return history.boardAtTime(time);
+    }
+
+    /**
+     * Returns every tile a user currently owns, from the owner index rather than a scan of board.
+     * Used for moderation.
+     *
+     * @param username the user
+     * @return the tiles, in no particular order (none if the user never placed a tile)
+     */
+    public PlaceTile[] getTilesOwnedBy (String username)
+    {
+        int[] indices = ownerIndex.tilesOf(owners.find(username));
+        ArrayList<PlaceTile> tiles = new ArrayList<>(indices.length);
+
+        for (int index : indices)
+        {
+            PlaceTile tile = board.getTile(index / DIM, index % DIM);
+
+            if (username.equals(tile.getOwner())) // The tile may have changed hands since the index was read
+                tiles.add(tile);
+        }
+
+        return tiles.toArray(new PlaceTile[0]);
+    }
+
+    /**
+     * Reverts every tile a user placed since a time that the user still owns, back to what it
+     * looked like before (from the last placements of every tile the server remembers). The
+     * restored tiles are changed like the tiles of a CHANGE_TILES, so every client is sent them
+     * as one batch. They keep the color and owner they had before, but are stamped with the
+     * current time, as the times of the board's changes must never go backwards (the journal
+     * and the board history replay up to a time), and they are not counted as placements of
+     * their owners. Used for moderation.
+     *
+     * @param username the user
+     * @param since the time the placements to revert start at, in milliseconds
+     * @return the number of tiles reverted; tiles whose earlier placement is no longer remembered
+     *         are left alone
+     * @throws PlaceException if the server remembers no placements (--tile-history)
+     */
+    public int revertPlacements (String username, long since) throws PlaceException
+    {
+        if (placements == null)
+            throw new PlaceException("The server remembers no placements to revert to");
+
+        int ownerId = owners.find(username);
+        ArrayList<PlaceTile> restored = new ArrayList<>();
+        int forgotten = 0;
+        long now = System.currentTimeMillis();
+
+        for (PlaceTile tile : getTilesOwnedBy(username))
+        {
+            if (tile.getTime() < since)
+                continue;
+
+            PlaceTile before = placements.placementBefore(tile.getRow(), tile.getCol(), ownerId, since);
+
+            if (before == null)
+                forgotten++;
+            else
+            {
+                PlaceTile revert = new PlaceTile(before.getRow(), before.getCol(), before.getOwner(),
+                        before.getColor(), now);
+                revert.setOwnerId(before.getOwnerId());
+                restored.add(revert);
+            }
+        }
+
+        if (!restored.isEmpty())
+            changeBoardTiles(restored.toArray(new PlaceTile[0]), new boolean[restored.size()], null);
+
+        writeToFile("Reverted " + restored.size() + " tiles of " + username + " placed since " + since +
+                (forgotten == 0 ? "" : " (" + forgotten + " too old to revert)"));
+        return restored.size();
+    }
+
+    /**
+     * Broadcasts every tile that changed during the tick that just ended as
+     * a single batch (run by broadcastTicker at the end of every tick).
      */
-    public synchronized void changeBoardTile (PlaceTile tile)
+    private void broadcastTick ()
     {
-        board.setTile(tile);
-        statListener.update(this, tile);
-        updateServerThreads(tile);
+        PlaceTile[] tiles;
+
+        synchronized (tickChanges)
+        {
+            if (tickChanges.isEmpty())
+                return;
+
+            tiles = tickChanges.values().toArray(new PlaceTile[0]);
+            tickChanges.clear();
+        }
+
+        updateServerThreads(new TileChange(tiles));
     }
 
     /**
-     * Utilized by PlaceServerThread. Adds the user and its respective thread to the
-     * HashMap, usernames.
+     * Utilized by PlaceServerThread and NioClientConnection. Adds the user and its respective
+     * connection to the HashMap, usernames.
      *
      * @param username the username of the user
-     * @param clientThread the PlaceServerThread that the respective user is running on
+     * @param clientThread the connection of the respective user
      */
-    public synchronized void logIn (String username, PlaceServerThread clientThread) { usernames.put(username, clientThread); }
+    public synchronized void logIn (String username, ClientConnection clientThread) { usernames.put(username, clientThread); }
 
     /**
      * Utilized by PlaceServerThread. Removes a username from usernames. This method
@@ -105,7 +641,113 @@ public class PlaceServer extends Thread
      *
      * @param username the username of the user
      */
-    public synchronized void logOff (String username) { usernames.remove(username); }
+    public synchronized void logOff (String username)
+    {
+        ClientConnection connection = usernames.remove(username);
+
+        if (connection != null)
+            subscriptions.remove(connection);
+
+        if (rateLimiter != null)
+            rateLimiter.forget(username);
+    }
+
+    /**
+     * Utilized by PlaceServerThread and NioClientConnection. Lets a user place a tile now if it
+     * has not placed tiles faster than the server allows.
+     *
+     * @param username the username of the user
+     * @return 0 if the user may place a tile now, otherwise how many milliseconds until it may
+     */
+    long tryPlace (String username) { return rateLimiter == null ? 0 : rateLimiter.tryAcquire(username); }
+
+    /**
+     * Utilized by PlaceServerThread and NioClientConnection. Books a placement of a user whose
+     * client cannot be told to wait, for as soon as the user may place a tile.
+     *
+     * @param username the username of the user
+     * @return how many milliseconds until the placement may be made (0 for now), or -1 if the user
+     *         already has so many placements waiting that this one is dropped
+     */
+    long reservePlacement (String username) { return rateLimiter == null ? 0 : rateLimiter.reserve(username); }
+
+    /**
+     * Utilized by PlaceServerThread and NioClientConnection. Makes a booked placement once its
+     * wait is over, without holding up the connection's thread in the meantime.
+     *
+     * @param placement the placement
+     * @param wait how many milliseconds until it may be made
+     */
+    void placeLater (Runnable placement, long wait) { placementQueue.schedule(placement, wait, TimeUnit.MILLISECONDS); }
+
+    /**
+     * Utilized by PlaceServerThread and NioClientConnection. Replaces the regions of the board a user
+     * wants the changes of. The user is then sent the current tiles of the parts of the board it was
+     * not sent the changes of until now, ahead of any change made afterwards (in --striped mode,
+     * one chunk at a time).
+     *
+     * @param username the username of the user
+     * @param connection the connection of the user
+     * @param regions the regions the user shows
+     */
+    public void subscribe (String username, ClientConnection connection, Region[] regions)
+    {
+        BitSet added;
+
+        synchronized (this)
+        {
+            if (usernames.get(username) != connection) // The user already left
+                return;
+
+            added = subscriptions.subscribe(connection, regions);
+
+            if (outboxes == null) // boardWriter only broadcasts under this lock, so nothing gets ahead
+            {
+                sendTiles(connection, added);
+                return;
+            }
+        }
+
+        // Sending may need this lock (to close a connection that is too far behind), so each chunk is sent outside it
+        for (int chunk = added.nextSetBit(0); chunk >= 0; chunk = added.nextSetBit(chunk + 1))
+        {
+            BitSet only = new BitSet();
+            only.set(chunk);
+            outboxes[chunk].sendAhead(() -> sendTiles(connection, only));
+        }
+    }
+
+    /**
+     * This helper method sends a connection the current tiles of some chunks, as one batch.
+     *
+     * @param connection the connection
+     * @param chunks the chunks
+     */
+    private void sendTiles (ClientConnection connection, BitSet chunks)
+    {
+        ArrayList<PlaceTile> tiles = new ArrayList<>();
+
+        for (int chunk = chunks.nextSetBit(0); chunk >= 0; chunk = chunks.nextSetBit(chunk + 1))
+        {
+            int firstRow = board.getChunkRow(chunk);
+            int firstCol = board.getChunkCol(chunk);
+
+            synchronized (board.getChunkLock(chunk)) // Sees every change that was added to the chunk's outbox
+            {
+                for (int row = firstRow; row < Math.min(firstRow + PlaceBoard.CHUNK, DIM); row++)
+                {
+                    for (int col = firstCol; col < Math.min(firstCol + PlaceBoard.CHUNK, DIM); col++)
+                    {
+                        if (board.getTime(row, col) != 0) // Tiles that were never changed are white on every board
+                            tiles.add(board.getTile(row, col));
+                    }
+                }
+            }
+        }
+
+        if (!tiles.isEmpty())
+            connection.update(this, new TileChange(tiles.toArray(new PlaceTile[0])));
+    }
 
     /**
      * Utilized by PlaceServerThread. Checks if the username already exists within usernames
@@ -117,45 +759,107 @@ public class PlaceServer extends Thread
 
     /**
      * This helper method updates all observer PlaceServerThread objects of a tile change that
-     * occurred within board.
+     * occurred within board. Connections that subscribed to regions are only updated of the
+     * chunks they subscribed to.
      *
-     * @param tile the PlaceTile that was changed
+     * @param change the change, encoded once for every observer
      */
-    private void updateServerThreads (PlaceTile tile)
+    private void updateServerThreads (TileChange change)
     {
-        for (Observer<PlaceServer, PlaceTile> observer: usernames.values())
-            observer.update(this, tile);
+        for (ClientConnection connection: usernames.values())
+        {
+            if (!subscriptions.isSubscribed(connection))
+                connection.update(this, change);
+        }
+
+        if (!subscriptions.isEmpty())
+            updateSubscribers(change);
     }
 
     /**
-     * This method writes out message to an external text file (Utilized by PlaceServerThread)
+     * This helper method updates the connections that subscribed to the chunks of a tile change.
+     * A batch is split by chunk, and each part is encoded once for every subscriber of its chunk.
      *
-     * @param message the message to be written out
+     * @param change the change
      */
-    public synchronized void writeToFile (String message)
+    private void updateSubscribers (TileChange change)
     {
-        try
+        PlaceTile[] tiles = change.getTiles();
+
+        if (tiles.length == 1)
         {
-            log.write(message + "\n");
-            log.flush();
+            for (ClientConnection connection: subscriptions.subscribersOf(chunkOf(tiles[0])))
+                connection.update(this, change);
+
+            return;
         }
-        catch (IOException e) {
-            System.err.println(e.getMessage());
+
+        LinkedHashMap<Integer, ArrayList<PlaceTile>> parts = new LinkedHashMap<>();
+
+        for (PlaceTile tile : tiles)
+        {
+            int chunk = chunkOf(tile);
+
+            if (subscriptions.subscribersOf(chunk).length > 0)
+                parts.computeIfAbsent(chunk, key -> new ArrayList<>()).add(tile);
+        }
+
+        for (Integer chunk : parts.keySet())
+        {
+            TileChange part = new TileChange(parts.get(chunk).toArray(new PlaceTile[0]));
+
+            for (ClientConnection connection: subscriptions.subscribersOf(chunk))
+                connection.update(this, part);
         }
     }
 
+    /**
+     * Returns the chunk of the board a tile is in.
+     *
+     * @param tile the tile
+     * @return the chunk number
+     */
+    private int chunkOf (PlaceTile tile) { return board.getChunk(tile.getRow(), tile.getCol()); }
+
+    /**
+     * This method writes out message to an external text file (Utilized by PlaceServerThread).
+     * The message is only queued, and written by the log's own thread along with others.
+     *
+     * @param message the message to be written out
+     */
+    public void writeToFile (String message)
+    {
+        if (log != null)
+            log.log(message);
+    }
+
     /**
      * Closes the server. This method is called by ServerStopListener and closes all
-     * PlaceServerThread threads that are running before closing serverSocket.
+     * client connections that are running before closing serverSocket (or nioServer).
      */
     public void closeServer()
     {
+        if (placementQueue != null) // Placements that are still waiting are dropped along with their clients
+            placementQueue.shutdownNow();
+
+        if (boardWriter != null) // Applies the placements that were already made before they are broadcast
+            boardWriter.close();
+
+        if (broadcastTicker != null) // Broadcasts what changed during the last tick before the clients are let go
+        {
+            broadcastTicker.shutdown();
+            broadcastTick();
+        }
+
         try
         {
-            for (PlaceServerThread client : usernames.values())
+            for (ClientConnection client : usernames.values())
                 client.serverClosed();
 
-            serverSocket.close();
+            if (nioServer != null)
+                nioServer.close();
+            else
+                serverSocket.close();
         }
         catch (IOException e) {
             System.err.println(e.getMessage());
@@ -170,6 +874,45 @@ public class PlaceServer extends Thread
     @Override
     public void run()
     {
+        try
+        {
+            owners = new OwnerDictionary();
+            board = config.getBoardFile() == null ? new PlaceBoard(DIM, owners) :
+                    new MappedPlaceBoard(DIM, owners, Paths.get(config.getBoardFile()));
+            subscriptions = new SubscriptionIndex(board);
+
+            if (config.getSnapshotFile() != null)
+            {
+                snapshot = new Snapshot(Paths.get(config.getSnapshotFile()));
+
+                if (snapshot.exists()) // Starts from the last snapshot, so only the journal after it is replayed
+                    System.out.println("Loaded the snapshot of tile change " + snapshot.load(board) + " from " +
+                            config.getSnapshotFile());
+            }
+
+            if (config.getJournalFile() != null) // Brings the board back to where the last run left it
+            {
+                journal = new Journal(Paths.get(config.getJournalFile()), DIM, owners, config.getFsyncPolicy(),
+                        config.getFsyncInterval());
+                System.out.println("Replayed " + journal.replay(board) + " tile changes from " +
+                        config.getJournalFile());
+            }
+
+            ownerIndex = new OwnerIndex(board);
+
+            if (config.getTileHistoryDepth() > 0)
+                placements = new PlacementHistory(board, config.getTileHistoryDepth());
+
+            if (config.getHistoryDirectory() != null) // Starts from a keyframe of the board as it is now
+                history = new BoardHistory(Paths.get(config.getHistoryDirectory()), board,
+                        config.getKeyframeInterval());
+        }
+        catch (PlaceException e)
+        {
+            System.err.println(e.getMessage());
+            return;
+        }
+
         /* Creates and starts a ServerStopListener - this object runs on a separate
         thread and waits for user input so that the server can be shut down gracefully */
         ServerStopListener stopListener = new ServerStopListener(this);
@@ -177,16 +920,77 @@ public class PlaceServer extends Thread
 
         try
         {
-            serverSocket = new ServerSocket(PORT);
-            board = new PlaceBoard(DIM);
             statListener = new StatisticsListener(DIM);
 
-            while (stopListener.isServerRunning()) // The main loop (runs until user initiates shutdown)
+            if (config.getChangeLogCapacity() > 0)
+                changeLog = new ChangeLog(config.getChangeLogCapacity());
+
+            if (!config.isStriped())
+            {
+                boardWriter = new BoardWriter(this);
+                boardWriter.start();
+            }
+            else
+            {
+                outboxes = new ChunkOutbox[board.CHUNKS * board.CHUNKS];
+
+                for (int chunk = 0; chunk < outboxes.length; chunk++)
+                    outboxes[chunk] = new ChunkOutbox();
+            }
+
+            if (config.getRateCount() > 0)
+            {
+                rateLimiter = new RateLimiter(config.getRateCount(), config.getRatePeriod());
+                placementQueue = Executors.newSingleThreadScheduledExecutor(task ->
+                {
+                    Thread thread = new Thread(task, "Queued placements");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+
+            if (config.getTick() > 0)
+            {
+                broadcastTicker = Executors.newSingleThreadScheduledExecutor(task ->
+                {
+                    Thread ticker = new Thread(task, "Broadcast tick");
+                    ticker.setDaemon(true);
+                    return ticker;
+                });
+                broadcastTicker.scheduleAtFixedRate(this::broadcastTick, config.getTick(), config.getTick(),
+                        TimeUnit.MILLISECONDS);
+            }
+
+            if (snapshot != null)
+            {
+                snapshotTaker = Executors.newSingleThreadScheduledExecutor(task ->
+                {
+                    Thread thread = new Thread(task, "Board snapshot");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                snapshotTaker.scheduleWithFixedDelay(this::takeSnapshot, config.getSnapshotInterval(),
+                        config.getSnapshotInterval(), TimeUnit.MILLISECONDS);
+            }
+
+            if (config.getMode() == ServerConfig.Mode.NIO)
+            {
+                // A single selector thread and a fixed pool of I/O threads serve every client
+                nioServer = new NioServer(this, PORT, config.getIoThreads());
+                nioServer.run(); // Runs until the user initiates shutdown
+            }
+            else
             {
-                Socket client = serverSocket.accept(); // Blocked waiting for a client socket connection
+                serverSocket = new ServerSocket(PORT);
+                clientThreads = clientThreadFactory();
 
-                // This creates and starts a new thread that represents an individual client connection
-                new PlaceServerThread(this, client).start();
+                while (stopListener.isServerRunning()) // The main loop (runs until user initiates shutdown)
+                {
+                    Socket client = serverSocket.accept(); // Blocked waiting for a client socket connection
+
+                    // This creates and starts a new thread that represents an individual client connection
+                    clientThreads.newThread(new PlaceServerThread(this, client)).start();
+                }
             }
         }
         catch (IOException e)
@@ -202,36 +1006,105 @@ public class PlaceServer extends Thread
         catch (InterruptedException ignored) {}
 
         statListener.getStats(); // Display the stats for the run of the server
+
+        if (log != null) // Writes out the messages that are still queued
+            log.close();
+
+        if (history != null) // Records the changes that are still queued
+            history.close();
+
+        if (snapshot != null) // The next run starts from the board as it is now, without replaying anything
+        {
+            snapshotTaker.shutdown();
+            takeSnapshot();
+        }
+
+        if (journal != null) // Writes and syncs the changes that are not in the journal yet
+        {
+            try {
+                journal.close();
+            }
+            catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+
+        if (board instanceof Closeable) // Writes a memory-mapped board back to its file
+        {
+            try {
+                ((Closeable)board).close();
+            }
+            catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
     }
 
     /**
-     * The main method simply starts the server on a separate thread.
+     * Writes a snapshot of board while tiles keep being placed, then drops the part of the journal it
+     * holds (run by snapshotTaker every snapshot interval, and once more when the server stops).
+     */
+    private void takeSnapshot ()
+    {
+        try
+        {
+            long version = snapshot.write(board);
+
+            if (journal != null)
+                journal.compact(version);
+        }
+        catch (PlaceException e) {
+            System.err.println("Could not take a snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the factory that makes the threads each PlaceServerThread runs on. In VIRTUAL mode these are virtual
+     * threads, which are looked up reflectively so that the server still runs (on platform threads) on a Java
+     * release that does not have them.
      *
-     * @param args the command line arguments
+     * @return the thread factory
      */
-    public static void main(String[] args)
+    private ThreadFactory clientThreadFactory()
     {
-        if (args.length != 2)
-            System.out.println("Usage: java PlaceServer port DIM");
-        else
+        if (config.getMode() == ServerConfig.Mode.VIRTUAL)
         {
             try
             {
-                int port = Integer.parseInt(args[0]);
-                int DIM = Integer.parseInt(args[1]);
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
 
-                new PlaceServer(port, DIM).start(); // Creates and starts the server
+                return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
             }
-            catch (NumberFormatException e) {
-                System.err.println(e.getMessage());
+            catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads are not available, running clients on platform threads instead");
             }
         }
+
+        return Thread::new;
+    }
+
+    /**
+     * The main method simply starts the server on a separate thread.
+     *
+     * @param args the command line arguments
+     */
+    public static void main(String[] args)
+    {
+        try {
+            new PlaceServer(ServerConfig.parse(args)).start(); // Creates and starts the server
+        }
+        catch (PlaceException e) {
+            System.out.println(e.getMessage());
+        }
     }
 
     /**
      * This internal static class runs on a separate thread and constantly checks for possible
      * user input. If the user hits ENTER while the server is running, a graceful shutdown of
-     * the server will commence.
+     * the server will commence. Two moderation commands may be entered as well:
+     * "tiles username" counts the tiles a user owns, and "revert username minutes" reverts
+     * the tiles the user placed in the last so many minutes.
      */
     static class ServerStopListener extends Thread
     {
@@ -270,12 +1143,73 @@ public class PlaceServer extends Thread
 
             while (serverRunning)
             {
+                String[] command = input.nextLine().trim().split("\\s+");
+
                 // If the user hits the RETURN or ENTER key - the server will be shut down
-                if (input.nextLine().equals(""))
+                if (command[0].equals(""))
                 {
                     serverRunning = false;
                     server.closeServer();
                 }
+                else if (command[0].equals("tiles") && command.length == 2)
+                    System.out.println(command[1] + " owns " + server.getTilesOwnedBy(command[1]).length + " tiles");
+                else if (command[0].equals("revert") && command.length == 3)
+                    revert(command[1], command[2]);
+                else if ((command[0].equals("at") || command[0].equals("ago")) && command.length == 3)
+                    saveBoardOf(command[0].equals("at"), command[1], command[2]);
+                else if (command[0].equals("hottest") && command.length == 1)
+                    server.getStatistics().printHottest();
+                else
+                    System.out.println("Usage: tiles username | revert username minutes | at change file | " +
+                            "ago minutes file | hottest | ENTER to shut down");
+            }
+        }
+
+        /**
+         * This helper method reverts the tiles a user placed in the last so many minutes,
+         * and prints how many were reverted.
+         *
+         * @param username the user
+         * @param minutes the number of minutes, as it was entered
+         */
+        private void revert (String username, String minutes)
+        {
+            try
+            {
+                long since = System.currentTimeMillis() - (long)(Double.parseDouble(minutes) * 60000);
+                System.out.println("Reverted " + server.revertPlacements(username, since) + " tiles of " + username);
+            }
+            catch (NumberFormatException e) {
+                System.out.println(minutes + " is not a number of minutes");
+            }
+            catch (PlaceException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+
+        /**
+         * This helper method rebuilds the board as it was right after a tile change, or so many
+         * minutes ago, from the history of the server, and saves it as a snapshot that another
+         * server can be started from (--snapshot) to look at it.
+         *
+         * @param atChange is when a tile change number rather than a number of minutes ago
+         * @param when the tile change number or the number of minutes, as it was entered
+         * @param file the file to save the snapshot to
+         */
+        private void saveBoardOf (boolean atChange, String when, String file)
+        {
+            try
+            {
+                PlaceBoard board = atChange ? server.getBoardAt(Long.parseLong(when)) :
+                        server.getBoardAtTime(System.currentTimeMillis() - (long)(Double.parseDouble(when) * 60000));
+                new Snapshot(Paths.get(file)).write(board);
+                System.out.println("Saved the board as of tile change " + board.getVersion() + " to " + file);
+            }
+            catch (NumberFormatException e) {
+                System.out.println(when + " is not a " + (atChange ? "tile change number" : "number of minutes"));
+            }
+            catch (PlaceException | InvalidPathException e) {
+                System.out.println(e.getMessage());
             }
         }
     }
@@ -1,18 +1,36 @@
 package place.server;
 
+import place.OwnerDictionary;
 import place.PlaceBoard;
 import place.PlaceTile;
-import place.model.Observer;
+import place.network.Handshake;
+import place.network.PlaceCodec;
 import place.network.PlaceRequest;
+import place.network.Region;
+import place.network.Rejection;
+import place.network.TileHistory;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Since the {@link PlaceServer} is multi-threaded, each client that must connect to it runs on its own thread. This class
  * encapsulates the logic needed for a the server to interact with a client, including implementing the "server's half"
  * of the Place application protocol, namely LOGIN_SUCCESS, BOARD, TILE_CHANGED, and ERROR.
  * <p>
+ * The class is a {@link Runnable} rather than a {@link Thread} so that the server decides what kind of thread runs it:
+ * a platform thread by default, or a virtual thread in VIRTUAL mode (see {@link ServerConfig}), where the blocking
+ * reads and writes park cheaply instead of holding on to an operating system thread. For that, whatever blocks on the
+ * socket must not hold a monitor: a virtual thread that blocks inside a synchronized method stays pinned to its
+ * carrier thread, and a few slow clients would take every carrier. Writes are therefore serialized by writeLock
+ * rather than by synchronized methods.
+ * <p>
+ * Tile changes are not written to the client by the thread that made them. They are added to this connection's
+ * {@link OutboundQueue}, which never blocks, and a writer thread of its own sends them on, so a client with a full TCP
+ * window only ever holds up its own writer. What happens when the client falls too far behind is decided by the
+ * server's {@link ServerConfig.SlowConsumerPolicy}.
+ * <p>
  * Notice this class implements {@link Closeable}. Each client thread has its own connection to the client that must be
  * closed. This is done automatically in this class' {@link PlaceServerThread#run} method.
  * <p>
@@ -21,7 +39,7 @@ import java.net.Socket;
  * @author Joey Territo
  * @since 12/3/19
  */
-public class PlaceServerThread extends Thread implements Observer<PlaceServer, PlaceTile>, Closeable
+public class PlaceServerThread implements Runnable, ClientConnection, Closeable
 {
 	/** The PlaceServer this client's thread is running on */
 	private PlaceServer server;
@@ -35,12 +53,30 @@ public class PlaceServerThread extends Thread implements Observer<PlaceServer, P
 	/** The name that the client wants to connect to the server with */
 	private String username;
 
+	/** The id given to username by the server's {@link OwnerDictionary} */
+	private int ownerId;
+
+	/** How many entries of the server's {@link OwnerDictionary} the client already knows about */
+	private int ownersSent;
+
 	/** The gateway for sending requests to the client */
 	private ObjectInputStream in;
 
 	/** The gateway for reading in requests from the client */
 	private ObjectOutputStream out;
 
+	/** The gateway for reading binary frames from the client, or null while requests are Java-serialized */
+	private DataInputStream binaryIn;
+
+	/** The gateway for sending binary frames to the client, or null while requests are Java-serialized */
+	private DataOutputStream binaryOut;
+
+	/** Held while anything is written to the client, so that the reader, the writer and the server take turns */
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	/** The tile changes waiting to be sent to the client by its writer */
+	private final OutboundQueue outbound;
+
 	/** A flag to keep track of whether or not an error has occurred */
 	private Status status;
 
@@ -52,7 +88,7 @@ public class PlaceServerThread extends Thread implements Observer<PlaceServer, P
 
 	/**
 	 * Create a new {@code PlaceServerThread}. Note this this does not <em>spawn</em> the thread, i.e. just creating
-	 * the thread doesn't do much.
+	 * the thread doesn't do much; the server hands it to a new thread to run.
 	 *
 	 * @param clientServer which server this thread is running on
 	 * @param client the client to connect to
@@ -65,6 +101,9 @@ public class PlaceServerThread extends Thread implements Observer<PlaceServer, P
 		username = "";
 		status = Status.RUNNING;
 
+		ServerConfig config = clientServer.getConfig();
+		outbound = new OutboundQueue(config.getOutboundCapacity(), config.getSlowConsumerPolicy());
+
 		try
 		{
 			out = new ObjectOutputStream(client.getOutputStream());
@@ -80,8 +119,9 @@ public class PlaceServerThread extends Thread implements Observer<PlaceServer, P
 	 * <ul>
 	 *     <li>Listens for the client to LOGIN</li>
 	 *     <li>Ensures the client logged in with a valid (not taken) username</li>
-	 *     <li>Sends the client LOGIN_SUCCESS followed by BOARD</li>
-	 *     <li>Listens for and handles CHANGE_TILE requests</li>
+	 *     <li>Sends the client LOGIN_SUCCESS followed by BOARD, or by only the changes it missed if it is
+	 *     reconnecting and the server still remembers them</li>
+	 *     <li>Listens for and handles CHANGE_TILE, CHANGE_TILES and SUBSCRIBE requests</li>
 	 *     <li>Disconnects the client when the client chooses to log off</li>
 	 * </ul>
 	 */
@@ -93,8 +133,11 @@ public class PlaceServerThread extends Thread implements Observer<PlaceServer, P
 			// Listen for LOGIN
 			PlaceRequest<?> maybeLogin = (PlaceRequest<?>) in.readUnshared();
 
+			// Newer clients log in with a Handshake offering the binary protocol, older ones with just their username
+			Handshake offer = maybeLogin.getData() instanceof Handshake ? (Handshake) maybeLogin.getData() : null;
+
 			try {
-				username = (String) maybeLogin.getData();
+				username = offer != null ? offer.getUsername() : (String) maybeLogin.getData();
 				logToFile("Received LOGIN from " + username);
 			}
 			catch (ClassCastException e) {
@@ -108,7 +151,7 @@ public class PlaceServerThread extends Thread implements Observer<PlaceServer, P
 				PlaceRequest<String> didntLogin = new PlaceRequest<>(
 					PlaceRequest.RequestType.ERROR, "Did not receive an initial LOGIN request");
 
-				out.writeUnshared(didntLogin);
+				send(didntLogin);
 				logToFile("Sent ERROR to " + username + "(Did not receive an initial LOGIN request)");
 			}
 			else if (!server.isUsernameValid(username))
@@ -118,23 +161,62 @@ public class PlaceServerThread extends Thread implements Observer<PlaceServer, P
 				PlaceRequest<String> usernameTaken = new PlaceRequest<>(PlaceRequest.RequestType.ERROR,
 					String.format("A user with the username %s is already logged in", username));
 
-				out.writeUnshared(usernameTaken);
+				send(usernameTaken);
 				logToFile("Sent ERROR to " + username + "(Same username conflict)");
 			}
 			else
 			{
+				/* Tell the main server about a new username first, so that every change made from now on is queued
+				   for the client; anything earlier is in the board or the missed changes sent below */
+				server.logIn(username, this);
+
 				// Login was successful
-				PlaceRequest<String> loginSuccessful = new PlaceRequest<>(PlaceRequest.RequestType.LOGIN_SUCCESS, username);
-				out.writeUnshared(loginSuccessful);
+				PlaceTile[] missed = null;
+
+				if (offer == null)
+					send(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN_SUCCESS, username));
+				else
+				{
+					// Accept the binary protocol, and switch to it for everything after LOGIN_SUCCESS
+					int version = Math.min(offer.getProtocolVersion(), PlaceCodec.VERSION);
+
+					// A client that is reconnecting only needs what it missed, if the server still remembers it
+					if (version > 0 && offer.getSequence() >= 0)
+						missed = server.changesSince(offer.getEpoch(), offer.getSequence());
+
+					send(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN_SUCCESS, new Handshake(username, version,
+						server.getEpoch(), missed != null ? offer.getSequence() : -1, 0)));
+
+					if (version > 0)
+						useBinaryProtocol();
+				}
 				logToFile("Sent LOGIN_SUCCESS to " + username);
 
-				// The board is sent only once directly after a successful login attempt
-				PlaceRequest<PlaceBoard> initialBoard = new PlaceRequest<>(PlaceRequest.RequestType.BOARD, board);
-				out.writeUnshared(initialBoard);
-				logToFile("Sent BOARD to " + username);
+				// Give the username an owner id before the board (and its owner dictionary) is sent
+				ownerId = board.getOwners().idOf(username);
 
-				// Tell the main server about a new username
-				server.logIn(username, this);
+				if (missed != null)
+				{
+					// The client kept its board and owner dictionary, so it only needs the changes it missed
+					ownersSent = Math.min(offer.getOwners(), board.getOwners().size());
+
+					if (missed.length > 0)
+						sendTileChanged(new TileChange(missed));
+
+					logToFile("Sent " + missed.length + " missed changes to " + username);
+				}
+				else
+				{
+					ownersSent = board.getOwners().size();
+
+					// The board is sent only once directly after a successful login attempt
+					PlaceRequest<PlaceBoard> initialBoard = new PlaceRequest<>(PlaceRequest.RequestType.BOARD, board);
+					send(initialBoard);
+					logToFile("Sent BOARD to " + username);
+				}
+
+				// Start sending the client tile changes
+				server.getClientThreads().newThread(this::writeOutbound).start();
 
 				// Display the username and IP address of a client when they login
 				System.out.printf("%s (%s) has entered the chat\n", username, client.getInetAddress());
@@ -142,24 +224,23 @@ public class PlaceServerThread extends Thread implements Observer<PlaceServer, P
 				PlaceRequest<?> maybeChangeTile;
 
 				// Move on to indefinitely listening for CHANGE_TILE
-				while (status == Status.RUNNING && (maybeChangeTile = (PlaceRequest<?>) in.readUnshared()) != null)
+				while (status == Status.RUNNING && (maybeChangeTile = receive()) != null)
 				{
 					// Whenever a CHANGE_TILE request is received, change the requested tile
 					if (maybeChangeTile.getType() == PlaceRequest.RequestType.CHANGE_TILE)
+						changeTile((PlaceTile) maybeChangeTile.getData());
+					// A trusted client may change many tiles at once, and is told which of them were changed
+					else if (maybeChangeTile.getType() == PlaceRequest.RequestType.CHANGE_TILES)
+						changeTiles((PlaceTile[]) maybeChangeTile.getData());
+					// A client that only shows part of the board only wants the changes of that part
+					else if (maybeChangeTile.getType() == PlaceRequest.RequestType.SUBSCRIBE)
 					{
-						PlaceTile tileToChange = (PlaceTile) maybeChangeTile.getData();
-
-						// When a tile change comes in, it should be recorded by the server with a timestamp of the current time
-						tileToChange.setTime(System.currentTimeMillis());
-						server.changeBoardTile(tileToChange);
-						logToFile("Received CHANGE_TILE from " + username);
-
-						PlaceRequest<PlaceTile> tileChanged = new PlaceRequest<>(PlaceRequest.RequestType.TILE_CHANGED, tileToChange);
-						out.writeUnshared(tileChanged);
-						logToFile("Sent TILE_CHANGED to " + username);
-
-						sleep(500);
+						server.subscribe(username, this, (Region[]) maybeChangeTile.getData());
+						logToFile("Received SUBSCRIBE from " + username);
 					}
+					// A client may ask who drew over a tile and when
+					else if (maybeChangeTile.getType() == PlaceRequest.RequestType.GET_TILE_HISTORY)
+						sendTileHistory((TileHistory) maybeChangeTile.getData());
 				}
 			}
 
@@ -167,6 +248,9 @@ public class PlaceServerThread extends Thread implements Observer<PlaceServer, P
 		}
 		catch (Exception ignored) {}
 
+		// Stop the writer
+		outbound.close();
+
 		/* Detect when the client closes the connection
 		Tell the main server that the username that this client was using is now available */
 		server.logOff(username);
@@ -175,16 +259,117 @@ public class PlaceServerThread extends Thread implements Observer<PlaceServer, P
 		System.out.printf("%s (%s) has left the chat\n", username, client.getInetAddress());
 	}
 
+	/**
+	 * Handles a CHANGE_TILE. The server limits how fast each user may place tiles, and this thread never waits for
+	 * that: a tile that comes too fast is answered with TILE_REJECTED if the client understands it, and is otherwise
+	 * placed later, once the user has waited, while this thread goes on reading from the client.
+	 *
+	 * @param tileToChange the tile
+	 * @throws IOException if TILE_REJECTED could not be sent
+	 */
+	private void changeTile(PlaceTile tileToChange) throws IOException
+	{
+		logToFile("Received CHANGE_TILE from " + username);
+
+		if (!server.isValidPlacement(tileToChange))
+		{
+			logToFile("Dropped CHANGE_TILE from " + username + " (not a tile of the board)");
+			return;
+		}
+
+		if (binaryIn != null) // Clients of the binary protocol understand TILE_REJECTED
+		{
+			long wait = server.tryPlace(username);
+
+			if (wait > 0)
+			{
+				send(new PlaceRequest<>(PlaceRequest.RequestType.TILE_REJECTED, new Rejection(tileToChange, wait)));
+				logToFile("Sent TILE_REJECTED to " + username);
+				return;
+			}
+		}
+		else
+		{
+			long wait = server.reservePlacement(username);
+
+			if (wait < 0)
+			{
+				logToFile("Dropped CHANGE_TILE from " + username + " (too many placements waiting)");
+				return;
+			}
+			else if (wait > 0)
+			{
+				server.placeLater(() -> placeTile(tileToChange), wait);
+				return;
+			}
+		}
+
+		placeTile(tileToChange);
+	}
+
+	/**
+	 * Changes a tile on the board for the client, and sends the client TILE_CHANGED.
+	 *
+	 * @param tileToChange the tile
+	 */
+	private void placeTile(PlaceTile tileToChange)
+	{
+		if (client.isClosed()) // The client left while the placement was waiting
+			return;
+
+		// When a tile change comes in, it should be recorded by the server with a timestamp of the current time
+		tileToChange.setTime(System.currentTimeMillis());
+		tileToChange.setOwner(username);
+		tileToChange.setOwnerId(ownerId);
+		server.changeBoardTile(tileToChange, this);
+		logToFile("Sent TILE_CHANGED to " + username);
+	}
+
+	/**
+	 * Handles a CHANGE_TILES. Only a trusted user may change many tiles at once, and the whole batch counts as one
+	 * placement towards the user's rate. The client is always told which of the tiles were changed.
+	 *
+	 * @param tilesToChange the tiles
+	 * @throws IOException if CHANGE_TILES_RESULT could not be sent
+	 */
+	private void changeTiles(PlaceTile[] tilesToChange) throws IOException
+	{
+		boolean[] accepted = new boolean[tilesToChange.length];
+		logToFile("Received CHANGE_TILES from " + username);
+
+		if (server.getConfig().isTrusted(username) && server.tryPlace(username) == 0)
+		{
+			long now = System.currentTimeMillis();
+
+			for (PlaceTile tile : tilesToChange)
+			{
+				if (tile != null)
+				{
+					tile.setTime(now);
+					tile.setOwner(username);
+					tile.setOwnerId(ownerId);
+				}
+			}
+
+			server.changeBoardTiles(tilesToChange, accepted, this);
+		}
+
+		send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILES_RESULT, accepted));
+		logToFile("Sent CHANGE_TILES_RESULT to " + username);
+	}
+
 	/**
 	 * Ends the connection between the server and the client by sending an error message to
 	 * the client and changing the status to CLOSED
 	 *
-	 * @throws IOException if out.writeUnshared() throws an IOException
+	 * @throws IOException if the request could not be sent
 	 */
+	@Override
 	public void serverClosed () throws IOException
 	{
 		status = Status.CLOSED;
-		out.writeUnshared(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Server Closed"));
+		outbound.close();
+		send(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Server Closed"));
 		logToFile("Sent ERROR to " + username + "(Server Closed)");
 	}
 
@@ -197,27 +382,55 @@ public class PlaceServerThread extends Thread implements Observer<PlaceServer, P
 	private void logToFile (String message) { server.writeToFile(message); }
 
 	/**
-	 * The method that is called when this thread is alerted about a changed tile. It updates the state of this PlaceBoard
-	 * and then sends TILE_CHANGED to the client.
+	 * The method that is called when this thread is alerted about a changed tile. The server has already changed the
+	 * board this thread shares with it, so all that is left is to queue TILE_CHANGED for the writer. This never waits
+	 * on the client; if the client has fallen so far behind that the policy is to disconnect it, it is disconnected.
 	 *
 	 * @param placeServer the server that this thread is running on
-	 * @param placeTile   the tile that changed
+	 * @param change      the tile that changed, with its frame already encoded
 	 */
 	@Override
-	public void update(PlaceServer placeServer, PlaceTile placeTile)
+	public void update(PlaceServer placeServer, TileChange change)
 	{
-		board.setTile(placeTile);
+		if (outbound.offer(change))
+			return;
+
+		// Thread dies
+		outbound.close();
+		status = Status.ERROR;
+		logToFile("Disconnected " + username + " (too far behind on tile changes)");
+
+		try {
+			close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
+	/**
+	 * The writer of this connection, run on its own thread once the client has logged in. It sends whatever the server
+	 * queues for the client, resending the whole board when the client fell too far behind for its changes to be kept.
+	 * It stops when the queue is closed or the client can no longer be written to.
+	 */
+	private void writeOutbound()
+	{
 		try
 		{
-			if (!client.isClosed() && !client.isOutputShutdown())
-				out.writeUnshared(new PlaceRequest<>(PlaceRequest.RequestType.TILE_CHANGED, placeTile));
-			else
-				status = Status.ERROR;
+			while (outbound.await())
+			{
+				if (outbound.takeResync())
+					resync();
+
+				TileChange change = outbound.poll();
+
+				if (change != null)
+					sendTileChanged(change);
+			}
 		}
-		catch (IOException e)
+		catch (IOException | InterruptedException e)
 		{
-			// Thread dies
+			// The thread reading from the client notices the closed socket and cleans up
 			try {
 				close();
 			}
@@ -227,6 +440,159 @@ public class PlaceServerThread extends Thread implements Observer<PlaceServer, P
 		}
 	}
 
+	/**
+	 * Sends the client the whole board in place of the tile changes it fell too far behind on. The board carries the
+	 * owner dictionary, so the client has heard of every owner in it.
+	 *
+	 * @throws IOException if the request could not be sent
+	 */
+	private void resync() throws IOException
+	{
+		writeLock.lock();
+
+		try
+		{
+			ownersSent = board.getOwners().size();
+			send(new PlaceRequest<>(PlaceRequest.RequestType.BOARD, board));
+		}
+		finally {
+			writeLock.unlock();
+		}
+
+		logToFile("Sent BOARD to " + username + " (resync)");
+	}
+
+	/**
+	 * Sends TILE_CHANGED (or TILES_CHANGED for a batch) to the client. Any owners the client has not heard of yet are
+	 * sent first as USER_ADDED so that the client can always look up the owner ids carried by the tiles. A binary
+	 * client is written the frames the server encoded once for everybody.
+	 *
+	 * @param change the tiles that changed
+	 * @throws IOException if the request could not be sent
+	 */
+	private void sendTileChanged(TileChange change) throws IOException
+	{
+		OwnerDictionary owners = board.getOwners();
+		writeLock.lock();
+
+		try
+		{
+			for (PlaceTile tile : change.getTiles())
+			{
+				while (ownersSent <= tile.getOwnerId())
+					send(new PlaceRequest<>(PlaceRequest.RequestType.USER_ADDED, owners.entry(ownersSent++)));
+			}
+
+			if (binaryOut == null)
+			{
+				for (PlaceTile tile : change.getTiles())
+					out.writeUnshared(new PlaceRequest<>(PlaceRequest.RequestType.TILE_CHANGED, tile));
+			}
+			else
+			{
+				change.writeFrame(binaryOut);
+				binaryOut.flush();
+			}
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Answers a GET_TILE_HISTORY with the last placements of the tile the server remembers, preceded by USER_ADDED for
+	 * any of their owners the client has not heard of yet. A tile outside the board has no placements.
+	 *
+	 * @param question the coordinates of the tile
+	 * @throws IOException if the request could not be sent
+	 */
+	private void sendTileHistory(TileHistory question) throws IOException
+	{
+		logToFile("Received GET_TILE_HISTORY from " + username);
+
+		int row = question.getRow();
+		int col = question.getCol();
+		PlaceTile[] placements = row >= 0 && row < board.DIM && col >= 0 && col < board.DIM ?
+			server.tileHistory(row, col) : new PlaceTile[0];
+
+		writeLock.lock();
+
+		try
+		{
+			for (PlaceTile placement : placements)
+			{
+				while (ownersSent <= placement.getOwnerId())
+					send(new PlaceRequest<>(PlaceRequest.RequestType.USER_ADDED, board.getOwners().entry(ownersSent++)));
+			}
+
+			send(new PlaceRequest<>(PlaceRequest.RequestType.TILE_HISTORY, new TileHistory(row, col, placements)));
+		}
+		finally {
+			writeLock.unlock();
+		}
+
+		logToFile("Sent TILE_HISTORY to " + username);
+	}
+
+	/**
+	 * Switches both directions of the connection over to the binary protocol of {@link PlaceCodec}.
+	 *
+	 * @throws IOException if the socket's streams could not be opened
+	 */
+	private void useBinaryProtocol() throws IOException
+	{
+		writeLock.lock();
+
+		try
+		{
+			binaryIn = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+			binaryOut = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Sends a request to the client using whichever protocol the connection is using.
+	 *
+	 * @param request the request
+	 * @throws IOException if the request could not be sent
+	 */
+	private void send(PlaceRequest<?> request) throws IOException
+	{
+		writeLock.lock();
+
+		try
+		{
+			if (binaryOut == null)
+				out.writeUnshared(request);
+			else
+			{
+				PlaceCodec.write(binaryOut, request);
+				binaryOut.flush();
+			}
+		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for the next request from the client using whichever protocol the connection is using.
+	 *
+	 * @return the request, or null if the client has signed off
+	 * @throws IOException if the connection was lost or a frame was malformed
+	 * @throws ClassNotFoundException if a Java-serialized request is of an unknown class
+	 */
+	private PlaceRequest<?> receive() throws IOException, ClassNotFoundException
+	{
+		if (binaryIn == null)
+			return (PlaceRequest<?>) in.readUnshared();
+
+		return PlaceCodec.readFramed(binaryIn, board.DIM);
+	}
+
 	/**
 	 * Closes all connections to the client, including the socket and object input/output streams.
 	 *
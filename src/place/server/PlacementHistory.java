@@ -0,0 +1,173 @@
+package place.server;
+
+import place.OwnerDictionary;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+
+/**
+ * The last few placements of every tile of the board, kept in memory so that a client can be told who drew over a
+ * tile and when (GET_TILE_HISTORY) without a look at the disk. Like the board, the history is kept in flat primitive
+ * arrays rather than objects: every tile has a ring of depth slots (color number, owner id and time), and a count of
+ * its placements that says which slot is written next. The arrays are allocated a chunk at a time, the first time a
+ * tile of the chunk changes, so a history of depth placements costs about 13 * depth bytes for every tile of the
+ * chunks that were ever changed. The history starts with the tiles the board was loaded with.
+ * <p>
+ * The history of a chunk is only read and written while the chunk's lock is held.
+ *
+ * @author Dmitry Selin
+ */
+class PlacementHistory
+{
+    /** all the colors, indexed by color number */
+    private static final PlaceColor[] COLORS = PlaceColor.values();
+
+    /** the board whose placements are kept */
+    private final PlaceBoard board;
+
+    /** how many placements of every tile are kept */
+    private final int depth;
+
+    /** the color numbers of the kept placements of every chunk, depth slots per tile, or null for an unchanged chunk */
+    private final byte[][] colors;
+
+    /** the owner ids of the kept placements of every chunk */
+    private final int[][] ownerIds;
+
+    /** the times of the kept placements of every chunk */
+    private final long[][] times;
+
+    /** the number of placements of every tile of every chunk */
+    private final int[][] counts;
+
+    /**
+     * Creates a history that starts with the current placement of every tile that was ever changed (restored from a
+     * snapshot or the journal), so that a tile always remembers what it looked like before the placements made since.
+     *
+     * @param board the board whose placements are kept, which nobody may change until this returns
+     * @param depth how many placements of every tile are kept
+     */
+    PlacementHistory (PlaceBoard board, int depth)
+    {
+        int chunks = board.CHUNKS * board.CHUNKS;
+
+        this.board = board;
+        this.depth = depth;
+        colors = new byte[chunks][];
+        ownerIds = new int[chunks][];
+        times = new long[chunks][];
+        counts = new int[chunks][];
+
+        for (int row = 0; row < board.DIM; row++)
+        {
+            for (int col = 0; col < board.DIM; col++)
+            {
+                if (board.getTime(row, col) != 0)
+                {
+                    PlaceTile tile = new PlaceTile(row, col, "", board.getColor(row, col), board.getTime(row, col));
+                    tile.setOwnerId(board.getOwnerId(row, col));
+                    record(tile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records a placement of a tile, which replaces the oldest kept placement of the tile once depth are kept.
+     *
+     * @param tile the placement, with its owner id
+     */
+    void record (PlaceTile tile)
+    {
+        int chunk = board.getChunk(tile.getRow(), tile.getCol());
+
+        synchronized (board.getChunkLock(chunk))
+        {
+            if (counts[chunk] == null)
+            {
+                int tiles = PlaceBoard.CHUNK * PlaceBoard.CHUNK;
+                colors[chunk] = new byte[tiles * depth];
+                ownerIds[chunk] = new int[tiles * depth];
+                times[chunk] = new long[tiles * depth];
+                counts[chunk] = new int[tiles];
+            }
+
+            int index = indexInChunk(tile.getRow(), tile.getCol());
+            int slot = index * depth + counts[chunk][index]++ % depth;
+
+            colors[chunk][slot] = (byte)tile.getColor().getNumber();
+            ownerIds[chunk][slot] = tile.getOwnerId();
+            times[chunk][slot] = tile.getTime();
+        }
+    }
+
+    /**
+     * Returns the kept placements of a tile.
+     *
+     * @param row the row of the tile
+     * @param col the column of the tile
+     * @return the placements, newest first, with their owner names
+     */
+    PlaceTile[] placementsOf (int row, int col)
+    {
+        int chunk = board.getChunk(row, col);
+        OwnerDictionary owners = board.getOwners();
+
+        synchronized (board.getChunkLock(chunk))
+        {
+            if (counts[chunk] == null)
+                return new PlaceTile[0];
+
+            int index = indexInChunk(row, col);
+            int count = counts[chunk][index];
+            PlaceTile[] placements = new PlaceTile[Math.min(count, depth)];
+
+            for (int i = 0; i < placements.length; i++)
+            {
+                int slot = index * depth + (count - 1 - i) % depth;
+                int ownerId = ownerIds[chunk][slot];
+
+                placements[i] = new PlaceTile(row, col, owners.nameOf(ownerId), COLORS[colors[chunk][slot]],
+                        times[chunk][slot]);
+                placements[i].setOwnerId(ownerId);
+            }
+
+            return placements;
+        }
+    }
+
+    /**
+     * Finds what a tile looked like before an owner's placements since a time, for reverting them: the newest kept
+     * placement that is not one of those. A tile that was white before them gets a white tile with no owner.
+     *
+     * @param row the row of the tile
+     * @param col the column of the tile
+     * @param ownerId the id of the owner whose placements are skipped
+     * @param since the time the skipped placements start at, in milliseconds
+     * @return the placement, with its owner name and id, or null if it is too old to be kept any more
+     */
+    PlaceTile placementBefore (int row, int col, int ownerId, long since)
+    {
+        PlaceTile[] placements = placementsOf(row, col);
+
+        for (PlaceTile placement : placements)
+        {
+            if (placement.getOwnerId() != ownerId || placement.getTime() < since)
+                return placement;
+        }
+
+        if (placements.length == depth) // Older placements may have been overwritten
+            return null;
+
+        return new PlaceTile(row, col, "", PlaceColor.WHITE, 0);
+    }
+
+    /**
+     * Returns where a tile is within its chunk.
+     *
+     * @param row the row of the tile
+     * @param col the column of the tile
+     * @return the row-major index of the tile within its chunk
+     */
+    private static int indexInChunk (int row, int col) { return row % PlaceBoard.CHUNK * PlaceBoard.CHUNK + col % PlaceBoard.CHUNK; }
+}
@@ -0,0 +1,107 @@
+package place.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Limits how fast each user may place tiles, whatever connection (or how many connections in turn) it places them
+ * from. Every user has a token bucket that holds up to count placements and fills up again at count placements per
+ * period; a placement takes one token. The bucket is kept as the single time at which it will next be full (the
+ * generic cell rate algorithm), so checking it never needs a timer, and nothing ever waits on it: a connection is told
+ * how long the user has to wait and decides for itself whether to reject the placement or make it later.
+ *
+ * @author Dmitry Selin
+ */
+class RateLimiter
+{
+    /** how many placements the bucket of a user that is waiting for later placements may owe at most */
+    private static final int MAX_QUEUED = 16;
+
+    /** the time it takes to earn one placement, in nanoseconds */
+    private final long interval;
+
+    /** how far ahead of the current time a bucket may be and still allow a placement, in nanoseconds */
+    private final long tolerance;
+
+    /** the time (System.nanoTime()) at which the bucket of each user will next be full */
+    private final ConcurrentHashMap<String, Long> full = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a rate limiter.
+     *
+     * @param count the most placements a user may make at once, and per period
+     * @param period the period in milliseconds
+     */
+    RateLimiter (int count, long period)
+    {
+        interval = period * 1000000 / count;
+        tolerance = interval * (count - 1);
+    }
+
+    /**
+     * Takes a placement from the bucket of a user, if it has one.
+     *
+     * @param username the user
+     * @return 0 if the user may place a tile now, otherwise how many milliseconds until it may
+     */
+    long tryAcquire (String username)
+    {
+        long[] wait = new long[1];
+
+        full.compute(username, (name, time) ->
+        {
+            long now = System.nanoTime();
+            long start = time == null ? now : Math.max(time, now);
+
+            if (start - now > tolerance)
+            {
+                wait[0] = Math.max(1, (start - now - tolerance + 999999) / 1000000);
+                return time;
+            }
+
+            return start + interval;
+        });
+
+        return wait[0];
+    }
+
+    /**
+     * Takes a placement from the bucket of a user even if it has none yet, for a placement that is made once the
+     * bucket has earned it.
+     *
+     * @param username the user
+     * @return how many milliseconds the placement has to wait (0 to make it now), or -1 if the user already has so
+     *         many placements waiting that this one is refused
+     */
+    long reserve (String username)
+    {
+        long[] wait = new long[1];
+
+        full.compute(username, (name, time) ->
+        {
+            long now = System.nanoTime();
+            long start = time == null ? now : Math.max(time, now);
+
+            if (start - now > tolerance + interval * MAX_QUEUED)
+            {
+                wait[0] = -1;
+                return time;
+            }
+
+            wait[0] = Math.max(0, (start - now - tolerance + 999999) / 1000000);
+            return start + interval;
+        });
+
+        return wait[0];
+    }
+
+    /**
+     * Forgets the bucket of a user that has left, unless the bucket still has to fill up again (so that logging in
+     * again does not give a user a full bucket).
+     *
+     * @param username the user
+     */
+    void forget (String username)
+    {
+        full.computeIfPresent(username, (name, time) -> time - System.nanoTime() > 0 ? time : null);
+    }
+}
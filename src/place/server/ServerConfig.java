@@ -0,0 +1,513 @@
+package place.server;
+
+import place.PlaceBoard;
+import place.PlaceException;
+import place.network.PlaceCodec;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The settings a {@link PlaceServer} is started with, parsed from the command line:
+ *
+ * $ java PlaceServer port DIM [boardFile] [options]
+ *
+ * Options:
+ * <ul>
+ *     <li>--nio[=threads] - serve every client from a Selector and a fixed pool of I/O threads
+ *     (default: one per processor) instead of one thread per client</li>
+ *     <li>--virtual - run every client's PlaceServerThread on a virtual thread instead of a platform
+ *     thread (needs Java 21 or newer, otherwise platform threads are used)</li>
+ *     <li>--outbound=size - how many tile changes may wait to be sent to one client (default: 1024)</li>
+ *     <li>--slow=resync|coalesce|disconnect - what to do with a client whose outbound queue is full
+ *     (default: coalesce)</li>
+ *     <li>--tick=ms - broadcast the tile changes of every tick of ms milliseconds together, only the last
+ *     change of each tile (default: broadcast every change as it is made)</li>
+ *     <li>--changelog=size - how many of the latest tile changes are remembered for clients that reconnect
+ *     and ask for only what they missed (default: 65536, 0 to always send reconnecting clients the board)</li>
+ *     <li>--rate=count[/ms] - how many tiles a user may place per ms milliseconds (default: 1/500, ms defaults to
+ *     1000). A user may place count tiles at once before it has to wait; 0 places no limit</li>
+ *     <li>--trusted=name[,name...] - the usernames (admin tools, trusted bots) that may change many tiles at
+ *     once with CHANGE_TILES (default: nobody)</li>
+ *     <li>--striped - let the threads that read the clients' requests change the board themselves, in parallel,
+ *     each holding only the lock of the chunk it changes (default: every change is made by one board writer
+ *     thread)</li>
+ *     <li>--log=path - the file that every exchange with the clients is logged to (default:
+ *     ./src/place/server/ServerLog.txt)</li>
+ *     <li>--journal=path - append every tile change to a journal in path, which is replayed onto the board when the
+ *     server starts again (default: no journal)</li>
+ *     <li>--fsync=batch|never|ms - when the journal is synced to the disk: after every batch of changes written
+ *     together, only when the operating system decides to, or every ms milliseconds (default: batch)</li>
+ *     <li>--snapshot=path - write a snapshot of the board to path every snapshot interval and when the server stops,
+ *     and drop the journaled changes it holds; the server starts again from the snapshot and replays only the journal
+ *     after it (default: no snapshots)</li>
+ *     <li>--snapshot-interval=ms - how often a snapshot is taken (default: 60000)</li>
+ *     <li>--history=path - keep the history of the board in the directory path, so that the board can be rebuilt as it
+ *     was at any earlier change or time (default: no history)</li>
+ *     <li>--keyframe=changes - how many changes there are between the keyframes of the history (default: 1000000)</li>
+ *     <li>--tile-history=depth - remember the last depth placements of every tile in memory, for clients that ask who
+ *     drew over a tile (default: 0, only the current placement is known)</li>
+ * </ul>
+ *
+ * @author Dmitry Selin
+ */
+public class ServerConfig
+{
+    /** the ways the server can run its client connections */
+    public enum Mode
+    {
+        /** every client gets its own PlaceServerThread, run on a platform thread */
+        THREADS,
+
+        /** every client gets its own PlaceServerThread, run on a virtual thread */
+        VIRTUAL,
+
+        /** every client is served by a Selector and a fixed pool of I/O threads */
+        NIO
+    }
+
+    /** what to do with a client that does not read its tile changes as fast as they are made */
+    public enum SlowConsumerPolicy
+    {
+        /** drop the queued changes and send the client the whole board again once it catches up */
+        RESYNC,
+
+        /** keep only the latest queued change of each tile, and resync if that is still too many */
+        COALESCE,
+
+        /** close the client's connection */
+        DISCONNECT
+    }
+
+    /** when the journal is synced to the disk */
+    public enum FsyncPolicy
+    {
+        /** after every frame of changes that are written together */
+        BATCH,
+
+        /** every fsync interval */
+        INTERVAL,
+
+        /** only when the operating system decides to */
+        NEVER
+    }
+
+    /** the usage message printed when the arguments are invalid */
+    public static final String USAGE = "Usage: java PlaceServer port DIM [boardFile] [--nio[=threads] | --virtual] " +
+            "[--outbound=size] [--slow=resync|coalesce|disconnect] [--tick=ms] [--changelog=size] " +
+            "[--rate=count[/ms]] [--trusted=name[,name...]] [--striped] [--log=path] " +
+            "[--journal=path] [--fsync=batch|never|ms] [--snapshot=path] [--snapshot-interval=ms] " +
+            "[--history=path] [--keyframe=changes] [--tile-history=depth]";
+
+    /** the port that clients connect to */
+    private int port;
+
+    /** the square dimension of the board */
+    private int DIM;
+
+    /** the file that a memory-mapped board is kept in, or null to keep the board on the heap */
+    private String boardFile;
+
+    /** how the client connections are run */
+    private Mode mode = Mode.THREADS;
+
+    /** the number of I/O threads used in NIO mode */
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+
+    /** the number of tile changes that may wait to be sent to one client */
+    private int outboundCapacity = 1024;
+
+    /** what to do with a client whose outbound queue is full */
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.COALESCE;
+
+    /** the length of a broadcast tick in milliseconds, or 0 to broadcast every change as it is made */
+    private int tick;
+
+    /** the number of tile changes remembered for reconnecting clients */
+    private int changeLogCapacity = 65536;
+
+    /** how many tiles a user may place per ratePeriod, or 0 for no limit */
+    private int rateCount = 1;
+
+    /** the period of the placement rate in milliseconds */
+    private long ratePeriod = 500;
+
+    /** the usernames that may change many tiles at once */
+    private Set<String> trustedUsers = new HashSet<>();
+
+    /** whether the board is changed in parallel under chunk locks instead of by one board writer thread */
+    private boolean striped;
+
+    /** the file that every exchange with the clients is logged to */
+    private String logFile = "./src/place/server/ServerLog.txt";
+
+    /** the file that tile changes are journaled to, or null to keep no journal */
+    private String journalFile;
+
+    /** when the journal is synced to the disk */
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.BATCH;
+
+    /** how often the journal is synced under {@link FsyncPolicy#INTERVAL}, in milliseconds */
+    private long fsyncInterval;
+
+    /** the file that snapshots of the board are written to, or null to take no snapshots */
+    private String snapshotFile;
+
+    /** how often a snapshot is taken, in milliseconds */
+    private long snapshotInterval = 60000;
+
+    /** the directory the history of the board is kept in, or null to keep no history */
+    private String historyDirectory;
+
+    /** how many changes there are between the keyframes of the history */
+    private long keyframeInterval = 1000000;
+
+    /** how many placements of every tile are remembered, or 0 to remember none */
+    private int tileHistoryDepth;
+
+    /**
+     * Creates the settings for a server that runs one thread per client and keeps its board on the heap.
+     *
+     * @param port the port that clients connect to
+     * @param DIM the square dimension of the board
+     */
+    public ServerConfig (int port, int DIM)
+    {
+        this.port = port;
+        this.DIM = DIM;
+    }
+
+    /**
+     * Parses the command line arguments of PlaceServer.
+     *
+     * @param args the command line arguments
+     * @return the settings
+     * @throws PlaceException if the arguments are invalid
+     */
+    public static ServerConfig parse (String[] args) throws PlaceException
+    {
+        ServerConfig config = null;
+        int positional = 0;
+
+        try
+        {
+            for (String arg : args)
+            {
+                if (arg.startsWith("--"))
+                {
+                    if (config == null)
+                        throw new PlaceException(USAGE);
+
+                    int equals = arg.indexOf('=');
+                    String name = equals < 0 ? arg.substring(2) : arg.substring(2, equals);
+                    String value = equals < 0 ? null : arg.substring(equals + 1);
+
+                    config.setOption(name, value);
+                }
+                else if (positional == 0)
+                {
+                    config = new ServerConfig(Integer.parseInt(arg), 0);
+                    positional++;
+                }
+                else if (positional == 1)
+                {
+                    config.DIM = Integer.parseInt(arg);
+                    positional++;
+                }
+                else if (positional == 2)
+                {
+                    config.boardFile = arg;
+                    positional++;
+                }
+                else
+                    throw new PlaceException(USAGE);
+            }
+        }
+        catch (NumberFormatException e) {
+            throw new PlaceException(e.getMessage() + "\n" + USAGE);
+        }
+
+        if (positional < 2)
+            throw new PlaceException(USAGE);
+        if (config.DIM < 1 || config.DIM > PlaceBoard.MAX_DIM)
+            throw new PlaceException("DIM must be between 1 and " + PlaceBoard.MAX_DIM + "\n" + USAGE);
+
+        return config;
+    }
+
+    /**
+     * Applies one --name[=value] option.
+     *
+     * @param name the option name
+     * @param value the option value, or null if none was given
+     * @throws PlaceException if the option is unknown or its value is invalid
+     */
+    private void setOption (String name, String value) throws PlaceException
+    {
+        switch (name)
+        {
+            case "nio":
+                mode = Mode.NIO;
+                if (value != null)
+                    ioThreads = Integer.parseInt(value);
+                if (ioThreads < 1)
+                    throw new PlaceException("--nio must have at least 1 I/O thread\n" + USAGE);
+                break;
+            case "virtual":
+                mode = Mode.VIRTUAL;
+                break;
+            case "outbound":
+                outboundCapacity = Integer.parseInt(String.valueOf(value));
+                if (outboundCapacity < 1)
+                    throw new PlaceException("--outbound must be at least 1\n" + USAGE);
+                break;
+            case "slow":
+                try {
+                    slowConsumerPolicy = SlowConsumerPolicy.valueOf(String.valueOf(value).toUpperCase());
+                }
+                catch (IllegalArgumentException e) {
+                    throw new PlaceException("Unknown slow consumer policy " + value + "\n" + USAGE);
+                }
+                break;
+            case "tick":
+                tick = Integer.parseInt(String.valueOf(value));
+                if (tick < 0)
+                    throw new PlaceException("--tick must not be negative\n" + USAGE);
+                break;
+            case "changelog":
+                changeLogCapacity = Integer.parseInt(String.valueOf(value));
+                if (changeLogCapacity < 0)
+                    throw new PlaceException("--changelog must not be negative\n" + USAGE);
+                break;
+            case "rate":
+                String rate = String.valueOf(value);
+                int slash = rate.indexOf('/');
+                rateCount = Integer.parseInt(slash < 0 ? rate : rate.substring(0, slash));
+                ratePeriod = slash < 0 ? 1000 : Long.parseLong(rate.substring(slash + 1));
+                if (rateCount < 0 || ratePeriod < 1)
+                    throw new PlaceException("--rate must be a count of at least 0 per at least 1 ms\n" + USAGE);
+                break;
+            case "trusted":
+                if (value == null)
+                    throw new PlaceException("--trusted needs at least one username\n" + USAGE);
+                trustedUsers.addAll(Arrays.asList(value.split(",")));
+                break;
+            case "striped":
+                striped = true;
+                break;
+            case "log":
+                if (value == null || value.isEmpty())
+                    throw new PlaceException("--log needs a path\n" + USAGE);
+                logFile = value;
+                break;
+            case "journal":
+                if (value == null || value.isEmpty())
+                    throw new PlaceException("--journal needs a path\n" + USAGE);
+                journalFile = value;
+                break;
+            case "fsync":
+                String fsync = String.valueOf(value);
+                if (fsync.equalsIgnoreCase("batch") || fsync.equalsIgnoreCase("never"))
+                    fsyncPolicy = FsyncPolicy.valueOf(fsync.toUpperCase());
+                else
+                {
+                    fsyncPolicy = FsyncPolicy.INTERVAL;
+                    fsyncInterval = Long.parseLong(fsync);
+                    if (fsyncInterval < 1)
+                        throw new PlaceException("--fsync must be batch, never or at least 1 ms\n" + USAGE);
+                }
+                break;
+            case "snapshot":
+                if (value == null || value.isEmpty())
+                    throw new PlaceException("--snapshot needs a path\n" + USAGE);
+                snapshotFile = value;
+                break;
+            case "snapshot-interval":
+                snapshotInterval = Long.parseLong(String.valueOf(value));
+                if (snapshotInterval < 1)
+                    throw new PlaceException("--snapshot-interval must be at least 1 ms\n" + USAGE);
+                break;
+            case "history":
+                if (value == null || value.isEmpty())
+                    throw new PlaceException("--history needs a path\n" + USAGE);
+                historyDirectory = value;
+                break;
+            case "keyframe":
+                keyframeInterval = Long.parseLong(String.valueOf(value));
+                if (keyframeInterval < 1)
+                    throw new PlaceException("--keyframe must be at least 1\n" + USAGE);
+                break;
+            case "tile-history":
+                tileHistoryDepth = Integer.parseInt(String.valueOf(value));
+                if (tileHistoryDepth < 0 || tileHistoryDepth > PlaceCodec.MAX_TILES)
+                    throw new PlaceException("--tile-history must be between 0 and " + PlaceCodec.MAX_TILES + "\n" +
+                            USAGE);
+                break;
+            default:
+                throw new PlaceException("Unknown option --" + name + "\n" + USAGE);
+        }
+    }
+
+    /**
+     * Returns the port that clients connect to.
+     *
+     * @return the port
+     */
+    public int getPort () { return port; }
+
+    /**
+     * Returns the square dimension of the board.
+     *
+     * @return DIM
+     */
+    public int getDIM () { return DIM; }
+
+    /**
+     * Returns the file that a memory-mapped board is kept in.
+     *
+     * @return the board file, or null if the board is kept on the heap
+     */
+    public String getBoardFile () { return boardFile; }
+
+    /**
+     * Returns how the client connections are run.
+     *
+     * @return the mode
+     */
+    public Mode getMode () { return mode; }
+
+    /**
+     * Sets how the client connections are run.
+     *
+     * @param mode the mode
+     */
+    public void setMode (Mode mode) { this.mode = mode; }
+
+    /**
+     * Returns the number of I/O threads used in NIO mode.
+     *
+     * @return the number of I/O threads
+     */
+    public int getIoThreads () { return ioThreads; }
+
+    /**
+     * Returns the number of tile changes that may wait to be sent to one client.
+     *
+     * @return the outbound queue capacity
+     */
+    public int getOutboundCapacity () { return outboundCapacity; }
+
+    /**
+     * Returns what is done with a client whose outbound queue is full.
+     *
+     * @return the slow consumer policy
+     */
+    public SlowConsumerPolicy getSlowConsumerPolicy () { return slowConsumerPolicy; }
+
+    /**
+     * Returns the length of a broadcast tick.
+     *
+     * @return the tick in milliseconds, or 0 if every change is broadcast as it is made
+     */
+    public int getTick () { return tick; }
+
+    /**
+     * Returns the number of tile changes remembered for reconnecting clients.
+     *
+     * @return the change log capacity, or 0 if reconnecting clients are always sent the board
+     */
+    public int getChangeLogCapacity () { return changeLogCapacity; }
+
+    /**
+     * Returns how many tiles a user may place per rate period.
+     *
+     * @return the count, or 0 for no limit
+     */
+    public int getRateCount () { return rateCount; }
+
+    /**
+     * Returns the period of the placement rate.
+     *
+     * @return the period in milliseconds
+     */
+    public long getRatePeriod () { return ratePeriod; }
+
+    /**
+     * Checks whether a user may change many tiles at once with CHANGE_TILES.
+     *
+     * @param username the username
+     * @return is the user trusted
+     */
+    public boolean isTrusted (String username) { return trustedUsers.contains(username); }
+
+    /**
+     * Returns whether the board is changed in parallel under chunk locks.
+     *
+     * @return true if every connection changes the board itself, false if one board writer thread does
+     */
+    public boolean isStriped () { return striped; }
+
+    /**
+     * Returns the file that every exchange with the clients is logged to.
+     *
+     * @return the log file
+     */
+    public String getLogFile () { return logFile; }
+
+    /**
+     * Returns the file that tile changes are journaled to.
+     *
+     * @return the journal file, or null if no journal is kept
+     */
+    public String getJournalFile () { return journalFile; }
+
+    /**
+     * Returns when the journal is synced to the disk.
+     *
+     * @return the fsync policy
+     */
+    public FsyncPolicy getFsyncPolicy () { return fsyncPolicy; }
+
+    /**
+     * Returns how often the journal is synced under {@link FsyncPolicy#INTERVAL}.
+     *
+     * @return the interval in milliseconds
+     */
+    public long getFsyncInterval () { return fsyncInterval; }
+
+    /**
+     * Returns the file that snapshots of the board are written to.
+     *
+     * @return the snapshot file, or null if no snapshots are taken
+     */
+    public String getSnapshotFile () { return snapshotFile; }
+
+    /**
+     * Returns how often a snapshot is taken.
+     *
+     * @return the interval in milliseconds
+     */
+    public long getSnapshotInterval () { return snapshotInterval; }
+
+    /**
+     * Returns the directory the history of the board is kept in.
+     *
+     * @return the history directory, or null if no history is kept
+     */
+    public String getHistoryDirectory () { return historyDirectory; }
+
+    /**
+     * Returns how many changes there are between the keyframes of the history.
+     *
+     * @return the keyframe interval
+     */
+    public long getKeyframeInterval () { return keyframeInterval; }
+
+    /**
+     * Returns how many placements of every tile are remembered.
+     *
+     * @return the tile history depth, or 0 if none are remembered
+     */
+    public int getTileHistoryDepth () { return tileHistoryDepth; }
+}
@@ -0,0 +1,148 @@
+package place.server;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The log of every exchange between the server and its clients. Logging a line never waits for the disk: the line is
+ * put in a bounded queue, and a background thread writes the queued lines in batches, flushing the file once enough
+ * lines were written or enough time has passed since the last flush. When lines come faster than the disk takes them
+ * and the queue is full, new lines are dropped and counted instead of holding up the connection that logged them, and
+ * the log notes how many were dropped once it catches up.
+ *
+ * @author Dmitry Selin
+ */
+class ServerLog extends Thread
+{
+    /** how many lines may wait to be written */
+    private static final int CAPACITY = 8192;
+
+    /** how many lines are written before the file is flushed */
+    private static final int FLUSH_LINES = 512;
+
+    /** how long written lines may wait to be flushed, in milliseconds */
+    private static final long FLUSH_MS = 200;
+
+    /** the lines waiting to be written */
+    private final ArrayBlockingQueue<String> lines = new ArrayBlockingQueue<>(CAPACITY);
+
+    /** the number of lines dropped since the log last noted it */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /** the log file */
+    private final BufferedWriter file;
+
+    /** has the log been closed */
+    private volatile boolean closed;
+
+    /**
+     * Opens (and empties) the log file and starts writing to it.
+     *
+     * @param path the log file
+     * @throws IOException if the file could not be opened
+     */
+    ServerLog (String path) throws IOException
+    {
+        super("Server log");
+        file = new BufferedWriter(new FileWriter(path));
+        setDaemon(true);
+        start();
+    }
+
+    /**
+     * Queues a line to be written, or drops it if the queue is full.
+     *
+     * @param line the line
+     */
+    void log (String line)
+    {
+        if (closed || !lines.offer(line))
+            dropped.incrementAndGet();
+    }
+
+    /**
+     * Writes every line that is still queued, closes the file and waits for the writer to finish.
+     */
+    void close ()
+    {
+        closed = true;
+
+        try {
+            join();
+        }
+        catch (InterruptedException ignored) {}
+    }
+
+    /**
+     * The main loop of the log: writes the queued lines in batches and flushes the file on size or time.
+     */
+    @Override
+    public void run ()
+    {
+        ArrayList<String> batch = new ArrayList<>(FLUSH_LINES);
+        long unflushed = 0;
+        long lastFlush = System.nanoTime();
+
+        try
+        {
+            while (!closed || !lines.isEmpty())
+            {
+                String first = null;
+
+                try {
+                    first = lines.poll(FLUSH_MS, TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException ignored) {}
+
+                if (first != null)
+                {
+                    batch.add(first);
+                    lines.drainTo(batch, FLUSH_LINES - 1);
+
+                    for (String line : batch)
+                    {
+                        file.write(line);
+                        file.newLine();
+                    }
+
+                    unflushed += batch.size();
+                    batch.clear();
+                }
+
+                long lost = dropped.getAndSet(0);
+
+                if (lost > 0)
+                {
+                    file.write("(" + lost + " log lines dropped)");
+                    file.newLine();
+                    unflushed++;
+                }
+
+                if (unflushed > 0 && (unflushed >= FLUSH_LINES || closed ||
+                        System.nanoTime() - lastFlush >= TimeUnit.MILLISECONDS.toNanos(FLUSH_MS)))
+                {
+                    file.flush();
+                    unflushed = 0;
+                    lastFlush = System.nanoTime();
+                }
+            }
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+        finally
+        {
+            try {
+                file.close();
+            }
+            catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+    }
+}
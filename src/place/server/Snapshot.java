@@ -0,0 +1,245 @@
+package place.server;
+
+import place.OwnerDictionary;
+import place.PlaceBoard;
+import place.PlaceException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A point-in-time copy of the board on disk, so that the server can start again without replaying its whole journal.
+ * The file starts with a header (a magic number, the board dimension, the board version the snapshot covers and the
+ * number of owners), followed by the tiles of every chunk in turn (the color numbers, owner ids and times of the
+ * chunk's tiles, row by row) and then the owner names.
+ * <p>
+ * A snapshot is taken while tiles are still being placed. Every chunk is copied while its lock is held, so only the
+ * placements in that one chunk wait, and only for as long as it takes to copy it. The snapshot therefore holds every
+ * change up to its version and possibly some later ones; replaying the journal after its version brings the board up
+ * to date either way. A new snapshot is written next to the old one and only replaces it once it has been synced, so
+ * there is always a whole snapshot on the disk.
+ *
+ * @author Dmitry Selin
+ */
+class Snapshot
+{
+    /** the first bytes of every snapshot file */
+    private static final int MAGIC = 0x504c5331; // "PLS1"
+
+    /** the length of the file header */
+    private static final int HEADER = 20;
+
+    /** the number of bytes every tile takes: its color number, owner id and time */
+    private static final int TILE_BYTES = 1 + Integer.BYTES + Long.BYTES;
+
+    /** the snapshot file */
+    private final Path path;
+
+    /**
+     * Creates a snapshot that is kept in a file. Nothing is read or written until {@link #load} or {@link #write} is
+     * called.
+     *
+     * @param path the snapshot file
+     */
+    Snapshot (Path path) { this.path = path; }
+
+    /**
+     * Checks whether a snapshot has been written to the file yet.
+     *
+     * @return is there a snapshot to load
+     */
+    boolean exists () { return Files.exists(path); }
+
+    /**
+     * Loads the snapshot onto a board nobody uses yet. The tiles are read straight out of the memory-mapped file, and
+     * the owners are added to the board's owner dictionary, so that the owner ids mean the same thing as when the
+     * snapshot was taken. The board ends up with the version of the snapshot.
+     *
+     * @param board the board, whose owner dictionary is the server's
+     * @return the version of the snapshot
+     * @throws PlaceException if the snapshot could not be read or belongs to a board of another size
+     */
+    long load (PlaceBoard board) throws PlaceException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            channel.read(header, 0);
+            header.flip();
+
+            if (header.remaining() < HEADER || header.getInt() != MAGIC)
+                throw new PlaceException(path + " is not a snapshot");
+
+            if (header.getInt() != board.DIM)
+                throw new PlaceException(path + " is the snapshot of a board of another size");
+
+            long version = header.getLong();
+            int ownerCount = header.getInt();
+            long tilesLength = (long)board.DIM * board.DIM * TILE_BYTES;
+
+            if (tilesLength > Integer.MAX_VALUE)
+                throw new PlaceException("A board of dimension " + board.DIM + " is too large to be memory-mapped");
+
+            long namesStart = HEADER + tilesLength;
+
+            if (channel.size() < namesStart)
+                throw new PlaceException(path + " is cut short");
+
+            ByteBuffer names = ByteBuffer.allocate((int)(channel.size() - namesStart));
+
+            while (names.hasRemaining())
+                channel.read(names, namesStart + names.position());
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(names.array()));
+            OwnerDictionary owners = board.getOwners();
+
+            for (int id = 1; id < ownerCount; id++) // The empty owner (id 0) is in every dictionary
+                owners.add(new OwnerDictionary.Entry(id, in.readUTF()));
+
+            MappedByteBuffer tiles = channel.map(FileChannel.MapMode.READ_ONLY, HEADER, tilesLength);
+
+            for (int chunk = 0; chunk < board.CHUNKS * board.CHUNKS; chunk++)
+            {
+                int firstRow = board.getChunkRow(chunk);
+                int firstCol = board.getChunkCol(chunk);
+                int rows = Math.min(PlaceBoard.CHUNK, board.DIM - firstRow);
+                int cols = Math.min(PlaceBoard.CHUNK, board.DIM - firstCol);
+                int count = rows * cols;
+                int colors = tiles.position();
+                int ownerIds = colors + count;
+                int times = ownerIds + count * Integer.BYTES;
+
+                for (int i = 0; i < count; i++)
+                {
+                    board.restoreTile(firstRow + i / cols, firstCol + i % cols, tiles.get(colors + i),
+                            tiles.getInt(ownerIds + i * Integer.BYTES), tiles.getLong(times + i * Long.BYTES));
+                }
+
+                tiles.position(colors + count * TILE_BYTES);
+            }
+
+            board.setVersion(version);
+            return version;
+        }
+        catch (IOException e) {
+            throw new PlaceException(e);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the board while it keeps changing, and replaces the previous snapshot with it once it is
+     * synced to the disk.
+     *
+     * @param board the board
+     * @return the version of the snapshot: it holds every change up to this one
+     * @throws PlaceException if the snapshot could not be written (the previous one is kept)
+     */
+    synchronized long write (PlaceBoard board) throws PlaceException
+    {
+        // Every change up to the version read here is already on the board, so the copy will hold it
+        long version = board.getVersion();
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try
+        {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+            {
+                ByteBuffer tiles = ByteBuffer.allocate(PlaceBoard.CHUNK * PlaceBoard.CHUNK * TILE_BYTES);
+                long position = HEADER; // The header is written last, once it is known how many owners there are
+
+                for (int chunk = 0; chunk < board.CHUNKS * board.CHUNKS; chunk++)
+                {
+                    copyChunk(board, chunk, tiles);
+                    position += writeFully(channel, tiles, position);
+                }
+
+                // Read after every chunk was copied, so every owner id in the copy has a name
+                OwnerDictionary owners = board.getOwners();
+                int ownerCount = owners.size();
+                ByteArrayOutputStream names = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(names);
+
+                for (int id = 1; id < ownerCount; id++)
+                    out.writeUTF(owners.nameOf(id));
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER);
+                header.putInt(MAGIC).putInt(board.DIM).putLong(version).putInt(ownerCount).flip();
+
+                writeFully(channel, ByteBuffer.wrap(names.toByteArray()), position);
+                writeFully(channel, header, 0);
+                channel.force(true);
+            }
+
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            throw new PlaceException(e);
+        }
+
+        return version;
+    }
+
+    /**
+     * This helper method copies the tiles of a chunk into a buffer, while the chunk's lock is held so that none of them
+     * changes in the meantime. The buffer is left ready to be written.
+     *
+     * @param board the board
+     * @param chunk the chunk number
+     * @param tiles the buffer
+     */
+    private static void copyChunk (PlaceBoard board, int chunk, ByteBuffer tiles)
+    {
+        int firstRow = board.getChunkRow(chunk);
+        int firstCol = board.getChunkCol(chunk);
+        int lastRow = Math.min(firstRow + PlaceBoard.CHUNK, board.DIM);
+        int lastCol = Math.min(firstCol + PlaceBoard.CHUNK, board.DIM);
+        int count = (lastRow - firstRow) * (lastCol - firstCol);
+
+        tiles.clear();
+
+        synchronized (board.getChunkLock(chunk))
+        {
+            for (int row = firstRow, i = 0; row < lastRow; row++)
+            {
+                for (int col = firstCol; col < lastCol; col++, i++)
+                {
+                    tiles.put(i, (byte)board.getColor(row, col).getNumber());
+                    tiles.putInt(count + i * Integer.BYTES, board.getOwnerId(row, col));
+                    tiles.putLong(count * (1 + Integer.BYTES) + i * Long.BYTES, board.getTime(row, col));
+                }
+            }
+        }
+
+        tiles.limit(count * TILE_BYTES);
+    }
+
+    /**
+     * This helper method writes the rest of a buffer to the file at a position.
+     *
+     * @param channel the file
+     * @param buffer the buffer
+     * @param position the position in the file
+     * @return the number of bytes written
+     * @throws IOException if the file could not be written
+     */
+    private static int writeFully (FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        int written = 0;
+
+        while (buffer.hasRemaining())
+            written += channel.write(buffer, position + written);
+
+        return written;
+    }
+}
@@ -1,15 +1,23 @@
 package place.server;
 
+import place.PlaceBoard;
 import place.PlaceColor;
 import place.PlaceTile;
 import place.model.Observer;
 
-import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * This class runs on a separate thread and listens for any tile changes that occur within
  * PlaceServer and takes note of these changes. Statistics get drawn up after PlaceServer is
  * shut down as to what happened during the run of the server.
+ * <p>
+ * Every count is a LongAdder in an array indexed by color number, row, column or chunk, so a
+ * tile change is counted without a lock or an allocation, by however many threads change
+ * tiles at the same time. The number of changes of every tile is kept as well (a heatmap of
+ * the board), and the hottest tiles, rows, columns and chunks are kept up to date as the
+ * counts grow (see {@link TopK}), so they can be asked for while the server runs.
  *
  * @author Dmitry Selin
  * @since 12-3-2019
@@ -17,20 +25,44 @@ import java.util.HashMap;
  */
 public class StatisticsListener implements Observer<PlaceServer, PlaceTile>
 {
+    /** how many of the hottest tiles, rows, columns and chunks are kept */
+    public static final int HOTTEST = 10;
+
     /** the total number of tile placed */
-    private int tilesPlaced;
+    private final LongAdder tilesPlaced = new LongAdder();
 
-    /** a HashMap of colors used: key = color name, value = number of tiles placed with the corresponding color */
-    private HashMap<String, Integer> colorsUsed = new HashMap<>();
+    /** the number of tiles placed with each color, indexed by color number */
+    private final LongAdder[] colorsUsed;
 
-    /** a HashMap of how popular each row of the server was: key = row, value = number of tiles placed on that row */
-    private HashMap<Integer, Integer> rowPopularity = new HashMap<>();
+    /** how popular each row of the server was: the number of tiles placed on each row */
+    private final LongAdder[] rowPopularity;
 
-    /**
-     * a HashMap of the popularity of each column of the server: key = column,
-     * value = number of tiles placed on that column
-     */
-    private HashMap<Integer, Integer> columnPopularity = new HashMap<>();
+    /** the popularity of each column of the server: the number of tiles placed on each column */
+    private final LongAdder[] columnPopularity;
+
+    /** the number of tiles placed on each chunk of the board, indexed by chunk number */
+    private final LongAdder[] chunkPopularity;
+
+    /** the heatmap of the board: the number of times each tile (row-major) was placed */
+    private final AtomicIntegerArray tilePopularity;
+
+    /** the hottest tiles, keyed by row-major index */
+    private final TopK hottestTiles = new TopK(HOTTEST);
+
+    /** the hottest rows */
+    private final TopK hottestRows = new TopK(HOTTEST);
+
+    /** the hottest columns */
+    private final TopK hottestColumns = new TopK(HOTTEST);
+
+    /** the hottest chunks, keyed by chunk number */
+    private final TopK hottestChunks = new TopK(HOTTEST);
+
+    /** the dimension of the board */
+    private final int DIM;
+
+    /** the number of chunks in each row (and column) of the board */
+    private final int CHUNKS;
 
     /** the time that the StatisticsListener was created */
     private long initialTime;
@@ -43,18 +75,13 @@ public class StatisticsListener implements Observer<PlaceServer, PlaceTile>
     public StatisticsListener (int boardDimension)
     {
         initialTime = System.currentTimeMillis();
-        tilesPlaced = 0;
-
-        for (PlaceColor color : PlaceColor.values()) // Key = ColorName | value = Number times this color was used
-            colorsUsed.put(color.getName(), 0);
-
-        // Key = Row | value = Number times a tile was placed on this row
-        for (int row = 0; row < boardDimension; row++)
-            rowPopularity.put(row, 0);
-
-        // Key = Column | value = Number times a tile was placed on this column
-        for (int col = 0; col < boardDimension; col++)
-            columnPopularity.put(col, 0);
+        colorsUsed = newCounters(PlaceColor.values().length);
+        rowPopularity = newCounters(boardDimension);
+        columnPopularity = newCounters(boardDimension);
+        DIM = boardDimension;
+        CHUNKS = (boardDimension + PlaceBoard.CHUNK - 1) / PlaceBoard.CHUNK;
+        chunkPopularity = newCounters(CHUNKS * CHUNKS);
+        tilePopularity = new AtomicIntegerArray(boardDimension * boardDimension);
     }
 
     /**
@@ -64,6 +91,7 @@ public class StatisticsListener implements Observer<PlaceServer, PlaceTile>
     {
         long endTime = System.currentTimeMillis(); // Sets a time that the server closed
         double minutesElapsed = (double)(endTime - initialTime)/60000; // Computes the number of minutes that elapsed
+        long tilesPlaced = this.tilesPlaced.sum();
 
         System.out.println("\n-----STATS-----");
         System.out.println("\nTOTAL TILES PLACED --- " + tilesPlaced);
@@ -74,43 +102,89 @@ public class StatisticsListener implements Observer<PlaceServer, PlaceTile>
             tilesPlaced++;
 
         // Prints the percentage use of each color: -ColorName --- ###%
-        for (String colorName : colorsUsed.keySet())
-            System.out.println("-" + colorName.toUpperCase() + " --- " +
-                    ((double)colorsUsed.get(colorName) / tilesPlaced) * 100 + "%");
+        for (PlaceColor color : PlaceColor.values())
+            System.out.println("-" + color.getName().toUpperCase() + " --- " +
+                    ((double)colorsUsed[color.getNumber()].sum() / tilesPlaced) * 100 + "%");
 
-        int mostPopularRow = 0;
-        int leastPopularRow = 0;
+        long[] rows = sums(rowPopularity);
+        long[] cols = sums(columnPopularity);
 
-        // Determines the most and least popular row for each run
-        for (int row : rowPopularity.keySet())
-        {
-            if (rowPopularity.get(mostPopularRow) < rowPopularity.get(row))
-                mostPopularRow = row;
+        // Determines the most and least popular row and column for each run
+        System.out.println("\nMOST POPULAR TILE --- (" + indexOfMost(rows, 1) + ", " + indexOfMost(cols, 1) + ")");
+        System.out.println("LEAST POPULAR TILE --- (" + indexOfMost(rows, -1) + ", " + indexOfMost(cols, -1) + ")");
 
-            if (rowPopularity.get(leastPopularRow) > rowPopularity.get(row))
-                leastPopularRow = row;
-        }
+        printHottest();
+    }
 
-        int mostPopularCol = 0;
-        int leastPopularCol = 0;
+    /**
+     * Prints the hottest tiles, rows, columns and chunks so far. May be called while the
+     * server runs (the console's hottest command).
+     */
+    public void printHottest ()
+    {
+        System.out.println("\nHOTTEST TILES:\n");
 
-        // Determines the most and least popular column for each run
-        for (int col : columnPopularity.keySet())
-        {
-            if (columnPopularity.get(mostPopularCol) < columnPopularity.get(col))
-                mostPopularCol = col;
+        for (TopK.Entry tile : getHottestTiles())
+            System.out.println("-(" + tile.key / DIM + ", " + tile.key % DIM + ") --- " + tile.count);
 
-            if (columnPopularity.get(leastPopularCol) > columnPopularity.get(col))
-                leastPopularCol = col;
-        }
+        System.out.println("\nHOTTEST ROWS:\n");
+
+        for (TopK.Entry row : getHottestRows())
+            System.out.println("-" + row.key + " --- " + row.count);
+
+        System.out.println("\nHOTTEST COLUMNS:\n");
 
-        System.out.println("\nMOST POPULAR TILE --- (" + mostPopularRow + ", " + mostPopularCol + ")");
-        System.out.println("LEAST POPULAR TILE --- (" + leastPopularRow + ", " + leastPopularCol + ")");
+        for (TopK.Entry col : getHottestColumns())
+            System.out.println("-" + col.key + " --- " + col.count);
+
+        System.out.println("\nHOTTEST CHUNKS:\n");
+
+        for (TopK.Entry chunk : getHottestChunks())
+            System.out.println("-(" + chunk.key / CHUNKS * PlaceBoard.CHUNK + ", " + chunk.key % CHUNKS * PlaceBoard.CHUNK +
+                    ") --- " + chunk.count);
     }
 
+    /**
+     * Returns how many times a tile was placed (the heatmap of the board).
+     *
+     * @param row the row of the tile
+     * @param col the column of the tile
+     * @return the number of placements
+     */
+    public int getPlacements (int row, int col) { return tilePopularity.get(row * DIM + col); }
+
+    /**
+     * Returns the tiles that were placed the most times.
+     *
+     * @return the tiles, keyed by row-major index (row * DIM + column), hottest first
+     */
+    public TopK.Entry[] getHottestTiles () { return hottestTiles.top(); }
+
+    /**
+     * Returns the rows the most tiles were placed on.
+     *
+     * @return the rows, hottest first
+     */
+    public TopK.Entry[] getHottestRows () { return hottestRows.top(); }
+
+    /**
+     * Returns the columns the most tiles were placed on.
+     *
+     * @return the columns, hottest first
+     */
+    public TopK.Entry[] getHottestColumns () { return hottestColumns.top(); }
+
+    /**
+     * Returns the chunks the most tiles were placed on.
+     *
+     * @return the chunks, keyed by chunk number (as in PlaceBoard.getChunk), hottest first
+     */
+    public TopK.Entry[] getHottestChunks () { return hottestChunks.top(); }
+
     /**
      * Overrides the method inside Observer: updates each data structure accordingly in
-     * accordance to the tile that was changed.
+     * accordance to the tile that was changed. Needs no lock, so in --striped mode every
+     * connection may change the board (and call this method) on its own thread.
      *
      * @param placeServer the server where the tile change occurred
      * @param tile the tile that was changed
@@ -118,11 +192,73 @@ public class StatisticsListener implements Observer<PlaceServer, PlaceTile>
     @Override
     public void update(PlaceServer placeServer, PlaceTile tile)
     {
-        tilesPlaced++;
+        tilesPlaced.increment();
+
+        int row = tile.getRow();
+        int col = tile.getCol();
+        int chunk = (row / PlaceBoard.CHUNK) * CHUNKS + col / PlaceBoard.CHUNK;
+
+        // Adds 1 to each counter according to tile's color, row, column, chunk and position
+        colorsUsed[tile.getColor().getNumber()].increment();
+        rowPopularity[row].increment();
+        columnPopularity[col].increment();
+        chunkPopularity[chunk].increment();
+
+        hottestTiles.offer(row * DIM + col, tilePopularity.incrementAndGet(row * DIM + col));
+        hottestRows.offer(row, rowPopularity[row].sum());
+        hottestColumns.offer(col, columnPopularity[col].sum());
+        hottestChunks.offer(chunk, chunkPopularity[chunk].sum());
+    }
+
+    /**
+     * This helper method creates an array of counters that all start at 0.
+     *
+     * @param length the number of counters
+     * @return the counters
+     */
+    private static LongAdder[] newCounters (int length)
+    {
+        LongAdder[] counters = new LongAdder[length];
+
+        for (int i = 0; i < length; i++)
+            counters[i] = new LongAdder();
+
+        return counters;
+    }
+
+    /**
+     * This helper method reads the current value of every counter.
+     *
+     * @param counters the counters
+     * @return their values
+     */
+    private static long[] sums (LongAdder[] counters)
+    {
+        long[] sums = new long[counters.length];
+
+        for (int i = 0; i < counters.length; i++)
+            sums[i] = counters[i].sum();
+
+        return sums;
+    }
+
+    /**
+     * This helper method finds the first of the greatest (or least) counts.
+     *
+     * @param counts the counts
+     * @param sign 1 for the greatest count, -1 for the least
+     * @return the index of the count
+     */
+    private static int indexOfMost (long[] counts, int sign)
+    {
+        int most = 0;
+
+        for (int i = 1; i < counts.length; i++)
+        {
+            if (Long.compare(counts[i], counts[most]) * sign > 0)
+                most = i;
+        }
 
-        // Adds 1 to to each each HashMap's respective values according to tile's color, row, and column
-        colorsUsed.put(tile.getColor().getName(), colorsUsed.get(tile.getColor().getName()) + 1);
-        rowPopularity.put(tile.getRow(), rowPopularity.get(tile.getRow()) + 1);
-        columnPopularity.put(tile.getCol(), columnPopularity.get(tile.getCol()) + 1);
+        return most;
     }
 }
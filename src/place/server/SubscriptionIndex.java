@@ -0,0 +1,171 @@
+package place.server;
+
+import place.PlaceBoard;
+import place.network.Region;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Which connections want the changes of which parts of the board. The board is split into the chunks of
+ * {@link PlaceBoard#CHUNK} tiles square it already keeps versions of, and every chunk lists the connections that
+ * subscribed to a region overlapping it, so a change is only looked up in the list of its own chunk. A connection is
+ * sent every change of the chunks it overlaps, which is a little more than it asked for but never less. Connections
+ * that never subscribed are not in the index at all; they are sent every change.
+ * <p>
+ * The index is changed only while the server's lock is held, but it is read without any lock, by every thread that
+ * broadcasts a change (in --striped mode, every thread that places tiles). The lists of subscribers are replaced
+ * rather than modified, so a reader always sees a whole list, from before or after a change.
+ *
+ * @author Dmitry Selin
+ */
+class SubscriptionIndex
+{
+    /** an empty list of subscribers, shared by every chunk nobody subscribed to */
+    private static final ClientConnection[] NONE = new ClientConnection[0];
+
+    /** the board that the regions are on */
+    private final PlaceBoard board;
+
+    /** the connections subscribed to each chunk (row-major), replaced rather than modified when it changes */
+    private final AtomicReferenceArray<ClientConnection[]> subscribers;
+
+    /** the chunks each subscribed connection is subscribed to */
+    private final ConcurrentHashMap<ClientConnection, BitSet> chunksOf = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an empty index.
+     *
+     * @param board the board that the regions are on
+     */
+    SubscriptionIndex (PlaceBoard board)
+    {
+        this.board = board;
+        subscribers = new AtomicReferenceArray<>(board.CHUNKS * board.CHUNKS);
+
+        for (int chunk = 0; chunk < subscribers.length(); chunk++)
+            subscribers.set(chunk, NONE);
+    }
+
+    /**
+     * Replaces the regions of a connection. The server's lock must be held.
+     *
+     * @param connection the connection
+     * @param regions the regions it shows, clipped to the board
+     * @return the chunks that the connection was not sent the changes of before, but is now
+     */
+    BitSet subscribe (ClientConnection connection, Region[] regions)
+    {
+        BitSet chunks = new BitSet(subscribers.length());
+
+        for (Region region : regions)
+        {
+            int firstRow = Math.max(region.getRow(), 0);
+            int firstCol = Math.max(region.getCol(), 0);
+            int lastRow = (int)Math.min((long)region.getRow() + region.getRows(), board.DIM) - 1;
+            int lastCol = (int)Math.min((long)region.getCol() + region.getCols(), board.DIM) - 1;
+
+            for (int row = firstRow - firstRow % PlaceBoard.CHUNK; row <= lastRow; row += PlaceBoard.CHUNK)
+            {
+                for (int col = firstCol - firstCol % PlaceBoard.CHUNK; col <= lastCol; col += PlaceBoard.CHUNK)
+                    chunks.set(board.getChunk(row, col));
+            }
+        }
+
+        BitSet previous = chunksOf.put(connection, chunks);
+        BitSet added = (BitSet)chunks.clone();
+
+        if (previous != null)
+        {
+            added.andNot(previous);
+            previous.andNot(chunks); // What is left are the chunks the connection no longer wants
+
+            for (int chunk = previous.nextSetBit(0); chunk >= 0; chunk = previous.nextSetBit(chunk + 1))
+                subscribers.set(chunk, without(subscribers.get(chunk), connection));
+        }
+
+        for (int chunk = added.nextSetBit(0); chunk >= 0; chunk = added.nextSetBit(chunk + 1))
+            subscribers.set(chunk, with(subscribers.get(chunk), connection));
+
+        // A connection that was sent every change until now is not missing anything
+        return previous == null ? new BitSet() : added;
+    }
+
+    /**
+     * Takes a connection out of the index, for example when it leaves. The server's lock must be held.
+     *
+     * @param connection the connection
+     */
+    void remove (ClientConnection connection)
+    {
+        BitSet chunks = chunksOf.remove(connection);
+
+        if (chunks == null)
+            return;
+
+        for (int chunk = chunks.nextSetBit(0); chunk >= 0; chunk = chunks.nextSetBit(chunk + 1))
+            subscribers.set(chunk, without(subscribers.get(chunk), connection));
+    }
+
+    /**
+     * Checks whether a connection subscribed to regions, rather than being sent every change.
+     *
+     * @param connection the connection
+     * @return did the connection subscribe
+     */
+    boolean isSubscribed (ClientConnection connection) { return chunksOf.containsKey(connection); }
+
+    /**
+     * Checks whether any connection subscribed to regions.
+     *
+     * @return is the index empty
+     */
+    boolean isEmpty () { return chunksOf.isEmpty(); }
+
+    /**
+     * Returns the connections that want the changes of a chunk.
+     *
+     * @param chunk the chunk number
+     * @return the connections, which must not be modified
+     */
+    ClientConnection[] subscribersOf (int chunk) { return subscribers.get(chunk); }
+
+    /**
+     * Returns a copy of a list of connections with one more connection.
+     *
+     * @param connections the list
+     * @param connection the connection to add
+     * @return the new list
+     */
+    private static ClientConnection[] with (ClientConnection[] connections, ClientConnection connection)
+    {
+        ClientConnection[] copy = Arrays.copyOf(connections, connections.length + 1);
+        copy[connections.length] = connection;
+        return copy;
+    }
+
+    /**
+     * Returns a copy of a list of connections without a connection.
+     *
+     * @param connections the list
+     * @param connection the connection to remove
+     * @return the new list
+     */
+    private static ClientConnection[] without (ClientConnection[] connections, ClientConnection connection)
+    {
+        if (connections.length == 1)
+            return NONE;
+
+        ClientConnection[] copy = new ClientConnection[connections.length - 1];
+
+        for (int i = 0, j = 0; i < connections.length; i++)
+        {
+            if (connections[i] != connection)
+                copy[j++] = connections[i];
+        }
+
+        return copy;
+    }
+}
@@ -0,0 +1,107 @@
+package place.server;
+
+import place.PlaceTile;
+import place.network.PlaceCodec;
+import place.network.PlaceRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * One or more tile changes as they are broadcast to every {@link ClientConnection}: a single change, or every tile
+ * that changed during one broadcast tick. The binary frame is encoded once, when the change is made, and the same
+ * bytes are written to every client that speaks the binary protocol: a TILE_CHANGED frame for a single change, and a
+ * TILES_CHANGED frame for a batch. Clients still using Java serialization have the tiles serialized for them, since
+ * each ObjectOutputStream refers back to what it has already written and cannot share its bytes.
+ *
+ * @author Dmitry Selin
+ */
+public class TileChange
+{
+    /** the tiles that changed, in the order they last changed */
+    private final PlaceTile[] tiles;
+
+    /** the encoded TILE_CHANGED or TILES_CHANGED frame; never modified once created */
+    private final byte[] frame;
+
+    /**
+     * Creates a TileChange and encodes its frame.
+     *
+     * @param tiles the tiles that changed, in the order they last changed
+     */
+    public TileChange (PlaceTile... tiles)
+    {
+        this.tiles = tiles;
+
+        frame = encode(request());
+    }
+
+    /**
+     * Returns the request the tiles are sent as.
+     *
+     * @return TILE_CHANGED for a single tile, TILES_CHANGED for a batch
+     */
+    private PlaceRequest<?> request ()
+    {
+        return tiles.length == 1 ?
+                new PlaceRequest<>(PlaceRequest.RequestType.TILE_CHANGED, tiles[0]) :
+                new PlaceRequest<>(PlaceRequest.RequestType.TILES_CHANGED, tiles);
+    }
+
+    /**
+     * Encodes a binary frame.
+     *
+     * @param request the request
+     * @return the frame
+     */
+    private static byte[] encode (PlaceRequest<?> request)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try
+        {
+            PlaceCodec.write(out, request);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e); // A ByteArrayOutputStream never throws
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the key that identifies the position of a tile, whatever the size of the board.
+     *
+     * @param tile the tile
+     * @return the row in the high half and the column in the low half
+     */
+    static long positionOf (PlaceTile tile) { return ((long)tile.getRow() << 32) | tile.getCol(); }
+
+    /**
+     * Returns the tiles that changed.
+     *
+     * @return the tiles, in the order they last changed
+     */
+    public PlaceTile[] getTiles () { return tiles; }
+
+    /**
+     * Returns the encoded frame for a client. Every call returns a new read-only view of the same bytes, so each
+     * client can be written to at its own pace.
+     *
+     * @return the frame
+     */
+    public ByteBuffer getFrame () { return ByteBuffer.wrap(frame).asReadOnlyBuffer(); }
+
+    /**
+     * Writes the encoded frame for a client to a stream.
+     *
+     * @param out the stream
+     * @throws IOException if out throws an IOException
+     */
+    public void writeFrame (OutputStream out) throws IOException { out.write(frame); }
+}
@@ -0,0 +1,132 @@
+package place.server;
+
+import java.util.Arrays;
+
+/**
+ * The k keys with the greatest counts, kept up to date as the counts grow so that they can be asked for at any time
+ * without a scan of every count. Every time a count grows, its new value is offered: a key whose count is no greater
+ * than the least count of the top keys cannot be one of them (counts only grow, by one at a time), so such an offer,
+ * which is almost every offer, returns without a lock. Otherwise the key takes the place of the least of the top keys.
+ *
+ * @author Dmitry Selin
+ */
+public class TopK
+{
+    /**
+     * A key and its count.
+     */
+    public static class Entry
+    {
+        /** the key */
+        public final int key;
+
+        /** the count of the key when it was asked for */
+        public final long count;
+
+        /**
+         * Creates an entry.
+         *
+         * @param key the key
+         * @param count the count of the key
+         */
+        Entry (int key, long count)
+        {
+            this.key = key;
+            this.count = count;
+        }
+    }
+
+    /** the top keys, in no particular order */
+    private final int[] keys;
+
+    /** the count of every top key */
+    private final long[] counts;
+
+    /** the number of top keys so far */
+    private int size;
+
+    /** the least count of the top keys once there are k of them, 0 until then */
+    private volatile long floor;
+
+    /**
+     * Creates an empty top.
+     *
+     * @param k how many keys are kept
+     */
+    public TopK (int k)
+    {
+        keys = new int[k];
+        counts = new long[k];
+    }
+
+    /**
+     * Offers the new count of a key, right after it grew.
+     *
+     * @param key the key
+     * @param count the new count of the key
+     */
+    public void offer (int key, long count)
+    {
+        if (count <= floor) // Neither one of the top keys nor greater than any of them
+            return;
+
+        synchronized (this)
+        {
+            int least = 0;
+
+            for (int i = 0; i < size; i++)
+            {
+                if (keys[i] == key)
+                {
+                    counts[i] = Math.max(counts[i], count); // Offers of the same key may come out of order
+                    updateFloor();
+                    return;
+                }
+
+                if (counts[i] < counts[least])
+                    least = i;
+            }
+
+            if (size < keys.length)
+                least = size++;
+            else if (count <= counts[least])
+                return;
+
+            keys[least] = key;
+            counts[least] = count;
+            updateFloor();
+        }
+    }
+
+    /**
+     * Returns the top keys.
+     *
+     * @return the keys with their counts, greatest count first
+     */
+    public synchronized Entry[] top ()
+    {
+        Entry[] top = new Entry[size];
+
+        for (int i = 0; i < size; i++)
+            top[i] = new Entry(keys[i], counts[i]);
+
+        Arrays.sort(top, (a, b) -> Long.compare(b.count, a.count));
+        return top;
+    }
+
+    /**
+     * This helper method recomputes the least count of the top keys. The lock must be held.
+     */
+    private void updateFloor ()
+    {
+        if (size < keys.length)
+            return;
+
+        long least = counts[0];
+
+        for (int i = 1; i < size; i++)
+            least = Math.min(least, counts[i]);
+
+        floor = least;
+    }
+}
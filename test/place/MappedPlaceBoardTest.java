@@ -0,0 +1,97 @@
+package place;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link MappedPlaceBoard}: keeping the board across restarts and sending it to clients.
+ */
+public class MappedPlaceBoardTest
+{
+    @TempDir
+    Path directory;
+
+    @Test
+    public void tilesAndOwnersSurviveAReopen () throws Exception
+    {
+        Path file = directory.resolve("board");
+
+        try (MappedPlaceBoard board = new MappedPlaceBoard(10, new OwnerDictionary(), file))
+        {
+            board.setTile(new PlaceTile(1, 2, "alice", PlaceColor.RED, 5));
+            board.setTile(new PlaceTile(9, 9, "bob", PlaceColor.NAVY, 6));
+        }
+
+        try (MappedPlaceBoard board = new MappedPlaceBoard(10, new OwnerDictionary(), file))
+        {
+            assertEquals(PlaceColor.RED, board.getColor(1, 2));
+            assertEquals("alice", board.getTile(1, 2).getOwner());
+            assertEquals("bob", board.getTile(9, 9).getOwner());
+            assertEquals(6, board.getTime(9, 9));
+            assertEquals(PlaceColor.WHITE, board.getColor(0, 0));
+        }
+    }
+
+    @Test
+    public void serializedBoardIsAnOnHeapCopy () throws Exception
+    {
+        // Not a multiple of the block size, so the last block is a partial one
+        try (MappedPlaceBoard board = new MappedPlaceBoard(70, new OwnerDictionary(), directory.resolve("board")))
+        {
+            for (int i = 0; i < 70; i++)
+                board.setTile(new PlaceTile(i, 69 - i, "user" + i % 7, PlaceColor.values()[i % 16], 1000 + i));
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+            {
+                out.writeObject(board);
+            }
+
+            Object read = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+            assertEquals(PlaceBoard.class, read.getClass());
+
+            PlaceBoard copy = (PlaceBoard)read;
+            assertEquals(board.getVersion(), copy.getVersion());
+
+            for (int row = 0; row < 70; row++)
+            {
+                for (int col = 0; col < 70; col++)
+                {
+                    assertEquals(board.getColor(row, col), copy.getColor(row, col));
+                    assertEquals(board.getTile(row, col).getOwner(), copy.getTile(row, col).getOwner());
+                    assertEquals(board.getTime(row, col), copy.getTime(row, col));
+                }
+            }
+
+            assertEquals(board.getVersion() + 1, copy.setTile(new PlaceTile(0, 0, "user1", PlaceColor.BLACK, 1)));
+        }
+    }
+
+    @Test
+    public void fileOfAnotherSizeIsRejected () throws Exception
+    {
+        Path file = directory.resolve("board");
+        new MappedPlaceBoard(8, new OwnerDictionary(), file).close();
+
+        assertThrows(PlaceException.class, () -> new MappedPlaceBoard(9, new OwnerDictionary(), file));
+    }
+
+    @Test
+    public void fileThatIsNotABoardIsRejected () throws Exception
+    {
+        Path file = directory.resolve("board");
+        Files.write(file, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+
+        assertThrows(PlaceException.class, () -> new MappedPlaceBoard(8, new OwnerDictionary(), file));
+    }
+}
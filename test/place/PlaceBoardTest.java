@@ -0,0 +1,110 @@
+package place;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the primitive planes, versions and chunks of {@link PlaceBoard}.
+ */
+public class PlaceBoardTest {
+    @Test
+    public void newBoardIsWhiteAndUnowned() {
+        PlaceBoard board = new PlaceBoard(10);
+        for (int row=0; row<10; ++row) {
+            for (int col=0; col<10; ++col) {
+                assertEquals(PlaceColor.WHITE, board.getColor(row, col));
+                assertEquals(0, board.getOwnerId(row, col));
+                assertEquals(0, board.getTime(row, col));
+            }
+        }
+        assertEquals(0, board.getVersion());
+    }
+
+    @Test
+    public void setTileStoresEveryPlaneAndCountsTheChange() {
+        PlaceBoard board = new PlaceBoard(10);
+        long version = board.setTile(new PlaceTile(3, 4, "alice", PlaceColor.RED, 1234));
+
+        PlaceTile tile = board.getTile(3, 4);
+        assertEquals(1, version);
+        assertEquals(PlaceColor.RED, tile.getColor());
+        assertEquals("alice", tile.getOwner());
+        assertEquals(board.getOwners().find("alice"), tile.getOwnerId());
+        assertEquals(1234, tile.getTime());
+        assertEquals(PlaceColor.WHITE, board.getColor(4, 3));
+    }
+
+    @Test
+    public void restoreTileIsNotAChange() {
+        PlaceBoard board = new PlaceBoard(10);
+        board.restoreTile(1, 1, PlaceColor.BLUE.getNumber(), 0, 99);
+
+        assertEquals(PlaceColor.BLUE, board.getColor(1, 1));
+        assertEquals(0, board.getVersion());
+        assertEquals(0, board.getChunkVersion(0));
+        assertFalse(board.isChunkDirty(0));
+    }
+
+    @Test
+    public void changesAreCountedPerChunk() {
+        PlaceBoard board = new PlaceBoard(PlaceBoard.CHUNK * 2 + 1);
+        int last = board.getChunk(board.DIM - 1, board.DIM - 1);
+
+        board.setTile(0, 0, PlaceColor.RED, 0, 1);
+        board.setTile(1, 1, PlaceColor.RED, 0, 2);
+        board.setTile(board.DIM - 1, board.DIM - 1, PlaceColor.RED, 0, 3);
+
+        assertEquals(3, board.CHUNKS);
+        assertEquals(8, last);
+        assertEquals(2, board.getChunkVersion(0));
+        assertEquals(1, board.getChunkVersion(last));
+        assertArrayEquals(new int[] { 0, last }, board.takeDirtyChunks());
+        assertArrayEquals(new int[0], board.takeDirtyChunks());
+        assertEquals(PlaceBoard.CHUNK * 2, board.getChunkRow(last));
+        assertEquals(PlaceBoard.CHUNK * 2, board.getChunkCol(last));
+    }
+
+    @Test
+    public void isValidChecksTheCoordinates() {
+        PlaceBoard board = new PlaceBoard(8);
+        assertTrue(board.isValid(new PlaceTile(7, 0, "", PlaceColor.RED)));
+        assertFalse(board.isValid(new PlaceTile(8, 0, "", PlaceColor.RED)));
+        assertFalse(board.isValid(new PlaceTile(0, -1, "", PlaceColor.RED)));
+        assertFalse(board.isValid(new PlaceTile(100, 100, "", PlaceColor.RED)));
+    }
+
+    @Test
+    public void serializedBoardKeepsItsTilesAndCanStillChange() throws Exception {
+        PlaceBoard board = new PlaceBoard(10);
+        board.setTile(new PlaceTile(2, 5, "bob", PlaceColor.GREEN, 77));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(board);
+        }
+        PlaceBoard copy = (PlaceBoard) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertEquals(board.getVersion(), copy.getVersion());
+        assertEquals(PlaceColor.GREEN, copy.getColor(2, 5));
+        assertEquals("bob", copy.getTile(2, 5).getOwner());
+        assertEquals(2, copy.setTile(new PlaceTile(0, 0, "bob", PlaceColor.BLACK, 78)));
+    }
+
+    @Test
+    public void ownerIdsAreDenseAndFindDoesNotAssignOne() {
+        OwnerDictionary owners = new OwnerDictionary();
+        assertEquals(0, owners.idOf(""));
+        assertEquals(-1, owners.find("carol"));
+        assertEquals(1, owners.idOf("carol"));
+        assertEquals(1, owners.find("carol"));
+        assertEquals("carol", owners.nameOf(1));
+        assertEquals(2, owners.size());
+    }
+}
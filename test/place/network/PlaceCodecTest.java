@@ -0,0 +1,193 @@
+package place.network;
+
+import org.junit.jupiter.api.Test;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link PlaceCodec}: the frames requests are sent in.
+ */
+public class PlaceCodecTest {
+	/** The square dimension of the board the frames of these tests are read for */
+	private static final int DIM = 16;
+
+	@Test
+	public void framedRequestsRoundTrip() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		PlaceCodec.writeFramed(out, new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE,
+				new PlaceTile(3, 4, "alice", PlaceColor.RED, 7)));
+		PlaceCodec.writeFramed(out, new PlaceRequest<>(PlaceRequest.RequestType.SUBSCRIBE,
+				new Region[] { new Region(1, 2, 3, 4) }));
+		PlaceCodec.writeFramed(out, null);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		PlaceRequest<?> change = PlaceCodec.readFramed(in, DIM);
+		assertEquals(PlaceRequest.RequestType.CHANGE_TILE, change.getType());
+		PlaceTile tile = (PlaceTile) change.getData();
+		assertEquals(3, tile.getRow());
+		assertEquals(4, tile.getCol());
+		assertEquals(PlaceColor.RED, tile.getColor());
+
+		PlaceRequest<?> subscribe = PlaceCodec.readFramed(in, DIM);
+		Region region = ((Region[]) subscribe.getData())[0];
+		assertEquals(1, region.getRow());
+		assertEquals(4, region.getCols());
+
+		assertNull(PlaceCodec.readFramed(in, DIM));
+		assertEquals(0, in.available());
+	}
+
+	@Test
+	public void framesOfTheWrongLengthAreRejected() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PlaceCodec.write(new DataOutputStream(bytes), new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "oops"));
+		byte[] frame = bytes.toByteArray();
+
+		assertThrows(IOException.class, () -> PlaceCodec.decodeFrame(frame, 0, frame.length - 1, DIM));
+
+		byte[] padded = new byte[frame.length + 1];
+		System.arraycopy(frame, 0, padded, 0, frame.length);
+		assertThrows(IOException.class, () -> PlaceCodec.decodeFrame(padded, 0, padded.length, DIM));
+	}
+
+	@Test
+	public void framesLargerThanTheMaximumAreRefusedBeforeTheyAreRead() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PlaceCodec.writeVarInt(new DataOutputStream(bytes), PlaceCodec.MAX_FRAME + 1);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+
+		assertThrows(IOException.class, () -> PlaceCodec.readFramed(in, DIM));
+		assertThrows(IOException.class, () -> PlaceCodec.checkFrameLength(0));
+	}
+
+	@Test
+	public void boardsAndBatchesRoundTrip() throws IOException {
+		PlaceBoard board = new PlaceBoard(9);
+		board.setTile(new PlaceTile(0, 0, "alice", PlaceColor.RED, 10));
+		board.setTile(new PlaceTile(8, 8, "bob", PlaceColor.FUCHSIA, 11));
+
+		PlaceBoard copy = (PlaceBoard) roundTrip(new PlaceRequest<>(PlaceRequest.RequestType.BOARD, board)).getData();
+		assertEquals(9, copy.DIM);
+		assertEquals(board.getVersion(), copy.getVersion());
+		assertEquals(PlaceColor.RED, copy.getColor(0, 0));
+		assertEquals("bob", copy.getTile(8, 8).getOwner());
+		assertEquals(PlaceColor.WHITE, copy.getColor(4, 4));
+
+		PlaceTile[] tiles = (PlaceTile[]) roundTrip(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILES,
+				new PlaceTile[] { new PlaceTile(1, 1, "a", PlaceColor.BLACK), new PlaceTile(2, 2, "a", PlaceColor.BLUE) }))
+				.getData();
+		assertEquals(2, tiles.length);
+		assertEquals(PlaceColor.BLUE, tiles[1].getColor());
+
+		boolean[] accepted = { true, false, false, true, true, false, true, false, true };
+		assertArrayEquals(accepted, (boolean[]) roundTrip(new PlaceRequest<>(
+				PlaceRequest.RequestType.CHANGE_TILES_RESULT, accepted)).getData());
+	}
+
+	@Test
+	public void tilesOutOfRangeAreRejected() throws IOException {
+		// A color that does not exist
+		assertMalformed(frame(PlaceRequest.RequestType.CHANGE_TILE, 1, 1, 16, 0, 0));
+		// A row beyond the board
+		assertMalformed(frame(PlaceRequest.RequestType.CHANGE_TILE, DIM, 1, 3, 0, 0));
+		// A placement beyond the board in the history of a tile on it
+		assertMalformed(frame(PlaceRequest.RequestType.TILE_HISTORY, 1, 1, 1, 1, DIM, 3, 0, 0));
+		// A column that only fits in a negative int
+		assertMalformed(frame(PlaceRequest.RequestType.CHANGE_TILE, 1, -5, 3, 0, 0));
+		// An owner id that only fits in a negative int
+		assertMalformed(frame(PlaceRequest.RequestType.CHANGE_TILE, 1, 1, 3, -7, 0));
+	}
+
+	@Test
+	public void tilesOfBoardsWiderThanFourThousandAreRead() throws IOException {
+		PlaceTile tile = new PlaceTile(9000, 9999, "alice", PlaceColor.GRAY, 5);
+		tile.setSequence(3);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PlaceCodec.write(new DataOutputStream(bytes), new PlaceRequest<>(PlaceRequest.RequestType.TILE_CHANGED, tile));
+		byte[] frame = bytes.toByteArray();
+
+		PlaceTile copy = (PlaceTile) PlaceCodec.decodeFrame(frame, 0, frame.length, 10000).getData();
+		assertEquals(9000, copy.getRow());
+		assertEquals(9999, copy.getCol());
+		assertEquals(3, copy.getSequence());
+
+		assertThrows(IOException.class, () -> PlaceCodec.decodeFrame(frame, 0, frame.length, 9999));
+	}
+
+	@Test
+	public void countsOutOfRangeAreRejectedBeforeAnythingIsAllocated() throws IOException {
+		assertMalformed(frame(PlaceRequest.RequestType.CHANGE_TILES, PlaceCodec.MAX_TILES + 1));
+		assertMalformed(frame(PlaceRequest.RequestType.SUBSCRIBE, Integer.MAX_VALUE));
+		assertMalformed(frame(PlaceRequest.RequestType.CHANGE_TILES_RESULT, -1));
+		assertMalformed(frame(PlaceRequest.RequestType.TILES_CHANGED, DIM * DIM + 1));
+		// A board of no tiles, a board wider than the widest, and a section longer than a board of 2 can need
+		assertMalformed(frame(PlaceRequest.RequestType.BOARD, 0, 0, 1));
+		assertMalformed(frame(PlaceRequest.RequestType.BOARD, 0, PlaceBoard.MAX_DIM + 1, 1));
+		assertMalformed(frame(PlaceRequest.RequestType.BOARD, 0, 2, 1, 1 << 20));
+		// An owner id or a dictionary larger than any a client keeps
+		assertMalformed(frame(PlaceRequest.RequestType.USER_ADDED, Integer.MAX_VALUE, 0));
+		assertMalformed(frame(PlaceRequest.RequestType.BOARD, 0, 2, PlaceCodec.MAX_OWNERS + 1));
+	}
+
+	/**
+	 * Encode a request and decode it again.
+	 */
+	private static PlaceRequest<?> roundTrip(PlaceRequest<?> request) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PlaceCodec.writeFramed(new DataOutputStream(bytes), request);
+		return PlaceCodec.readFramed(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), DIM);
+	}
+
+	/**
+	 * Build a frame of a type byte followed by varints, the way a misbehaving peer could.
+	 */
+	private static byte[] frame(PlaceRequest.RequestType type, int... varints) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type.ordinal() + 1);
+
+		for (int varint : varints)
+			PlaceCodec.writeVarInt(out, varint);
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Check that a frame is rejected as malformed rather than decoded or merely found to end early.
+	 */
+	private static void assertMalformed(byte[] frame) {
+		IOException e = assertThrows(IOException.class,
+				() -> PlaceCodec.read(new DataInputStream(new ByteArrayInputStream(frame)), DIM));
+		assertFalse(e instanceof EOFException, "The frame was read past its end: " + e);
+	}
+
+	@Test
+	public void chunksAreOnlyCompressedAgainOnceTheyChange() throws IOException {
+		PlaceBoard board = new PlaceBoard(PlaceBoard.CHUNK + 6);
+		board.setTile(new PlaceTile(1, 1, "alice", PlaceColor.RED, 10));
+		board.setTile(new PlaceTile(PlaceBoard.CHUNK + 5, PlaceBoard.CHUNK + 5, "bob", PlaceColor.NAVY, 11));
+
+		ChunkCache cache = ChunkCache.of(board);
+		byte[] first = cache.section(board, 0);
+		byte[] last = cache.section(board, 3);
+		assertSame(first, cache.section(board, 0));
+
+		board.setTile(new PlaceTile(2, 2, "carol", PlaceColor.LIME, 12));
+		assertNotSame(first, cache.section(board, 0));
+		assertSame(last, cache.section(board, 3));
+
+		PlaceBoard copy = (PlaceBoard) roundTrip(new PlaceRequest<>(PlaceRequest.RequestType.BOARD, board)).getData();
+		assertEquals(PlaceColor.RED, copy.getColor(1, 1));
+		assertEquals(PlaceColor.LIME, copy.getColor(2, 2));
+		assertEquals("carol", copy.getTile(2, 2).getOwner());
+		assertEquals(PlaceColor.NAVY, copy.getColor(PlaceBoard.CHUNK + 5, PlaceBoard.CHUNK + 5));
+		assertEquals(11, copy.getTime(PlaceBoard.CHUNK + 5, PlaceBoard.CHUNK + 5));
+		assertEquals(PlaceColor.WHITE, copy.getColor(PlaceBoard.CHUNK, 3));
+	}
+}
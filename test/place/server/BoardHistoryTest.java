@@ -0,0 +1,185 @@
+package place.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import place.OwnerDictionary;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceException;
+import place.PlaceTile;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link BoardHistory} across restarts of the server: the history of an earlier run is only kept if the
+ * board's sequence numbers go on from it.
+ */
+public class BoardHistoryTest
+{
+    @TempDir
+    Path directory;
+
+    @Test
+    public void aRestartWithoutTheJournalForgetsTheLastRun () throws Exception
+    {
+        PlaceBoard board = new PlaceBoard(8, new OwnerDictionary());
+        BoardHistory history = new BoardHistory(directory, board, 100);
+
+        for (int col = 0; col < 3; col++) // Fewer changes than a keyframe, so the last run only left keyframe 0
+            place(history, board, 0, col, PlaceColor.RED);
+
+        history.close();
+
+        PlaceBoard restarted = new PlaceBoard(8, new OwnerDictionary());
+        history = new BoardHistory(directory, restarted, 100);
+        place(history, restarted, 1, 0, PlaceColor.BLUE);
+        place(history, restarted, 1, 1, PlaceColor.BLUE);
+        history.close();
+
+        PlaceBoard rebuilt = history.boardAt(2);
+        assertEquals(2, rebuilt.getVersion());
+        assertEquals(PlaceColor.BLUE, rebuilt.getColor(1, 1));
+        assertEquals(PlaceColor.WHITE, rebuilt.getColor(0, 0));
+    }
+
+    @Test
+    public void aRestartThatGoesOnFromTheJournalKeepsTheLastRun () throws Exception
+    {
+        PlaceBoard board = new PlaceBoard(8, new OwnerDictionary());
+        BoardHistory history = new BoardHistory(directory, board, 100);
+
+        for (int col = 0; col < 3; col++)
+            place(history, board, 0, col, PlaceColor.RED);
+
+        history.close();
+
+        history = new BoardHistory(directory, board, 100); // As the journal left it, at version 3
+        place(history, board, 2, 2, PlaceColor.NAVY);
+        history.close();
+
+        PlaceBoard before = history.boardAt(2);
+        assertEquals(PlaceColor.RED, before.getColor(0, 1));
+        assertEquals(PlaceColor.WHITE, before.getColor(0, 2));
+
+        PlaceBoard after = history.boardAt(4);
+        assertEquals(PlaceColor.RED, after.getColor(0, 2));
+        assertEquals(PlaceColor.NAVY, after.getColor(2, 2));
+        assertEquals("tester", after.getTile(2, 2).getOwner());
+    }
+
+    @Test
+    public void keyframesAheadOfTheBoardAreDeleted () throws Exception
+    {
+        PlaceBoard board = new PlaceBoard(8, new OwnerDictionary());
+        BoardHistory history = new BoardHistory(directory, board, 2);
+
+        for (int col = 0; col < 5; col++)
+            place(history, board, 0, col, PlaceColor.RED);
+
+        history.close();
+        assertEquals(3, keyframes());
+
+        history = new BoardHistory(directory, new PlaceBoard(8, new OwnerDictionary()), 2);
+        history.close();
+
+        assertEquals(1, keyframes());
+        assertEquals(PlaceColor.WHITE, history.boardAt(0).getColor(0, 0));
+    }
+
+    @Test
+    public void rebuildingOnlyReadsTheSegment () throws Exception
+    {
+        PlaceBoard board = new PlaceBoard(8, new OwnerDictionary());
+        BoardHistory history = new BoardHistory(directory, board, 100);
+        history.close();
+
+        Path segment = directory.resolve(String.format("changes-%020d.journal", 0));
+
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw"))
+        {
+            file.setLength(3); // As if its header were still being written
+        }
+
+        assertEquals(0, history.boardAt(0).getVersion());
+        assertEquals(3, Files.size(segment));
+    }
+
+    @Test
+    public void aChangeThatIsNeverRecordedIsSkipped () throws Exception
+    {
+        PlaceBoard board = new PlaceBoard(8, new OwnerDictionary());
+        BoardHistory history = new BoardHistory(directory, board, 100);
+
+        place(history, board, 0, 0, PlaceColor.RED);
+        board.setTile(new PlaceTile(0, 1, "tester", PlaceColor.RED, System.currentTimeMillis())); // Numbered, lost
+        place(history, board, 0, 2, PlaceColor.BLUE);
+        place(history, board, 0, 3, PlaceColor.BLUE);
+
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (true)
+        {
+            try
+            {
+                history.boardAt(1);
+                break;
+            }
+            catch (PlaceException e)
+            {
+                assertTrue(System.currentTimeMillis() < deadline, "the first change was never recorded");
+                Thread.sleep(20);
+            }
+        }
+
+        // Held back by the missing change, until it has been waited for long enough
+        assertThrows(PlaceException.class, () -> history.boardAt(4));
+        assertThrows(PlaceException.class, () -> history.boardAtTime(System.currentTimeMillis()));
+
+        while (true)
+        {
+            try
+            {
+                PlaceBoard rebuilt = history.boardAt(4);
+                assertEquals(4, rebuilt.getVersion());
+                assertEquals(PlaceColor.WHITE, rebuilt.getColor(0, 1));
+                assertEquals(PlaceColor.BLUE, rebuilt.getColor(0, 3));
+                break;
+            }
+            catch (PlaceException e)
+            {
+                assertTrue(System.currentTimeMillis() < deadline, "the missing change was never skipped");
+                Thread.sleep(20);
+            }
+        }
+
+        assertThrows(PlaceException.class, () -> history.boardAt(5));
+        assertEquals(PlaceColor.BLUE, history.boardAtTime(System.currentTimeMillis()).getColor(0, 2));
+        history.close();
+    }
+
+    /**
+     * This helper method changes a tile of the server's board and records the change, the way the server does.
+     */
+    private static void place (BoardHistory history, PlaceBoard board, int row, int col, PlaceColor color)
+    {
+        PlaceTile tile = new PlaceTile(row, col, "tester", color, System.currentTimeMillis());
+        tile.setSequence(board.setTile(tile));
+        history.record(tile);
+    }
+
+    /**
+     * This helper method counts the keyframes in the history's directory.
+     */
+    private long keyframes () throws Exception
+    {
+        try (Stream<Path> files = Files.list(directory))
+        {
+            return files.filter(path -> path.getFileName().toString().startsWith("keyframe-")).count();
+        }
+    }
+}
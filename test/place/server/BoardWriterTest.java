@@ -0,0 +1,133 @@
+package place.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link BoardWriter} and the placements the server hands it: a bad placement must never stop the writer.
+ */
+public class BoardWriterTest
+{
+    @TempDir
+    Path directory;
+
+    @Test
+    public void theWriterGoesOnAfterARunFails () throws Exception
+    {
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch applied = new CountDownLatch(1);
+
+        PlaceServer server = new PlaceServer(config(0))
+        {
+            @Override
+            void applyPlacements (BoardWriter.Placement[] placements, int count)
+            {
+                if (runs.getAndIncrement() == 0)
+                    throw new ArrayIndexOutOfBoundsException("a tile off the board");
+
+                applied.countDown();
+            }
+        };
+
+        BoardWriter writer = new BoardWriter(server);
+        writer.start();
+
+        writer.publish(new PlaceTile[] { tile(99, 99) }, null);
+        while (runs.get() == 0)
+            Thread.sleep(5);
+
+        writer.publish(new PlaceTile[] { tile(1, 1) }, null);
+        assertTrue(applied.await(5, TimeUnit.SECONDS), "the writer stopped after a failed run");
+
+        writer.close();
+        assertFalse(writer.isAlive());
+    }
+
+    @Test
+    public void aTileOffTheBoardNeverReachesTheWriter () throws Exception
+    {
+        int port;
+
+        try (ServerSocket free = new ServerSocket(0))
+        {
+            port = free.getLocalPort();
+        }
+
+        PlaceServer server = new PlaceServer(config(port));
+        server.start();
+        awaitListening(port);
+
+        try
+        {
+            assertFalse(server.changeBoardTile(tile(8, 0), null));
+            assertFalse(server.changeBoardTile(tile(0, -1), null));
+            assertFalse(server.changeBoardTile(new PlaceTile(0, 0, "tester", null, 1), null));
+
+            assertTrue(server.changeBoardTile(tile(7, 7), null));
+
+            long deadline = System.currentTimeMillis() + 5000;
+
+            while (server.getBoard().getColor(7, 7) != PlaceColor.RED && System.currentTimeMillis() < deadline)
+                Thread.sleep(5);
+
+            assertEquals(PlaceColor.RED, server.getBoard().getColor(7, 7));
+        }
+        finally
+        {
+            server.closeServer();
+            server.join(5000);
+        }
+    }
+
+    /**
+     * This helper method makes the settings of a server with a board of 8 that logs to the test's directory.
+     */
+    private ServerConfig config (int port) throws Exception
+    {
+        return ServerConfig.parse(new String[] { String.valueOf(port), "8", "--log=" + directory.resolve("log") });
+    }
+
+    /**
+     * This helper method makes a red tile placed by a test user.
+     */
+    private static PlaceTile tile (int row, int col)
+    {
+        return new PlaceTile(row, col, "tester", PlaceColor.RED, 1);
+    }
+
+    /**
+     * This helper method waits for a server that was just started to listen on its port.
+     */
+    private static void awaitListening (int port) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (true)
+        {
+            try
+            {
+                new Socket("localhost", port).close();
+                return;
+            }
+            catch (IOException e)
+            {
+                if (System.currentTimeMillis() > deadline)
+                    throw e;
+
+                Thread.sleep(20);
+            }
+        }
+    }
+}
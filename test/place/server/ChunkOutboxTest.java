@@ -0,0 +1,160 @@
+package place.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link ChunkOutbox} and the --striped placements that go through it: the changes of a chunk must reach
+ * every connection in the order they were made, without the server's lock.
+ */
+public class ChunkOutboxTest
+{
+    @TempDir
+    Path directory;
+
+    @Test
+    public void changesAreSentInOrderAndOnlyOnce ()
+    {
+        ChunkOutbox outbox = new ChunkOutbox();
+        ArrayList<TileChange> sent = new ArrayList<>();
+        TileChange first = change(0, 0);
+        TileChange second = change(0, 1);
+        TileChange third = change(0, 2);
+
+        assertEquals(1, outbox.add(first, null));
+        assertEquals(2, outbox.add(second, null));
+        assertEquals(3, outbox.add(third, null));
+
+        outbox.sendUpTo(2, (change, placer) -> sent.add(change));
+        assertEquals(2, sent.size());
+        assertSame(first, sent.get(0));
+        assertSame(second, sent.get(1));
+
+        outbox.sendUpTo(1, (change, placer) -> sent.add(change)); // Already sent by someone else
+        assertEquals(2, sent.size());
+
+        outbox.sendUpTo(3, (change, placer) -> sent.add(change));
+        assertEquals(3, sent.size());
+        assertSame(third, sent.get(2));
+    }
+
+    @Test
+    public void stripedPlacersLeaveEveryConnectionWithTheLatestTiles () throws Exception
+    {
+        int port;
+
+        try (ServerSocket free = new ServerSocket(0))
+        {
+            port = free.getLocalPort();
+        }
+
+        PlaceServer server = new PlaceServer(ServerConfig.parse(new String[] { String.valueOf(port), "128",
+                "--striped", "--journal=" + directory.resolve("journal"), "--fsync=batch",
+                "--log=" + directory.resolve("log") }));
+        server.start();
+        awaitListening(port);
+
+        try
+        {
+            HashMap<Long, PlaceTile> seen = new HashMap<>();
+            server.logIn("watcher", new ClientConnection()
+            {
+                @Override
+                public void update (PlaceServer placeServer, TileChange change)
+                {
+                    synchronized (seen)
+                    {
+                        for (PlaceTile tile : change.getTiles())
+                            seen.put(TileChange.positionOf(tile), tile);
+                    }
+                }
+
+                @Override
+                public void serverClosed () {}
+            });
+
+            Thread[] placers = new Thread[4];
+
+            for (int i = 0; i < placers.length; i++)
+            {
+                Random random = new Random(i);
+                placers[i] = new Thread(() ->
+                {
+                    for (int n = 0; n < 500; n++) // A few tiles in two chunks, so placers keep meeting
+                    {
+                        int row = random.nextInt(2) * 64 + random.nextInt(2);
+                        PlaceColor color = PlaceColor.values()[random.nextInt(PlaceColor.values().length)];
+                        server.changeBoardTile(new PlaceTile(row, random.nextInt(2), "tester", color, 1), null);
+                    }
+                });
+                placers[i].start();
+            }
+
+            for (Thread placer : placers)
+                placer.join();
+
+            synchronized (seen)
+            {
+                for (int row : new int[] { 0, 1, 64, 65 })
+                {
+                    for (int col = 0; col < 2; col++)
+                    {
+                        PlaceTile last = seen.get(TileChange.positionOf(new PlaceTile(row, col, "tester",
+                                PlaceColor.WHITE)));
+                        assertNotNull(last);
+                        assertEquals(server.getBoard().getColor(row, col), last.getColor(), row + "," + col);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            server.closeServer();
+            server.join(5000);
+        }
+    }
+
+    /**
+     * This helper method makes a change of a single red tile placed by a test user.
+     */
+    private static TileChange change (int row, int col)
+    {
+        return new TileChange(new PlaceTile(row, col, "tester", PlaceColor.RED, 1));
+    }
+
+    /**
+     * This helper method waits for a server that was just started to listen on its port.
+     */
+    private static void awaitListening (int port) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (true)
+        {
+            try
+            {
+                new Socket("localhost", port).close();
+                return;
+            }
+            catch (IOException e)
+            {
+                if (System.currentTimeMillis() > deadline)
+                    throw e;
+
+                Thread.sleep(20);
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package place.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import place.OwnerDictionary;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceException;
+import place.PlaceTile;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link Journal}: what is replayed after a restart, and what is cut off when the server died mid-write.
+ */
+public class JournalTest
+{
+    @TempDir
+    Path directory;
+
+    @Test
+    public void everyCommittedChangeIsReplayedWithItsOwner () throws Exception
+    {
+        Path path = directory.resolve("journal");
+        PlaceBoard board = new PlaceBoard(8, new OwnerDictionary());
+
+        try (Journal journal = open(path, board))
+        {
+            place(journal, board, 1, 2, "alice", PlaceColor.RED);
+            place(journal, board, 3, 4, "bob", PlaceColor.BLUE);
+            journal.commit();
+            place(journal, board, 1, 2, "bob", PlaceColor.LIME);
+        }
+
+        PlaceBoard replayed = new PlaceBoard(8, new OwnerDictionary());
+
+        try (Journal journal = new Journal(path, 8, replayed.getOwners(), ServerConfig.FsyncPolicy.NEVER, 0))
+        {
+            assertEquals(3, journal.replay(replayed));
+        }
+
+        assertEquals(3, replayed.getVersion());
+        assertEquals(PlaceColor.LIME, replayed.getColor(1, 2));
+        assertEquals("bob", replayed.getTile(1, 2).getOwner());
+        assertEquals(PlaceColor.BLUE, replayed.getColor(3, 4));
+    }
+
+    @Test
+    public void aFrameCutOffMidwayIsDroppedAndWrittenOver () throws Exception
+    {
+        Path path = directory.resolve("journal");
+        PlaceBoard board = new PlaceBoard(8, new OwnerDictionary());
+        long whole;
+
+        try (Journal journal = open(path, board))
+        {
+            place(journal, board, 0, 0, "alice", PlaceColor.RED);
+            journal.commit();
+            whole = Files.size(path);
+            place(journal, board, 0, 1, "alice", PlaceColor.RED);
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw"))
+        {
+            file.setLength(file.length() - 3); // The server died while the second frame was written
+        }
+
+        PlaceBoard replayed = new PlaceBoard(8, new OwnerDictionary());
+
+        try (Journal journal = open(path, replayed))
+        {
+            assertEquals(1, replayed.getVersion());
+            assertEquals(whole, Files.size(path));
+
+            place(journal, replayed, 0, 2, "alice", PlaceColor.NAVY);
+        }
+
+        PlaceBoard again = new PlaceBoard(8, new OwnerDictionary());
+        open(path, again).close();
+
+        assertEquals(2, again.getVersion());
+        assertEquals(PlaceColor.WHITE, again.getColor(0, 1));
+        assertEquals(PlaceColor.NAVY, again.getColor(0, 2));
+    }
+
+    @Test
+    public void aFrameWithABadChecksumEndsTheReplay () throws Exception
+    {
+        Path path = directory.resolve("journal");
+        PlaceBoard board = new PlaceBoard(8, new OwnerDictionary());
+
+        try (Journal journal = open(path, board))
+        {
+            place(journal, board, 0, 0, "alice", PlaceColor.RED);
+            journal.commit();
+            place(journal, board, 0, 1, "alice", PlaceColor.RED);
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw"))
+        {
+            file.seek(file.length() - 1); // The last byte of the time of the second change
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 1);
+        }
+
+        PlaceBoard replayed = new PlaceBoard(8, new OwnerDictionary());
+        open(path, replayed).close();
+
+        assertEquals(1, replayed.getVersion());
+        assertEquals(PlaceColor.WHITE, replayed.getColor(0, 1));
+    }
+
+    @Test
+    public void changesTheSnapshotHoldsAreSkipped () throws Exception
+    {
+        Path path = directory.resolve("journal");
+        PlaceBoard board = new PlaceBoard(8, new OwnerDictionary());
+
+        try (Journal journal = open(path, board))
+        {
+            place(journal, board, 0, 0, "alice", PlaceColor.RED);
+            place(journal, board, 0, 0, "alice", PlaceColor.BLUE);
+        }
+
+        PlaceBoard snapshot = new PlaceBoard(8, new OwnerDictionary());
+        snapshot.setTile(0, 0, PlaceColor.LIME, snapshot.getOwners().idOf("alice"), 1);
+        snapshot.setVersion(2);
+
+        try (Journal journal = new Journal(path, 8, snapshot.getOwners(), ServerConfig.FsyncPolicy.NEVER, 0))
+        {
+            assertEquals(0, journal.replay(snapshot));
+        }
+
+        assertEquals(PlaceColor.LIME, snapshot.getColor(0, 0));
+    }
+
+    @Test
+    public void aCommitThatFailsIsNotAcknowledged () throws Exception
+    {
+        PlaceBoard board = new PlaceBoard(8, new OwnerDictionary());
+        Journal journal = open(directory.resolve("journal"), board);
+        place(journal, board, 0, 0, "alice", PlaceColor.RED);
+
+        Thread.currentThread().interrupt(); // Closes the file in the middle of the write
+        assertThrows(PlaceException.class, journal::commit);
+        Thread.interrupted();
+
+        // The change is still owed, so the next commit does not return as if it had been written
+        assertThrows(PlaceException.class, journal::commit);
+    }
+
+    @Test
+    public void aJournalOfAnotherBoardSizeIsRefused () throws Exception
+    {
+        Path path = directory.resolve("journal");
+        open(path, new PlaceBoard(8, new OwnerDictionary())).close();
+
+        assertThrows(PlaceException.class, () ->
+                new Journal(path, 16, new OwnerDictionary(), ServerConfig.FsyncPolicy.NEVER, 0));
+    }
+
+    /**
+     * This helper method opens a journal the way the server does, and replays it onto a board.
+     */
+    private static Journal open (Path path, PlaceBoard board) throws PlaceException
+    {
+        Journal journal = new Journal(path, board.DIM, board.getOwners(), ServerConfig.FsyncPolicy.NEVER, 0);
+        journal.replay(board);
+        return journal;
+    }
+
+    /**
+     * This helper method changes a tile of a board the way the server does, and appends the change to a journal.
+     */
+    private static void place (Journal journal, PlaceBoard board, int row, int col, String owner, PlaceColor color)
+    {
+        PlaceTile tile = new PlaceTile(row, col, owner, color, System.currentTimeMillis());
+        tile.setSequence(board.setTile(tile));
+        journal.append(tile);
+    }
+}
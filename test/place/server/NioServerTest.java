@@ -0,0 +1,169 @@
+package place.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import place.PlaceBoard;
+import place.network.Handshake;
+import place.network.PlaceCodec;
+import place.network.PlaceRequest;
+import place.network.User;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the NIO connection mode: clients that send requests slowly, or too large, must not hold the I/O threads.
+ */
+public class NioServerTest
+{
+    @TempDir
+    Path directory;
+
+    /** the server under test, with a single I/O thread */
+    private PlaceServer server;
+
+    /** the port the server listens on */
+    private int port;
+
+    @BeforeEach
+    public void startServer () throws Exception
+    {
+        try (ServerSocket free = new ServerSocket(0))
+        {
+            port = free.getLocalPort();
+        }
+
+        server = new PlaceServer(ServerConfig.parse(new String[] { String.valueOf(port), "8", "--nio=1",
+                "--log=" + directory.resolve("log") }));
+        server.start();
+
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (true) // Waits for the server to start listening
+        {
+            try
+            {
+                new Socket("localhost", port).close();
+                break;
+            }
+            catch (IOException e)
+            {
+                if (System.currentTimeMillis() > deadline)
+                    throw e;
+
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    @AfterEach
+    public void stopServer () throws InterruptedException
+    {
+        server.closeServer();
+        server.join(5000);
+    }
+
+    @Test
+    public void aClientThatSendsHalfARequestDoesNotHoldTheOnlyIoThread () throws Exception
+    {
+        try (Socket slow = new Socket("localhost", port))
+        {
+            byte[] login = serialize(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN,
+                    new Handshake("slow", PlaceCodec.VERSION)));
+            slow.getOutputStream().write(Arrays.copyOf(login, login.length / 2));
+            slow.getOutputStream().flush();
+            Thread.sleep(200);
+
+            assertTimeoutPreemptively(Duration.ofSeconds(3), () ->
+            {
+                try (User user = new User("localhost", port))
+                {
+                    user.send(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN,
+                            new Handshake("fast", PlaceCodec.VERSION)));
+                    PlaceRequest<?> success = (PlaceRequest<?>)user.receive();
+                    assertEquals(PlaceRequest.RequestType.LOGIN_SUCCESS, success.getType());
+
+                    user.useBinaryProtocol(0);
+                    PlaceRequest<?> board = (PlaceRequest<?>)user.receive();
+                    assertEquals(PlaceRequest.RequestType.BOARD, board.getType());
+                    assertEquals(8, ((PlaceBoard)board.getData()).DIM);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void aClientWithoutTheBinaryProtocolIsRefused () throws Exception
+    {
+        try (User user = new User("localhost", port))
+        {
+            user.send(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, "legacy"));
+            assertEquals(PlaceRequest.RequestType.ERROR, ((PlaceRequest<?>)user.receive()).getType());
+        }
+    }
+
+    @Test
+    public void aFrameLargerThanTheMaximumClosesTheConnection () throws Exception
+    {
+        try (Socket socket = new Socket("localhost", port))
+        {
+            socket.setSoTimeout(5000);
+            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+
+            out.write(serialize(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN,
+                    new Handshake("large", PlaceCodec.VERSION))));
+            assertEquals(PlaceRequest.RequestType.LOGIN_SUCCESS, ((PlaceRequest<?>)in.readUnshared()).getType());
+
+            DataOutputStream frame = new DataOutputStream(out);
+            PlaceCodec.writeVarInt(frame, PlaceCodec.MAX_FRAME + 1);
+            frame.flush();
+
+            InputStream rest = socket.getInputStream();
+            byte[] buffer = new byte[4096];
+
+            while (true) // Reads the BOARD and whatever followed it until the server closes the connection
+            {
+                try
+                {
+                    if (rest.read(buffer) < 0)
+                        break;
+                }
+                catch (SocketTimeoutException e) {
+                    fail("The connection was not closed");
+                }
+                catch (IOException e) {
+                    break; // A reset is as good as a close
+                }
+            }
+        }
+    }
+
+    /**
+     * This helper method serializes a request the way a client's ObjectOutputStream sends its first request.
+     *
+     * @param request the request
+     * @return the stream header followed by the request
+     * @throws IOException never
+     */
+    private static byte[] serialize (PlaceRequest<?> request) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+        {
+            out.writeUnshared(request);
+        }
+
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,99 @@
+package place.server;
+
+import org.junit.jupiter.api.Test;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link OutboundQueue}: what every slow consumer policy does once the queue is full.
+ */
+public class OutboundQueueTest
+{
+    @Test
+    public void resyncDropsTheQueuedChangesAndOwesTheBoard ()
+    {
+        OutboundQueue queue = new OutboundQueue(2, ServerConfig.SlowConsumerPolicy.RESYNC);
+
+        assertTrue(queue.offer(change(0, 0, PlaceColor.RED)));
+        assertTrue(queue.offer(change(0, 1, PlaceColor.RED)));
+        assertTrue(queue.offer(change(0, 2, PlaceColor.BLUE)));
+
+        assertTrue(queue.takeResync());
+        assertFalse(queue.takeResync());
+        assertEquals(2, queue.poll().getTiles()[0].getCol());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void coalesceKeepsTheLatestChangeOfEveryTile ()
+    {
+        OutboundQueue queue = new OutboundQueue(2, ServerConfig.SlowConsumerPolicy.COALESCE);
+
+        queue.offer(change(0, 0, PlaceColor.RED));
+        queue.offer(change(0, 0, PlaceColor.BLUE));
+        queue.offer(change(1, 1, PlaceColor.LIME));
+
+        assertFalse(queue.takeResync());
+
+        PlaceTile[] batch = queue.poll().getTiles();
+        assertEquals(1, batch.length);
+        assertEquals(PlaceColor.BLUE, batch[0].getColor());
+        assertEquals(PlaceColor.LIME, queue.poll().getTiles()[0].getColor());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void coalesceResyncsWhenTooManyTilesHaveChanged ()
+    {
+        OutboundQueue queue = new OutboundQueue(2, ServerConfig.SlowConsumerPolicy.COALESCE);
+
+        queue.offer(new TileChange(tile(0, 0, PlaceColor.RED), tile(0, 1, PlaceColor.RED),
+                tile(0, 2, PlaceColor.RED)));
+        queue.offer(change(0, 3, PlaceColor.RED));
+        queue.offer(change(0, 4, PlaceColor.NAVY));
+
+        assertTrue(queue.takeResync());
+        assertEquals(PlaceColor.NAVY, queue.poll().getTiles()[0].getColor());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void disconnectRefusesTheChangeThatDoesNotFit ()
+    {
+        OutboundQueue queue = new OutboundQueue(1, ServerConfig.SlowConsumerPolicy.DISCONNECT);
+
+        assertTrue(queue.offer(change(0, 0, PlaceColor.RED)));
+        assertFalse(queue.offer(change(0, 1, PlaceColor.RED)));
+        assertFalse(queue.takeResync());
+    }
+
+    @Test
+    public void aClosedQueueIgnoresChangesAndStopsWaiting () throws InterruptedException
+    {
+        OutboundQueue queue = new OutboundQueue(1, ServerConfig.SlowConsumerPolicy.DISCONNECT);
+        queue.offer(change(0, 0, PlaceColor.RED));
+        queue.close();
+
+        assertTrue(queue.offer(change(0, 1, PlaceColor.RED)));
+        assertTrue(queue.isEmpty());
+        assertFalse(queue.await());
+    }
+
+    /**
+     * This helper method makes a change of a single tile.
+     */
+    private static TileChange change (int row, int col, PlaceColor color)
+    {
+        return new TileChange(tile(row, col, color));
+    }
+
+    /**
+     * This helper method makes a tile placed by a test user.
+     */
+    private static PlaceTile tile (int row, int col, PlaceColor color)
+    {
+        return new PlaceTile(row, col, "tester", color, 1);
+    }
+}
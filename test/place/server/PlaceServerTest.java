@@ -0,0 +1,98 @@
+package place.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link PlaceServer}'s moderation: a revert restores what a user drew over as a new change of the board.
+ */
+public class PlaceServerTest
+{
+    @TempDir
+    Path directory;
+
+    @Test
+    public void aRevertRestoresTilesAtTheCurrentTimeWithoutCountingThem () throws Exception
+    {
+        int port;
+
+        try (ServerSocket free = new ServerSocket(0))
+        {
+            port = free.getLocalPort();
+        }
+
+        PlaceServer server = new PlaceServer(ServerConfig.parse(new String[] { String.valueOf(port), "8",
+                "--striped", "--tile-history=4", "--log=" + directory.resolve("log") }));
+        server.start();
+        awaitListening(port);
+
+        try
+        {
+            ClientConnection placer = new ClientConnection()
+            {
+                @Override
+                public void update (PlaceServer placeServer, TileChange change) {}
+
+                @Override
+                public void serverClosed () {}
+            };
+
+            server.changeBoardTile(new PlaceTile(1, 1, "alice", PlaceColor.RED, 100), placer);
+            server.changeBoardTile(new PlaceTile(1, 1, "bob", PlaceColor.BLUE, 200), placer);
+            server.changeBoardTile(new PlaceTile(2, 2, "bob", PlaceColor.BLUE, 200), placer);
+
+            long before = System.currentTimeMillis();
+            assertEquals(2, server.revertPlacements("bob", 150));
+
+            PlaceBoard board = server.getBoard();
+            assertEquals(PlaceColor.RED, board.getColor(1, 1));
+            assertEquals("alice", board.getTile(1, 1).getOwner());
+            assertTrue(board.getTime(1, 1) >= before, "the restored tile went back in time");
+
+            assertEquals(PlaceColor.WHITE, board.getColor(2, 2)); // Nobody had drawn on it before bob
+            assertTrue(board.getTime(2, 2) >= before, "the restored tile looks as if it was never placed");
+
+            assertEquals(2, server.getStatistics().getPlacements(1, 1));
+            assertEquals(1, server.getStatistics().getPlacements(2, 2));
+        }
+        finally
+        {
+            server.closeServer();
+            server.join(5000);
+        }
+    }
+
+    /**
+     * This helper method waits for a server that was just started to listen on its port.
+     */
+    private static void awaitListening (int port) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (true)
+        {
+            try
+            {
+                new Socket("localhost", port).close();
+                return;
+            }
+            catch (IOException e)
+            {
+                if (System.currentTimeMillis() > deadline)
+                    throw e;
+
+                Thread.sleep(20);
+            }
+        }
+    }
+}
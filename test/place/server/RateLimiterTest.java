@@ -0,0 +1,82 @@
+package place.server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link RateLimiter}: bursts, waits, reservations and users that leave.
+ */
+public class RateLimiterTest
+{
+    @Test
+    public void aUserMayPlaceAFullBucketAtOnceAndThenWaits ()
+    {
+        RateLimiter limiter = new RateLimiter(3, 60000);
+
+        for (int i = 0; i < 3; i++)
+            assertEquals(0, limiter.tryAcquire("alice"));
+
+        long wait = limiter.tryAcquire("alice");
+        assertTrue(wait > 19000 && wait <= 20000, "waited " + wait);
+
+        // A refused placement does not take a token, so the wait does not grow
+        assertTrue(limiter.tryAcquire("alice") <= wait);
+    }
+
+    @Test
+    public void everyUserHasABucketOfItsOwn ()
+    {
+        RateLimiter limiter = new RateLimiter(1, 60000);
+
+        assertEquals(0, limiter.tryAcquire("alice"));
+        assertTrue(limiter.tryAcquire("alice") > 0);
+        assertEquals(0, limiter.tryAcquire("bob"));
+    }
+
+    @Test
+    public void theBucketFillsUpAgainOverThePeriod () throws InterruptedException
+    {
+        RateLimiter limiter = new RateLimiter(2, 100);
+
+        assertEquals(0, limiter.tryAcquire("alice"));
+        assertEquals(0, limiter.tryAcquire("alice"));
+        assertTrue(limiter.tryAcquire("alice") > 0);
+
+        Thread.sleep(150);
+        assertEquals(0, limiter.tryAcquire("alice"));
+    }
+
+    @Test
+    public void reservationsWaitTheirTurnUntilTooManyAreQueued ()
+    {
+        RateLimiter limiter = new RateLimiter(1, 60000);
+
+        assertEquals(0, limiter.reserve("alice"));
+
+        long previous = 0;
+
+        for (int i = 0; i < 16; i++)
+        {
+            long wait = limiter.reserve("alice");
+            assertTrue(wait > previous, "reservation " + i + " waits " + wait);
+            previous = wait;
+        }
+
+        assertEquals(-1, limiter.reserve("alice"));
+    }
+
+    @Test
+    public void loggingInAgainDoesNotRefillTheBucket ()
+    {
+        RateLimiter limiter = new RateLimiter(1, 60000);
+
+        assertEquals(0, limiter.tryAcquire("alice"));
+        limiter.forget("alice");
+        assertTrue(limiter.tryAcquire("alice") > 0);
+
+        RateLimiter idle = new RateLimiter(1, 1);
+        idle.forget("bob"); // A user that never placed anything has nothing to forget
+        assertEquals(0, idle.tryAcquire("bob"));
+    }
+}
@@ -0,0 +1,109 @@
+package place.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import place.OwnerDictionary;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceException;
+import place.PlaceTile;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link Snapshot}: a board written out and loaded again, and the files that must be refused.
+ */
+public class SnapshotTest
+{
+    @TempDir
+    Path directory;
+
+    @Test
+    public void aLoadedSnapshotHoldsEveryTileOwnerAndTheVersion () throws Exception
+    {
+        // 100 tiles square is two chunks across, the second of them only partly on the board
+        PlaceBoard board = new PlaceBoard(100, new OwnerDictionary());
+        board.setTile(new PlaceTile(0, 0, "alice", PlaceColor.RED, 11));
+        board.setTile(new PlaceTile(63, 64, "bob", PlaceColor.BLUE, 22));
+        board.setTile(new PlaceTile(99, 99, "alice", PlaceColor.LIME, 33));
+
+        Snapshot snapshot = new Snapshot(directory.resolve("board.snap"));
+        assertFalse(snapshot.exists());
+        assertEquals(3, snapshot.write(board));
+        assertTrue(snapshot.exists());
+
+        PlaceBoard loaded = new PlaceBoard(100, new OwnerDictionary());
+        assertEquals(3, snapshot.load(loaded));
+        assertEquals(3, loaded.getVersion());
+
+        for (int row = 0; row < 100; row++)
+        {
+            for (int col = 0; col < 100; col++)
+            {
+                assertEquals(board.getColor(row, col), loaded.getColor(row, col), row + "," + col);
+                assertEquals(board.getTime(row, col), loaded.getTime(row, col), row + "," + col);
+            }
+        }
+
+        assertEquals("bob", loaded.getTile(63, 64).getOwner());
+        assertEquals("alice", loaded.getTile(99, 99).getOwner());
+        assertEquals(board.getOwners().find("bob"), loaded.getOwners().find("bob"));
+    }
+
+    @Test
+    public void aNewSnapshotReplacesTheLastOne () throws Exception
+    {
+        Path path = directory.resolve("board.snap");
+        PlaceBoard board = new PlaceBoard(8, new OwnerDictionary());
+        Snapshot snapshot = new Snapshot(path);
+
+        board.setTile(new PlaceTile(1, 1, "alice", PlaceColor.RED, 1));
+        snapshot.write(board);
+        board.setTile(new PlaceTile(1, 1, "bob", PlaceColor.NAVY, 2));
+        snapshot.write(board);
+
+        assertFalse(Files.exists(directory.resolve("board.snap.tmp")));
+
+        PlaceBoard loaded = new PlaceBoard(8, new OwnerDictionary());
+        assertEquals(2, snapshot.load(loaded));
+        assertEquals(PlaceColor.NAVY, loaded.getColor(1, 1));
+        assertEquals("bob", loaded.getTile(1, 1).getOwner());
+    }
+
+    @Test
+    public void aSnapshotOfAnotherBoardSizeIsRefused () throws Exception
+    {
+        Snapshot snapshot = new Snapshot(directory.resolve("board.snap"));
+        snapshot.write(new PlaceBoard(8, new OwnerDictionary()));
+
+        assertThrows(PlaceException.class, () -> snapshot.load(new PlaceBoard(16, new OwnerDictionary())));
+    }
+
+    @Test
+    public void aSnapshotCutShortIsRefused () throws Exception
+    {
+        Path path = directory.resolve("board.snap");
+        Snapshot snapshot = new Snapshot(path);
+        snapshot.write(new PlaceBoard(8, new OwnerDictionary()));
+
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw"))
+        {
+            file.setLength(file.length() / 2);
+        }
+
+        assertThrows(PlaceException.class, () -> snapshot.load(new PlaceBoard(8, new OwnerDictionary())));
+    }
+
+    @Test
+    public void aFileThatIsNoSnapshotIsRefused () throws Exception
+    {
+        Path path = directory.resolve("board.snap");
+        Files.write(path, "not a snapshot at all, just some text".getBytes());
+
+        assertThrows(PlaceException.class, () -> new Snapshot(path).load(new PlaceBoard(8, new OwnerDictionary())));
+    }
+}
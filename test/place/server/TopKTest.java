@@ -0,0 +1,98 @@
+package place.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link TopK}: the keys with the greatest counts, however the counts grew.
+ */
+public class TopKTest
+{
+    @Test
+    public void theGreatestCountsAreKeptGreatestFirst ()
+    {
+        TopK top = new TopK(3);
+        long[] counts = new long[6];
+        int[] placements = { 0, 1, 2, 3, 3, 4, 5, 5, 5, 4, 3, 5, 1 };
+
+        for (int key : placements)
+            top.offer(key, ++counts[key]);
+
+        TopK.Entry[] entries = top.top();
+        assertEquals(3, entries.length);
+        assertEquals(5, entries[0].key);
+        assertEquals(4, entries[0].count);
+        assertEquals(3, entries[1].key);
+        assertEquals(3, entries[1].count);
+        assertEquals(2, entries[2].count); // Keys 1 and 4 are tied; either may be kept
+        assertTrue(entries[2].key == 1 || entries[2].key == 4);
+    }
+
+    @Test
+    public void fewerKeysThanKAreAllKept ()
+    {
+        TopK top = new TopK(5);
+        assertEquals(0, top.top().length);
+
+        top.offer(7, 1);
+        top.offer(9, 1);
+        top.offer(7, 2);
+
+        TopK.Entry[] entries = top.top();
+        assertEquals(2, entries.length);
+        assertEquals(7, entries[0].key);
+        assertEquals(2, entries[0].count);
+        assertEquals(9, entries[1].key);
+    }
+
+    @Test
+    public void anOfferThatComesLateDoesNotLowerTheCount ()
+    {
+        TopK top = new TopK(2);
+        top.offer(1, 1);
+        top.offer(1, 3);
+        top.offer(1, 2); // The offer of another thread that grew the count before the last one
+
+        assertEquals(3, top.top()[0].count);
+    }
+
+    @Test
+    public void countsThatGrowOnManyThreadsEndWithTheExactTop () throws InterruptedException
+    {
+        int keys = 50;
+        TopK top = new TopK(5);
+        AtomicLongArray counts = new AtomicLongArray(keys);
+        Thread[] threads = new Thread[4];
+
+        for (int t = 0; t < threads.length; t++)
+        {
+            threads[t] = new Thread(() ->
+            {
+                for (int round = 0; round < 100; round++) // Key i grows 4 * i times in all, interleaved
+                {
+                    for (int key = 0; key < keys; key++)
+                    {
+                        if (round < key)
+                            top.offer(key, counts.incrementAndGet(key));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        TopK.Entry[] entries = top.top();
+        assertEquals(5, entries.length);
+
+        for (int i = 0; i < entries.length; i++)
+        {
+            assertEquals(keys - 1 - i, entries[i].key);
+            assertEquals(4L * (keys - 1 - i), entries[i].count);
+        }
+    }
+}